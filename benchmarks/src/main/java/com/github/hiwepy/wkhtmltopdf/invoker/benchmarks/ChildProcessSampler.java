@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+
+/**
+ * Samples the CPU time and resident memory of the processes forked by this
+ * JVM from <code>/proc</code>. The CPU time of exited processes is taken from
+ * the children times of this JVM, the one of running processes, e.g. warm
+ * workers, from their own stat. Assumes 100 clock ticks per second and 4 KB
+ * pages, which holds for common Linux systems. Reports nothing elsewhere.
+ */
+class ChildProcessSampler {
+
+	private static final long SAMPLE_INTERVAL = 100;
+
+	private static final long TICK_MILLIS = 10;
+
+	private static final long PAGE_SIZE = 4096;
+
+	private static final File PROC = new File("/proc");
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor(ProcessThreads.newDaemonThreadFactory("load-sampler-"));
+
+	private final String self;
+
+	private volatile long peakRss;
+
+	private volatile boolean started;
+
+	private long startTicks;
+
+	private long endTicks;
+
+	ChildProcessSampler() {
+		String pid = null;
+		try {
+			pid = new File(PROC, "self").getCanonicalFile().getName();
+		} catch (IOException e) {
+			// no /proc
+		}
+		this.self = pid;
+	}
+
+	/**
+	 * Starts sampling, counting the CPU time from the given
+	 * {@link System#nanoTime()} on.
+	 */
+	void start(long from) {
+		if (self == null) {
+			return;
+		}
+		long delay = Math.max(0, from - System.nanoTime());
+		scheduler.schedule(new Runnable() {
+
+			public void run() {
+				startTicks = childTicks();
+				started = true;
+			}
+
+		}, delay, TimeUnit.NANOSECONDS);
+		scheduler.scheduleAtFixedRate(new Runnable() {
+
+			public void run() {
+				if (started) {
+					long rss = 0;
+					for (long[] stat : descendants().values()) {
+						rss += stat[1];
+					}
+					peakRss = Math.max(peakRss, rss * PAGE_SIZE);
+				}
+			}
+
+		}, delay, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	void stop() throws InterruptedException {
+		scheduler.shutdown();
+		scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		if (self != null) {
+			endTicks = childTicks();
+		}
+	}
+
+	/**
+	 * @return The CPU time of the child processes in milliseconds, <code>0</code> if unknown.
+	 */
+	long getCpuMillis() {
+		return Math.max(0, endTicks - startTicks) * TICK_MILLIS;
+	}
+
+	/**
+	 * @return The peak sum of the resident set sizes of the child processes in bytes, <code>0</code> if unknown.
+	 */
+	long getPeakRss() {
+		return peakRss;
+	}
+
+	/**
+	 * @return The CPU ticks of exited and running descendants.
+	 */
+	private long childTicks() {
+		long ticks = 0;
+		String[] stat = readStat(self);
+		if (stat != null) {
+			// cutime and cstime
+			ticks += Long.parseLong(stat[13]) + Long.parseLong(stat[14]);
+		}
+		for (long[] child : descendants().values()) {
+			ticks += child[0];
+		}
+		return ticks;
+	}
+
+	/**
+	 * @return The CPU ticks and RSS pages of the running descendants by pid.
+	 */
+	private Map<String, long[]> descendants() {
+		Map<String, List<String>> children = new HashMap<String, List<String>>();
+		Map<String, long[]> usage = new HashMap<String, long[]>();
+		String[] pids = PROC.list();
+		if (pids == null) {
+			return usage;
+		}
+		for (String pid : pids) {
+			if (pid.isEmpty() || !Character.isDigit(pid.charAt(0))) {
+				continue;
+			}
+			String[] stat = readStat(pid);
+			if (stat == null) {
+				continue;
+			}
+			List<String> siblings = children.get(stat[1]);
+			if (siblings == null) {
+				siblings = new ArrayList<String>();
+				children.put(stat[1], siblings);
+			}
+			siblings.add(pid);
+			// utime + stime, rss
+			usage.put(pid, new long[] { Long.parseLong(stat[11]) + Long.parseLong(stat[12]), Long.parseLong(stat[21]) });
+		}
+		Map<String, long[]> descendants = new HashMap<String, long[]>();
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.add(self);
+		while (!pending.isEmpty()) {
+			List<String> direct = children.get(pending.poll());
+			if (direct != null) {
+				for (String child : direct) {
+					descendants.put(child, usage.get(child));
+					pending.add(child);
+				}
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * Reads the fields of <code>/proc/&lt;pid&gt;/stat</code> after the command
+	 * name, so index 0 is the state and index 1 the parent pid.
+	 */
+	private static String[] readStat(String pid) {
+		try {
+			String stat = new String(Files.readAllBytes(new File(PROC, pid + "/stat").toPath()), StandardCharsets.US_ASCII);
+			// the command name may contain spaces and parentheses
+			return stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.cli.Commandline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+import com.github.hiwepy.wkhtmltopdf.invoker.command.WkhtmlToPdfCommandLineBuilder;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+
+/**
+ * Measures building the command line of a request from scratch against
+ * appending its operands to a compiled template.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandLineBuilderBenchmark {
+
+	@Param({ "small", "large" })
+	public String options;
+
+	private WkhtmlToPdfCommandLineBuilder builder;
+
+	private DefaultWkhtmlToPdfInvocationRequest request;
+
+	private CompiledInvocationTemplate template;
+
+	@Setup
+	public void setUp() throws Exception {
+		File home = Fixtures.fakeHome();
+		request = "large".equals(options) ? Fixtures.largeRequest(home) : Fixtures.smallRequest(home);
+		builder = new WkhtmlToPdfCommandLineBuilder();
+		builder.setWkhtmltopdfHome(home);
+		template = builder.compile(request);
+	}
+
+	@Benchmark
+	public Commandline build() throws Exception {
+		return builder.build(request);
+	}
+
+	@Benchmark
+	public Commandline compiled() {
+		return template.newCommandline(request);
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.Os;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * Provides the requests and process output the benchmarks work on. Nothing
+ * here needs a wkhtmltopdf binary or the network.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Creates a wkhtmltopdf home holding an empty file where the executable is
+	 * expected, enough for the executable lookup of the command line builders.
+	 */
+	static File fakeHome() throws IOException {
+		File home = Files.createTempDirectory("wkhtmltopdf-home").toFile();
+		File executable = new File(home, Os.isFamily("windows") ? "wkhtmltopdf.exe" : "wkhtmltopdf");
+		if (!executable.createNewFile() || !executable.setExecutable(true)) {
+			throw new IOException("Could not create " + executable);
+		}
+		executable.deleteOnExit();
+		home.deleteOnExit();
+		return home;
+	}
+
+	/**
+	 * @return A request with a URL and an output file only.
+	 */
+	static DefaultWkhtmlToPdfInvocationRequest smallRequest(File home) {
+		DefaultWkhtmlToPdfInvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		request.setWkhtmltopdfHome(home);
+		request.setURL("https://example.com/report");
+		request.setOutputSink(OutputSink.toFile(new File(home, "report.pdf")));
+		return request;
+	}
+
+	/**
+	 * @return A request setting every option the builder knows, plus 32
+	 *         environment variables.
+	 */
+	static DefaultWkhtmlToPdfInvocationRequest largeRequest(File home) {
+		DefaultWkhtmlToPdfInvocationRequest request = smallRequest(home);
+		request.setBaseDirectory(home);
+		request.setDelay(250);
+		request.setDontDownloadStylesheets(true);
+		request.setEncoding("UTF-8");
+		request.setFilterRegexp(".*\\.(png|jpg)$");
+		request.setMatchRegexp("https://example\\.com/.*");
+		request.setMaxFiles(100);
+		request.setMaxRecursions(3);
+		request.setTimeout(30000, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 32; i++) {
+			request.addShellEnvironment("REPORT_VAR_" + i, "value-" + i);
+		}
+		return request;
+	}
+
+	/**
+	 * Renders the error output wkhtmltopdf prints for a document of the given
+	 * number of pages: the six phases, a progress bar redrawn with carriage
+	 * returns, a few warnings and "Done".
+	 */
+	static byte[] stderrTranscript(int pages) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Loading pages (1/6)\n");
+		for (int percent = 0; percent <= 100; percent++) {
+			sb.append('[').append(bar(percent)).append("] ").append(percent).append("%\r");
+		}
+		sb.append("Warning: Failed to load https://example.com/missing.png, ignoring.\n");
+		sb.append("Counting pages (2/6)\n");
+		sb.append('[').append(bar(100)).append("] Object 1 of 1\r");
+		sb.append("Resolving links (4/6)\n");
+		sb.append('[').append(bar(100)).append("] Object 1 of 1\r");
+		sb.append("Loading headers and footers (5/6)\n");
+		sb.append("Printing pages (6/6)\n");
+		sb.append('[').append(bar(0)).append("] Preparing\r");
+		for (int page = 1; page <= pages; page++) {
+			sb.append('[').append(bar(page * 100 / pages)).append("] Page ").append(page).append(" of ").append(pages).append('\r');
+		}
+		sb.append("\nDone\n");
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String bar(int percent) {
+		StringBuilder sb = new StringBuilder(60);
+		int filled = percent * 60 / 100;
+		for (int i = 0; i < 60; i++) {
+			sb.append(i < filled ? '=' : i == filled ? '>' : ' ');
+		}
+		return sb.toString();
+	}
+
+}
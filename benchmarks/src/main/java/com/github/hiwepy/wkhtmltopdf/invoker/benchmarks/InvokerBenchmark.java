@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.DefaultInvoker;
+import com.github.hiwepy.wkhtmltopdf.invoker.InvocationResult;
+import com.github.hiwepy.wkhtmltopdf.invoker.TailOutputHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+
+/**
+ * Measures everything {@link DefaultInvoker#execute} does around the process:
+ * building the command line, pumping the streams and collecting the result.
+ * The process is an in-memory stub that exits at once, so the numbers are the
+ * cost the invoker adds to every render.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InvokerBenchmark {
+
+	@Param({ "small", "large" })
+	public String options;
+
+	private DefaultInvoker invoker;
+
+	private DefaultWkhtmlToPdfInvocationRequest request;
+
+	private DefaultWkhtmlToPdfInvocationRequest compiledRequest;
+
+	@Setup
+	public void setUp() throws Exception {
+		File home = Fixtures.fakeHome();
+		invoker = new DefaultInvoker();
+		invoker.setWkhtmltopdfHome(home);
+		invoker.setOutputHandler(null);
+		invoker.setErrorHandler(new TailOutputHandler());
+		invoker.setProcessLauncher(new StubProcessLauncher(new byte[0], Fixtures.stderrTranscript(10)));
+		request = "large".equals(options) ? Fixtures.largeRequest(home) : Fixtures.smallRequest(home);
+		compiledRequest = "large".equals(options) ? Fixtures.largeRequest(home) : Fixtures.smallRequest(home);
+		compiledRequest.setCompiledTemplate(invoker.compile(compiledRequest));
+	}
+
+	@Benchmark
+	public InvocationResult execute() throws Exception {
+		return invoker.execute(request);
+	}
+
+	@Benchmark
+	public InvocationResult executeCompiled() throws Exception {
+		return invoker.execute(compiledRequest);
+	}
+
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.DefaultInvoker;
+import com.github.hiwepy.wkhtmltopdf.invoker.InvocationResult;
+import com.github.hiwepy.wkhtmltopdf.invoker.PooledInvoker;
+import com.github.hiwepy.wkhtmltopdf.invoker.TailOutputHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.WkhtmlToPdfWorkerPool;
+import com.github.hiwepy.wkhtmltopdf.invoker.metrics.InvokerMetrics;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * Drives {@link DefaultInvoker#execute} end to end and reports throughput,
+ * latency percentiles, queue wait and the CPU and memory of the wkhtmltopdf
+ * processes. All options are <code>--name=value</code> arguments:
+ * <ul>
+ * <li><code>mode</code>: <code>rate</code> starts requests at a fixed arrival
+ * rate, <code>concurrency</code> keeps a fixed number of requests running.
+ * Default <code>rate</code>.</li>
+ * <li><code>rate</code>: requests per second in rate mode, default 10.</li>
+ * <li><code>concurrency</code>: client threads in concurrency mode, default 4.</li>
+ * <li><code>duration</code> and <code>warmup</code>: seconds, default 60 and 10.</li>
+ * <li><code>invoker</code>: <code>fork</code> forks a process per request,
+ * <code>pooled</code> bounds them with a {@link PooledInvoker},
+ * <code>workers</code> renders on a {@link WkhtmlToPdfWorkerPool} of warm
+ * processes. Default <code>fork</code>.</li>
+ * <li><code>processes</code>: size of the pooled invoker or worker pool, default 4.</li>
+ * <li><code>threads</code>: <code>platform</code> or <code>virtual</code>
+ * client threads, default <code>platform</code>.</li>
+ * <li><code>home</code>: wkhtmltopdf home, e.g. the directory of the
+ * simulator script. Default the installed wkhtmltopdf.</li>
+ * <li><code>stub</code>: <code>true</code> to skip forking and measure the
+ * invoker alone with an in-memory process.</li>
+ * <li><code>url</code>, <code>timeout</code> (ms), <code>format</code>
+ * (<code>text</code> or <code>csv</code>) and <code>hdr-log</code>, a file to
+ * write the latency histogram to.</li>
+ * </ul>
+ * In rate mode the latency of a request is measured from the time it should
+ * have started, so a stalled invoker is not hidden by requests that were never
+ * sent (coordinated omission). The service time is measured from the time it
+ * actually started.
+ */
+public class LoadHarness {
+
+	private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+
+	private final Map<String, String> options;
+
+	private final Histogram latency = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+
+	private final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+
+	private final Histogram queueWait = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+
+	private final AtomicLong succeeded = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong timedOut = new AtomicLong();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private volatile long measureStart;
+
+	private volatile String firstFailure;
+
+	private DefaultInvoker invoker;
+
+	private WkhtmlToPdfWorkerPool workerPool;
+
+	private File outputDirectory;
+
+	LoadHarness(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				System.err.println("Unexpected argument " + arg + ", options are --name=value.");
+				System.exit(2);
+			}
+			int eq = arg.indexOf('=');
+			options.put(eq > 0 ? arg.substring(2, eq) : arg.substring(2), eq > 0 ? arg.substring(eq + 1) : "true");
+		}
+		new LoadHarness(options).run(System.out);
+		System.exit(0);
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private int intOption(String name, int defaultValue) {
+		return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+	}
+
+	void run(PrintStream out) throws Exception {
+		String mode = option("mode", "rate");
+		long warmup = TimeUnit.SECONDS.toNanos(intOption("warmup", 10));
+		long duration = TimeUnit.SECONDS.toNanos(intOption("duration", 60));
+
+		outputDirectory = Files.createTempDirectory("wkhtmltopdf-load").toFile();
+		createInvoker();
+		ExecutorService clients = newClientExecutor();
+		ChildProcessSampler sampler = new ChildProcessSampler();
+		try {
+			long start = System.nanoTime();
+			measureStart = start + warmup;
+			long end = measureStart + duration;
+			sampler.start(measureStart);
+			if ("concurrency".equals(mode)) {
+				runConcurrency(clients, intOption("concurrency", 4), end);
+			} else {
+				runRate(clients, Double.parseDouble(option("rate", "10")), end);
+			}
+			clients.shutdown();
+			clients.awaitTermination(1, TimeUnit.HOURS);
+			sampler.stop();
+			report(out, mode, duration, sampler);
+		} finally {
+			clients.shutdownNow();
+			if (workerPool != null) {
+				workerPool.close();
+			}
+			deleteOutputDirectory();
+		}
+	}
+
+	private void createInvoker() throws Exception {
+		String type = option("invoker", "fork");
+		int processes = intOption("processes", 4);
+		invoker = "pooled".equals(type) ? new PooledInvoker(processes) : new DefaultInvoker();
+		invoker.setOutputHandler(null);
+		invoker.setErrorHandler(null);
+		invoker.setMetrics(new QueueWaitMetrics());
+		if (Boolean.parseBoolean(option("stub", "false"))) {
+			invoker.setWkhtmltopdfHome(Fixtures.fakeHome());
+			invoker.setProcessLauncher(new StubProcessLauncher(new byte[0], Fixtures.stderrTranscript(1)));
+		} else if (options.containsKey("home")) {
+			invoker.setWkhtmltopdfHome(new File(options.get("home")));
+		}
+		if ("workers".equals(type)) {
+			if (Boolean.parseBoolean(option("stub", "false"))) {
+				throw new IllegalArgumentException("The stub process can not serve a worker pool.");
+			}
+			// the template only holds options, the jobs bring their pages and output
+			workerPool = new WkhtmlToPdfWorkerPool(invoker, new DefaultWkhtmlToPdfInvocationRequest(), processes);
+			workerPool.prestart();
+			invoker.setWorkerPool(workerPool);
+		}
+	}
+
+	private ExecutorService newClientExecutor() throws Exception {
+		if ("virtual".equals(option("threads", "platform"))) {
+			// looked up reflectively, the module is compiled for Java 8
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = builderType.getMethod("factory");
+			return Executors.newCachedThreadPool((ThreadFactory) factory.invoke(builder));
+		}
+		return Executors.newCachedThreadPool(ProcessThreads.newDaemonThreadFactory("load-client-"));
+	}
+
+	private DefaultWkhtmlToPdfInvocationRequest newRequest() {
+		DefaultWkhtmlToPdfInvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		request.setURL(option("url", "https://example.com/"));
+		request.setOutputSink(OutputSink.toFile(new File(outputDirectory, "render-" + sequence.incrementAndGet() + ".pdf")));
+		request.setTimeout(Long.parseLong(option("timeout", "30000")), TimeUnit.MILLISECONDS);
+		request.setErrorHandler(new TailOutputHandler(4096, Charset.defaultCharset()));
+		return request;
+	}
+
+	/**
+	 * Starts a request every <code>1/rate</code> seconds, whether or not the
+	 * earlier ones are finished.
+	 */
+	private void runRate(ExecutorService clients, double rate, long end) {
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long start = System.nanoTime();
+		for (long i = 0;; i++) {
+			final long intended = start + i * interval;
+			if (intended >= end) {
+				return;
+			}
+			long now;
+			while ((now = System.nanoTime()) < intended) {
+				LockSupport.parkNanos(intended - now);
+			}
+			clients.execute(new Runnable() {
+
+				public void run() {
+					render(intended);
+				}
+
+			});
+		}
+	}
+
+	/**
+	 * Keeps the given number of requests running back to back.
+	 */
+	private void runConcurrency(ExecutorService clients, int concurrency, final long end) {
+		for (int i = 0; i < concurrency; i++) {
+			clients.execute(new Runnable() {
+
+				public void run() {
+					while (System.nanoTime() < end) {
+						render(System.nanoTime());
+					}
+				}
+
+			});
+		}
+	}
+
+	private void render(long intended) {
+		DefaultWkhtmlToPdfInvocationRequest request = newRequest();
+		long start = System.nanoTime();
+		InvocationResult result;
+		try {
+			result = invoker.execute(request);
+		} catch (Exception e) {
+			result = null;
+			if (firstFailure == null) {
+				firstFailure = e.toString();
+			}
+		}
+		long done = System.nanoTime();
+		File output = request.getOutputSink().getFile();
+		if (output != null) {
+			output.delete();
+		}
+		if (intended < measureStart) {
+			return;
+		}
+		latency.recordValue(TimeUnit.NANOSECONDS.toMicros(done - intended));
+		serviceTime.recordValue(TimeUnit.NANOSECONDS.toMicros(done - start));
+		if (result == null) {
+			failed.incrementAndGet();
+		} else if (result.isTimedOut()) {
+			timedOut.incrementAndGet();
+		} else if (result.getExitCode() != 0 || result.getExecutionException() != null) {
+			failed.incrementAndGet();
+			if (firstFailure == null) {
+				firstFailure = "exit code " + result.getExitCode() + ": "
+						+ ((TailOutputHandler) request.getErrorHandler(null)).getTail().trim();
+			}
+		} else {
+			succeeded.incrementAndGet();
+		}
+	}
+
+	private void report(PrintStream out, String mode, long duration, ChildProcessSampler sampler) throws IOException {
+		long total = succeeded.get() + failed.get() + timedOut.get();
+		double seconds = duration / 1e9;
+		double cpuPerRender = total > 0 ? sampler.getCpuMillis() / (double) total : 0;
+		String load = "concurrency".equals(mode) ? option("concurrency", "4") : option("rate", "10") + "/s";
+		if ("csv".equals(option("format", "text"))) {
+			out.println("invoker,processes,threads,virtualPumps,mode,load,requests,ok,failed,timedOut,throughput,"
+					+ "p50Ms,p99Ms,p999Ms,maxMs,serviceP50Ms,serviceP99Ms,queueP50Ms,queueP99Ms,childCpuMsPerRender,peakChildRssMb");
+			out.println(String.format(Locale.ROOT, "%s,%s,%s,%s,%s,%s,%d,%d,%d,%d,%.2f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f",
+					option("invoker", "fork"), option("processes", "4"), option("threads", "platform"),
+					ProcessThreads.isVirtualThreadsEnabled(), mode, load, total, succeeded.get(), failed.get(),
+					timedOut.get(), total / seconds, millis(latency, 50), millis(latency, 99), millis(latency, 99.9),
+					latency.getMaxValue() / 1000.0, millis(serviceTime, 50), millis(serviceTime, 99),
+					millis(queueWait, 50), millis(queueWait, 99), cpuPerRender, sampler.getPeakRss() / 1048576.0));
+		} else {
+			out.println(String.format(Locale.ROOT, "invoker=%s processes=%s threads=%s virtualPumps=%s mode=%s load=%s duration=%.0fs",
+					option("invoker", "fork"), option("processes", "4"), option("threads", "platform"),
+					ProcessThreads.isVirtualThreadsEnabled(), mode, load, seconds));
+			out.println(String.format(Locale.ROOT, "requests     %d ok, %d failed, %d timed out, %.2f/s",
+					succeeded.get(), failed.get(), timedOut.get(), total / seconds));
+			out.println(summary("latency", latency));
+			out.println(summary("service", serviceTime));
+			out.println(summary("queue wait", queueWait));
+			out.println(String.format(Locale.ROOT, "child cpu    %.1f ms/render, peak child rss %.1f MB",
+					cpuPerRender, sampler.getPeakRss() / 1048576.0));
+			if (firstFailure != null) {
+				out.println("first failure " + firstFailure);
+			}
+		}
+		String hdrLog = options.get("hdr-log");
+		if (hdrLog != null) {
+			HistogramLogWriter writer = new HistogramLogWriter(new File(hdrLog));
+			try {
+				writer.outputLogFormatVersion();
+				writer.outputLegend();
+				latency.setStartTimeStamp(0);
+				latency.setEndTimeStamp(TimeUnit.NANOSECONDS.toMillis(duration));
+				writer.outputIntervalHistogram(latency);
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private static String summary(String name, Histogram histogram) {
+		return String.format(Locale.ROOT, "%-12s p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms", name,
+				millis(histogram, 50), millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / 1000.0);
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	private void deleteOutputDirectory() {
+		File[] files = outputDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		outputDirectory.delete();
+	}
+
+	/**
+	 * Records the queue wait the invoker reports, ignoring everything else.
+	 */
+	private class QueueWaitMetrics implements InvokerMetrics {
+
+		public void queued(String type, long duration) {
+			if (System.nanoTime() - duration >= measureStart) {
+				queueWait.recordValue(TimeUnit.NANOSECONDS.toMicros(duration));
+			}
+		}
+
+		public void commandBuilt(String type, long duration) {
+		}
+
+		public void processSpawned(String type, long duration) {
+		}
+
+		public void processExited(String type, long duration, int exitCode) {
+		}
+
+		public void outputDrained(String type, long duration, long bytes) {
+		}
+
+		public void errorOutputDrained(String type, long lines) {
+		}
+
+		public void timedOut(String type) {
+		}
+
+		public void killed(String type) {
+		}
+
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.InvocationOutputHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.PrintStreamHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.ProgressEvent;
+import com.github.hiwepy.wkhtmltopdf.invoker.ProgressListener;
+import com.github.hiwepy.wkhtmltopdf.invoker.ProgressOutputHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.TailOutputHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamConsumer;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessRunner;
+
+/**
+ * Measures how fast the output handlers take the error output of a 100 page
+ * render, as pumped by the {@link ProcessRunner}. The print stream writes to
+ * nowhere, so only the handler itself is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputHandlerBenchmark {
+
+	@Param({ "printStream", "tail", "progress" })
+	public String handler;
+
+	private byte[] transcript;
+
+	private ByteStreamConsumer consumer;
+
+	@Setup
+	public void setUp(final Blackhole blackhole) {
+		transcript = Fixtures.stderrTranscript(100);
+		InvocationOutputHandler outputHandler;
+		if ("tail".equals(handler)) {
+			outputHandler = new TailOutputHandler();
+		} else if ("progress".equals(handler)) {
+			outputHandler = new ProgressOutputHandler(new ProgressListener() {
+
+				public void progressChanged(ProgressEvent event) {
+					blackhole.consume(event);
+				}
+
+			});
+		} else {
+			outputHandler = new PrintStreamHandler(new PrintStream(new OutputStream() {
+
+				@Override
+				public void write(int b) {
+					// discard
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					// discard
+				}
+
+			}), false);
+		}
+		consumer = ProcessRunner.lines(outputHandler);
+	}
+
+	@Benchmark
+	public long consume() throws Exception {
+		return consumer.consume(new ByteArrayInputStream(transcript));
+	}
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.cli.Commandline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.command.EnvironmentCommandline;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.DirectProcessLauncher;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessLauncher;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ShellProcessLauncher;
+
+/**
+ * Compares the spawn latency of {@link ShellProcessLauncher} and
+ * {@link DirectProcessLauncher}: the time from launching a short-lived
+ * executable until it has exited. Unlike the other benchmarks it forks real
+ * processes, <code>/bin/true</code> by default; pick another one with
+ * <code>-p executable=...</code> and the fork mode of the JDK with
+ * <code>-p launchMechanism=POSIX_SPAWN|VFORK|FORK</code>.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessLauncherBenchmark {
+
+	@Param({ "/bin/true" })
+	public String executable;
+
+	@Param({ "shell", "direct" })
+	public String launcher;
+
+	@Param({ "default" })
+	public String launchMechanism;
+
+	private ProcessLauncher processLauncher;
+
+	private Commandline cli;
+
+	@Setup
+	public void setUp() {
+		if (!"default".equals(launchMechanism)) {
+			// the forked JVM has not started a process yet
+			DirectProcessLauncher.setLaunchMechanism(DirectProcessLauncher.LaunchMechanism.valueOf(launchMechanism));
+		}
+		processLauncher = "shell".equals(launcher) ? new ShellProcessLauncher() : new DirectProcessLauncher();
+		cli = new EnvironmentCommandline();
+		cli.setExecutable(executable);
+		cli.createArg().setValue("--cookie");
+		cli.createArg().setValue("session id");
+	}
+
+	@Benchmark
+	public int launch() throws Exception {
+		Process process = processLauncher.launch(cli);
+		process.getOutputStream().close();
+		int exitCode = process.waitFor();
+		process.getInputStream().close();
+		process.getErrorStream().close();
+		return exitCode;
+	}
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.DiskRenderCache;
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.MemoryRenderCache;
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RenderCache;
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RequestFingerprint;
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+import com.github.hiwepy.wkhtmltopdf.invoker.command.WkhtmlToPdfCommandLineBuilder;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * Measures what the render cache adds to every request, fingerprinting the
+ * options and the page, and what a hit costs, streaming a cached document
+ * from disk or from memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderCacheBenchmark {
+
+	/**
+	 * The size of the page and of the cached document in bytes.
+	 */
+	@Param({ "16384", "1048576" })
+	public int size;
+
+	private DefaultWkhtmlToPdfInvocationRequest request;
+
+	private CompiledInvocationTemplate template;
+
+	private RequestFingerprint fingerprint;
+
+	private DiskRenderCache cache;
+
+	private MemoryRenderCache memory;
+
+	private OutputSink sink;
+
+	@Setup
+	public void setUp() throws Exception {
+		File home = Fixtures.fakeHome();
+		final byte[] page = new byte[size];
+		Arrays.fill(page, (byte) 'x');
+		request = Fixtures.largeRequest(home);
+		request.setURL(null);
+		request.setInputSource(InputSource.fromSupplier(new Supplier<InputStream>() {
+
+			public InputStream get() {
+				return new ByteArrayInputStream(page);
+			}
+
+		}));
+		WkhtmlToPdfCommandLineBuilder builder = new WkhtmlToPdfCommandLineBuilder();
+		builder.setWkhtmltopdfHome(home);
+		template = builder.compile(request);
+		fingerprint = fingerprint();
+		
+		File directory = Files.createTempDirectory("wkhtmltopdf-cache").toFile();
+		directory.deleteOnExit();
+		cache = new DiskRenderCache(directory);
+		memory = new MemoryRenderCache(64L * 1024 * 1024, size, MemoryRenderCache.Storage.HEAP, null);
+		for (RenderCache target : new RenderCache[] { cache, memory }) {
+			try (RenderCache.EntryWriter writer = target.stage(fingerprint)) {
+				writer.write(page);
+				writer.commit();
+			}
+		}
+		sink = OutputSink.toStream(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				// discard
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+
+		});
+	}
+
+	@Benchmark
+	public RequestFingerprint fingerprint() throws IOException {
+		return RequestFingerprint.compute("wkhtmltopdf 0.12.6", template, request, null);
+	}
+
+	@Benchmark
+	public boolean diskHit() throws IOException {
+		return cache.deliver(fingerprint, sink);
+	}
+
+	@Benchmark
+	public boolean memoryHit() throws IOException {
+		return memory.deliver(fingerprint, sink);
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.codehaus.plexus.util.cli.Commandline;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessLauncher;
+
+/**
+ * Launches an in-memory process that prints canned output and exits right
+ * away, so the invoker overhead can be measured without forking.
+ */
+class StubProcessLauncher implements ProcessLauncher {
+
+	private final byte[] stdout;
+
+	private final byte[] stderr;
+
+	StubProcessLauncher(byte[] stdout, byte[] stderr) {
+		this.stdout = stdout;
+		this.stderr = stderr;
+	}
+
+	public Process launch(Commandline cli) {
+		return new StubProcess(stdout, stderr);
+	}
+
+	static class StubProcess extends Process {
+
+		private final InputStream stdout;
+
+		private final InputStream stderr;
+
+		private final OutputStream stdin = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				// discard
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+
+		};
+
+		StubProcess(byte[] stdout, byte[] stderr) {
+			this.stdout = new ByteArrayInputStream(stdout);
+			this.stderr = new ByteArrayInputStream(stderr);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return stdin;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return stdout;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return stderr;
+		}
+
+		@Override
+		public int waitFor() {
+			return 0;
+		}
+
+		@Override
+		public int exitValue() {
+			return 0;
+		}
+
+		@Override
+		public void destroy() {
+			// nothing to kill
+		}
+
+	}
+
+}
@@ -0,0 +1,458 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.simulator;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Simulates the wkhtmltopdf command line tool, so the invoker can be load and
+ * failure tested without the binary and without network access. It accepts
+ * the argument grammar of wkhtmltopdf 0.12, including
+ * <code>--read-args-from-stdin</code>, and writes a valid minimal PDF to the
+ * output file or to standard output.
+ * <p>
+ * The behaviour is configured by environment variables, or by system
+ * properties named <code>fake.wkhtmltopdf.&lt;name&gt;</code> in lower case:
+ * <ul>
+ * <li><code>FAKE_WKHTMLTOPDF_LATENCY_MS</code>: render time, default 100,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_JITTER_MS</code>: maximum random extra render time, default 0,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_PAGES</code>: pages per document, default 1,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_OUTPUT_BYTES</code>: minimum document size, default 0,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_PROGRESS</code>: print progress to stderr unless <code>--quiet</code>, default true,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_EXIT_CODE</code>: exit code of every render, default 0,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_FAILURE_RATE</code>: share of renders failing with a network error and exit code 1,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_HANG_RATE</code>: share of renders that never finish,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_CRASH_RATE</code>: share of renders dying with exit code 139,</li>
+ * <li><code>FAKE_WKHTMLTOPDF_SEED</code>: seed of the random decisions, default 0. Equal
+ * arguments and seed give equal behaviour.</li>
+ * </ul>
+ */
+public class FakeWkhtmltopdf {
+
+	static final String VERSION = "wkhtmltopdf 0.12.6 (simulated)";
+
+	static final int EXIT_ERROR = 1;
+
+	static final int EXIT_CRASH = 139;
+
+	/**
+	 * Switches without a value, all other long switches take one.
+	 */
+	private static final Set<String> FLAGS = new HashSet<String>(Arrays.asList("--collate", "--no-collate", "-g",
+			"--grayscale", "-l", "--lowquality", "-q", "--quiet", "--outline", "--no-outline",
+			"--no-pdf-compression", "--disable-smart-shrinking", "--enable-smart-shrinking", "--background",
+			"--no-background", "--disable-external-links", "--enable-external-links", "--disable-forms",
+			"--enable-forms", "--images", "--no-images", "--disable-internal-links", "--enable-internal-links",
+			"-n", "--disable-javascript", "--enable-javascript", "--disable-local-file-access",
+			"--enable-local-file-access", "--exclude-from-outline", "--include-in-outline", "--print-media-type",
+			"--no-print-media-type", "--disable-plugins", "--enable-plugins", "--stop-slow-scripts",
+			"--no-stop-slow-scripts", "--debug-javascript", "--no-debug-javascript", "--footer-line",
+			"--no-footer-line", "--header-line", "--no-header-line", "--disable-toc-back-links",
+			"--enable-toc-back-links", "--keep-relative-links", "--resolve-relative-links", "--use-xserver",
+			"--disable-dotted-lines", "--disable-toc-links", "--custom-header-propagation",
+			"--no-custom-header-propagation", "--read-args-from-stdin", "--dump-default-toc-xsl", "-H",
+			"--extended-help", "-h", "--help", "-V", "--version", "--license", "--htmldoc", "--readme",
+			"--manpage"));
+
+	private static final Set<String> PAIRS = new HashSet<String>(
+			Arrays.asList("--cookie", "--custom-header", "--post", "--post-file", "--replace"));
+
+	private static final Set<String> SHORT_WITH_VALUE = new HashSet<String>(
+			Arrays.asList("-d", "-O", "-s", "-T", "-B", "-L", "-R", "-p"));
+
+	private final PrintStream err;
+
+	private final OutputStream out;
+
+	private final InputStream in;
+
+	private final Settings settings;
+
+	FakeWkhtmltopdf(InputStream in, OutputStream out, PrintStream err) {
+		this.in = in;
+		this.out = out;
+		this.err = err;
+		this.settings = Settings.load();
+	}
+
+	public static void main(String[] args) throws Exception {
+		FakeWkhtmltopdf simulator = new FakeWkhtmltopdf(System.in, System.out, System.err);
+		int exitCode = simulator.run(args);
+		System.out.flush();
+		System.err.flush();
+		if (exitCode == EXIT_CRASH) {
+			Runtime.getRuntime().halt(exitCode);
+		}
+		System.exit(exitCode);
+	}
+
+	/**
+	 * Runs the simulator.
+	 *
+	 * @param args The command line arguments.
+	 * @return The exit code.
+	 */
+	int run(String[] args) throws IOException, InterruptedException {
+		Job global;
+		try {
+			global = parse(Arrays.asList(args), null);
+		} catch (IllegalArgumentException e) {
+			err.println(e.getMessage());
+			return EXIT_ERROR;
+		}
+		if (global.version) {
+			out.write((VERSION + "\n").getBytes(StandardCharsets.US_ASCII));
+			return 0;
+		}
+		if (!global.readArgsFromStdin) {
+			if (global.pages.isEmpty() || global.output == null) {
+				err.println("You need to specify at least one input file, and exactly one output file");
+				err.println("Use - for stdin or stdout");
+				return EXIT_ERROR;
+			}
+			return render(global, null);
+		}
+
+		// one job per line, the command line options apply to all of them
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		int exitCode = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			Job job;
+			try {
+				job = parse(split(line), global);
+			} catch (IllegalArgumentException e) {
+				err.println(e.getMessage());
+				done(global, line);
+				exitCode = EXIT_ERROR;
+				continue;
+			}
+			if (job.pages.isEmpty() || job.output == null || "-".equals(job.output)) {
+				err.println("You need to specify at least one input file, and exactly one output file");
+				done(job, line);
+				exitCode = EXIT_ERROR;
+				continue;
+			}
+			int jobExitCode = render(job, line);
+			if (jobExitCode == EXIT_CRASH) {
+				return jobExitCode;
+			}
+			if (jobExitCode != 0) {
+				exitCode = jobExitCode;
+			}
+		}
+		return exitCode;
+	}
+
+	/**
+	 * Parses the arguments of a render, optionally on top of the global options
+	 * of a <code>--read-args-from-stdin</code> session.
+	 */
+	static Job parse(List<String> args, Job global) {
+		Job job = new Job();
+		if (global != null) {
+			job.quiet = global.quiet;
+			job.seedArguments.addAll(global.seedArguments);
+		}
+		job.seedArguments.addAll(args);
+		List<String> operands = new ArrayList<String>();
+		for (int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			if (arg.equals("-") || !arg.startsWith("-")) {
+				if ("cover".equals(arg)) {
+					i = require(args, i, 1);
+					operands.add(args.get(i));
+				} else if (!"toc".equals(arg) && !"page".equals(arg)) {
+					operands.add(arg);
+				}
+				continue;
+			}
+			if ("-q".equals(arg) || "--quiet".equals(arg)) {
+				job.quiet = true;
+			} else if ("-V".equals(arg) || "--version".equals(arg)) {
+				job.version = true;
+			} else if ("--read-args-from-stdin".equals(arg)) {
+				job.readArgsFromStdin = true;
+			}
+			if (FLAGS.contains(arg)) {
+				continue;
+			}
+			if (PAIRS.contains(arg)) {
+				i = require(args, i, 2);
+			} else if (arg.startsWith("--") || SHORT_WITH_VALUE.contains(arg)) {
+				i = require(args, i, 1);
+			} else {
+				throw new IllegalArgumentException("Unknown switch " + arg);
+			}
+		}
+		if (!operands.isEmpty()) {
+			job.output = operands.remove(operands.size() - 1);
+		}
+		job.pages.addAll(operands);
+		return job;
+	}
+
+	private static int require(List<String> args, int index, int count) {
+		if (index + count >= args.size()) {
+			throw new IllegalArgumentException("Missing argument for " + args.get(index));
+		}
+		return index + count;
+	}
+
+	/**
+	 * Splits a <code>--read-args-from-stdin</code> line like wkhtmltopdf does:
+	 * on whitespace, honouring double quotes and backslash escapes.
+	 */
+	static List<String> split(String line) {
+		List<String> args = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false;
+		boolean pending = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length()) {
+				current.append(line.charAt(++i));
+				pending = true;
+			} else if (c == '"') {
+				quoted = !quoted;
+				pending = true;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (pending) {
+					args.add(current.toString());
+					current.setLength(0);
+					pending = false;
+				}
+			} else {
+				current.append(c);
+				pending = true;
+			}
+		}
+		if (pending) {
+			args.add(current.toString());
+		}
+		return args;
+	}
+
+	private int render(Job job, String sessionLine) throws IOException, InterruptedException {
+		Random random = new Random(settings.seed * 31 + job.seedArguments.hashCode());
+		boolean progress = settings.progress && !job.quiet;
+
+		if (sessionLine == null && job.pages.contains("-")) {
+			drain(in);
+		}
+
+		long latency = settings.latency + (settings.jitter > 0 ? (long) (random.nextDouble() * settings.jitter) : 0);
+		double dice = random.nextDouble();
+
+		phase(progress, "Loading pages", 1);
+		if (dice < settings.hangRate) {
+			bar(progress, latency, 0, 40);
+			// wait to be killed, like a page whose scripts never settle
+			Thread.sleep(Long.MAX_VALUE);
+		}
+		bar(progress, latency * 6 / 10, 0, 100);
+		dice -= settings.hangRate;
+		if (dice >= 0 && dice < settings.crashRate) {
+			err.println("Segmentation fault");
+			return EXIT_CRASH;
+		}
+		dice -= settings.crashRate;
+		if (dice >= 0 && dice < settings.failureRate) {
+			err.println("Error: Failed loading page " + job.pages.get(0)
+					+ " (sometimes it will work just to ignore this error with --load-error-handling ignore)");
+			err.println("Exit with code 1 due to network error: HostNotFoundError");
+			done(job, sessionLine);
+			return EXIT_ERROR;
+		}
+		phase(progress, "Counting pages", 2);
+		objects(progress, job.pages.size());
+		phase(progress, "Resolving links", 4);
+		objects(progress, job.pages.size());
+		phase(progress, "Loading headers and footers", 5);
+		phase(progress, "Printing pages", 6);
+		if (progress) {
+			err.print("[" + bar(0) + "] Preparing\r");
+		}
+		long perPage = latency * 4 / 10 / Math.max(1, settings.pages);
+		for (int page = 1; page <= settings.pages; page++) {
+			Thread.sleep(perPage);
+			if (progress) {
+				err.print("[" + bar(page * 100 / settings.pages) + "] Page " + page + " of " + settings.pages + "\r");
+			}
+		}
+		if (progress) {
+			err.println();
+		}
+
+		byte[] pdf = MinimalPdf.create(settings.pages, settings.outputBytes);
+		if ("-".equals(job.output)) {
+			out.write(pdf);
+			out.flush();
+		} else {
+			try (OutputStream file = new FileOutputStream(job.output)) {
+				file.write(pdf);
+			} catch (IOException e) {
+				err.println("Error: Unable to write to destination");
+				done(job, sessionLine);
+				return EXIT_ERROR;
+			}
+		}
+		done(job, sessionLine);
+		return settings.exitCode;
+	}
+
+	private void done(Job job, String sessionLine) {
+		// a session needs the marker to tell the jobs apart
+		if (!job.quiet || sessionLine != null) {
+			err.println("Done");
+		}
+		err.flush();
+	}
+
+	private void phase(boolean progress, String name, int index) {
+		if (progress) {
+			err.println(name + " (" + index + "/6)");
+		}
+	}
+
+	private void bar(boolean progress, long duration, int from, int to) throws InterruptedException {
+		int steps = Math.max(1, (to - from) / 10);
+		for (int step = 0; step <= steps; step++) {
+			if (progress) {
+				int percent = from + (to - from) * step / steps;
+				err.print("[" + bar(percent) + "] " + percent + "%\r");
+			}
+			if (step < steps) {
+				Thread.sleep(duration / steps);
+			}
+		}
+		if (progress) {
+			err.println();
+		}
+	}
+
+	private void objects(boolean progress, int count) {
+		if (progress) {
+			for (int i = 1; i <= count; i++) {
+				err.print("[" + bar(i * 100 / count) + "] Object " + i + " of " + count + "\r");
+			}
+			err.println();
+		}
+	}
+
+	private static String bar(int percent) {
+		StringBuilder sb = new StringBuilder(60);
+		int filled = percent * 60 / 100;
+		for (int i = 0; i < 60; i++) {
+			sb.append(i < filled ? '=' : i == filled ? '>' : ' ');
+		}
+		return sb.toString();
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (in.read(buffer) != -1) {
+			// the HTML is not rendered
+		}
+	}
+
+	/**
+	 * A render parsed from the command line or a session line.
+	 */
+	static class Job {
+
+		final List<String> pages = new ArrayList<String>();
+
+		final List<String> seedArguments = new ArrayList<String>();
+
+		String output;
+
+		boolean quiet;
+
+		boolean version;
+
+		boolean readArgsFromStdin;
+
+	}
+
+	/**
+	 * The behaviour of the simulator.
+	 */
+	static class Settings {
+
+		long latency;
+
+		long jitter;
+
+		int pages;
+
+		int outputBytes;
+
+		boolean progress;
+
+		int exitCode;
+
+		double failureRate;
+
+		double hangRate;
+
+		double crashRate;
+
+		long seed;
+
+		static Settings load() {
+			Settings settings = new Settings();
+			settings.latency = Long.parseLong(setting("LATENCY_MS", "100"));
+			settings.jitter = Long.parseLong(setting("JITTER_MS", "0"));
+			settings.pages = Math.max(1, Integer.parseInt(setting("PAGES", "1")));
+			settings.outputBytes = Integer.parseInt(setting("OUTPUT_BYTES", "0"));
+			settings.progress = Boolean.parseBoolean(setting("PROGRESS", "true"));
+			settings.exitCode = Integer.parseInt(setting("EXIT_CODE", "0"));
+			settings.failureRate = Double.parseDouble(setting("FAILURE_RATE", "0"));
+			settings.hangRate = Double.parseDouble(setting("HANG_RATE", "0"));
+			settings.crashRate = Double.parseDouble(setting("CRASH_RATE", "0"));
+			settings.seed = Long.parseLong(setting("SEED", "0"));
+			return settings;
+		}
+
+		private static String setting(String name, String defaultValue) {
+			String value = System.getProperty("fake.wkhtmltopdf." + name.toLowerCase(Locale.ROOT));
+			if (value == null) {
+				value = System.getenv("FAKE_WKHTMLTOPDF_" + name);
+			}
+			return value != null && !value.trim().isEmpty() ? value.trim() : defaultValue;
+		}
+
+	}
+
+}
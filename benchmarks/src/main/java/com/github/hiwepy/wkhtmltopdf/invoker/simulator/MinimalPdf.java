@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.simulator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the smallest PDF readers accept: a catalog, a page tree of A4 pages
+ * with one line of text each, a font and a correct cross-reference table.
+ */
+final class MinimalPdf {
+
+	private MinimalPdf() {
+	}
+
+	/**
+	 * Creates a document.
+	 * 
+	 * @param pages The number of pages, at least 1.
+	 * @param minimumSize The minimum size in bytes, reached by padding the
+	 *            first page with comments that renderers ignore.
+	 * @return The document.
+	 */
+	static byte[] create(int pages, int minimumSize) {
+		List<String> objects = new ArrayList<String>();
+		// 1 catalog, 2 page tree, 3 font, then a page and its content per page
+		objects.add("<< /Type /Catalog /Pages 2 0 R >>");
+		StringBuilder kids = new StringBuilder();
+		for (int page = 0; page < pages; page++) {
+			kids.append(4 + page * 2).append(" 0 R ");
+		}
+		objects.add("<< /Type /Pages /Kids [ " + kids + "] /Count " + pages + " >>");
+		objects.add("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>");
+		for (int page = 0; page < pages; page++) {
+			String text = "BT /F1 12 Tf 72 770 Td (Simulated page " + (page + 1) + ") Tj ET\n";
+			objects.add("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] /Resources << /Font << /F1 3 0 R >> >> /Contents "
+					+ (5 + page * 2) + " 0 R >>");
+			objects.add(stream(text));
+		}
+
+		String document = write(objects);
+		int missing = minimumSize - document.length();
+		if (missing > 0) {
+			StringBuilder padding = new StringBuilder(missing + 80);
+			while (padding.length() < missing) {
+				padding.append("% padding to the configured output size .................................\n");
+			}
+			String text = "BT /F1 12 Tf 72 770 Td (Simulated page 1) Tj ET\n";
+			objects.set(4, stream(padding + text));
+			document = write(objects);
+		}
+		return document.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String stream(String content) {
+		return "<< /Length " + content.length() + " >>\nstream\n" + content + "endstream";
+	}
+
+	private static String write(List<String> objects) {
+		StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+		long[] offsets = new long[objects.size()];
+		for (int i = 0; i < objects.size(); i++) {
+			offsets[i] = pdf.length();
+			pdf.append(i + 1).append(" 0 obj\n").append(objects.get(i)).append("\nendobj\n");
+		}
+		int xref = pdf.length();
+		pdf.append("xref\n0 ").append(objects.size() + 1).append('\n');
+		pdf.append("0000000000 65535 f \n");
+		for (long offset : offsets) {
+			pdf.append(String.format("%010d 00000 n \n", offset));
+		}
+		pdf.append("trailer\n<< /Size ").append(objects.size() + 1).append(" /Root 1 0 R >>\n");
+		pdf.append("startxref\n").append(xref).append("\n%%EOF\n");
+		return pdf.toString();
+	}
+
+}
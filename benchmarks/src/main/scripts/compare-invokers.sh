@@ -0,0 +1,27 @@
+#!/bin/sh
+#
+# Runs the load harness for each invoker configuration on this machine and
+# prints one CSV table. Extra arguments are passed to every run, e.g.
+#
+#   compare-invokers.sh --home=src/main/scripts --rate=20 --duration=120
+#
+DIR=$(cd "$(dirname "$0")" && pwd)
+JAR=${BENCHMARKS_JAR:-$DIR/../../../target/benchmarks.jar}
+if [ -n "$JAVA_HOME" ]; then
+	JAVA="$JAVA_HOME/bin/java"
+else
+	JAVA=java
+fi
+HEADER=true
+for INVOKER in fork pooled workers; do
+	for THREADS in platform virtual; do
+		OUTPUT=$("$JAVA" -cp "$JAR" com.github.hiwepy.wkhtmltopdf.invoker.benchmarks.LoadHarness \
+			--invoker=$INVOKER --threads=$THREADS --format=csv "$@") || exit 1
+		if [ "$HEADER" = true ]; then
+			echo "$OUTPUT"
+			HEADER=false
+		else
+			echo "$OUTPUT" | tail -n +2
+		fi
+	done
+done
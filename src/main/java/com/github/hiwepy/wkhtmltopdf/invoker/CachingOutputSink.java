@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * Sink streaming the document into the sink of the request while copying it
+ * into a cache entry. A failing copy, e.g. because the disk is full or the
+ * document is larger than the cache, only stops the copy, not the render.
+ */
+final class CachingOutputSink extends OutputSink {
+
+	private final OutputSink delegate;
+
+	private final OutputStream copy;
+
+	private volatile boolean copied = true;
+
+	CachingOutputSink(OutputSink delegate, OutputStream copy) {
+		this.delegate = delegate;
+		this.copy = copy;
+	}
+
+	@Override
+	public String getArgument() {
+		return delegate.getArgument();
+	}
+
+	@Override
+	public File getFile() {
+		return delegate.getFile();
+	}
+
+	public long consume(InputStream in) throws IOException {
+		return delegate.consume(new FilterInputStream(in) {
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1 && copied) {
+					try {
+						copy.write(b);
+					} catch (IOException e) {
+						copied = false;
+					}
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0 && copied) {
+					try {
+						copy.write(b, off, n);
+					} catch (IOException e) {
+						copied = false;
+					}
+				}
+				return n;
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+
+		});
+	}
+
+	/**
+	 * @return <code>true</code> if everything consumed so far was copied.
+	 */
+	boolean isCopied() {
+		return copied;
+	}
+
+}
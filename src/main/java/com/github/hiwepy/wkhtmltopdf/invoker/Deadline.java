@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
+
+/**
+ * A point in time by which an invocation has to be finished. A deadline is
+ * absolute, so handing the same deadline to nested or chunked invocations
+ * makes them share the remaining time budget rather than each getting a
+ * fresh timeout. Time spent waiting for a process slot or a worker counts
+ * against the deadline as well.
+ */
+public final class Deadline implements Comparable<Deadline> {
+
+	private final long deadlineNanos;
+
+	private Deadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Creates a deadline expiring after the given duration from now.
+	 * 
+	 * @param duration The duration, may be zero or negative for an expired deadline.
+	 * @param unit The unit of the duration, must not be <code>null</code>.
+	 * @return The deadline, never <code>null</code>.
+	 */
+	public static Deadline after(long duration, TimeUnit unit) {
+		return new Deadline(System.nanoTime() + unit.toNanos(duration));
+	}
+
+	/**
+	 * Gets the effective deadline of the given request, the earlier one of its
+	 * explicit deadline and its timeout counted from now.
+	 * 
+	 * @param request The request, must not be <code>null</code>.
+	 * @return The deadline or <code>null</code> if the request is not time limited.
+	 */
+	public static Deadline of(InvocationRequest request) {
+		Deadline deadline = request.getDeadline();
+		long timeoutMillis = request.getTimeout(TimeUnit.MILLISECONDS);
+		if (timeoutMillis > 0) {
+			Deadline timeout = after(timeoutMillis, TimeUnit.MILLISECONDS);
+			deadline = (deadline == null) ? timeout : deadline.min(timeout);
+		}
+		return deadline;
+	}
+
+	/**
+	 * @param unit The unit of the returned value, must not be <code>null</code>.
+	 * @return The time remaining until the deadline, <code>0</code> if it has expired.
+	 */
+	public long timeRemaining(TimeUnit unit) {
+		long remaining = deadlineNanos - System.nanoTime();
+		return remaining > 0 ? unit.convert(remaining, TimeUnit.NANOSECONDS) : 0;
+	}
+
+	/**
+	 * @return <code>true</code> if the deadline has passed.
+	 */
+	public boolean isExpired() {
+		return deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * @param other The other deadline, may be <code>null</code>.
+	 * @return The earlier of this and the other deadline.
+	 */
+	public Deadline min(Deadline other) {
+		return (other != null && other.compareTo(this) < 0) ? other : this;
+	}
+
+	public int compareTo(Deadline other) {
+		long diff = deadlineNanos - other.deadlineNanos;
+		return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return "Deadline[" + timeRemaining(TimeUnit.MILLISECONDS) + " ms remaining]";
+	}
+
+}
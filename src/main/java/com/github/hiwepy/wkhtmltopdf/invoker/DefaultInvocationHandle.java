@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * Default handle of an invocation. Each stage of the invocation attaches the
+ * action that aborts it, e.g. removing the task from the executor queue,
+ * interrupting the wait for a process slot or killing the process, and
+ * {@link #cancel()} runs whatever action is attached at that moment.
+ */
+public final class DefaultInvocationHandle implements InvocationHandle {
+
+	private final CompletableFuture<InvocationResult> future = new CompletableFuture<InvocationResult>();
+
+	private final Deadline deadline;
+
+	private final long start = System.nanoTime();
+
+	/**
+	 * The action aborting the current stage of the invocation, guarded by this.
+	 */
+	private Runnable canceller;
+
+	private volatile boolean cancelled;
+
+	/**
+	 * Replacements of request properties for this invocation only, so a request
+	 * is never modified while it is executed and may be shared between threads.
+	 * Only accessed by the thread running the invocation, null if not replaced.
+	 */
+	private CompiledInvocationTemplate compiledTemplate;
+
+	private InputSource inputSource;
+
+	private OutputSink outputSink;
+
+	/**
+	 * Whether the invocation holds a process slot of a {@link PooledInvoker}
+	 * that was acquired before the invocation was dispatched to a thread.
+	 */
+	private final AtomicBoolean admitted = new AtomicBoolean();
+
+	/**
+	 * Creates a new handle.
+	 * 
+	 * @param deadline The deadline of the invocation, may be <code>null</code>.
+	 */
+	DefaultInvocationHandle(Deadline deadline) {
+		this.deadline = deadline;
+		future.whenComplete(new BiConsumer<InvocationResult, Throwable>() {
+
+			public void accept(InvocationResult result, Throwable failure) {
+				if (failure instanceof CancellationException) {
+					cancel();
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * @return The deadline of the invocation or <code>null</code> if it is not time limited.
+	 */
+	public Deadline getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * @return The {@link System#nanoTime()} the invocation was submitted at.
+	 */
+	long getStart() {
+		return start;
+	}
+
+	/**
+	 * @param request The request of this invocation, must not be <code>null</code>.
+	 * @return The compiled template this invocation uses instead of the one of the request, if any.
+	 */
+	CompiledInvocationTemplate getCompiledTemplate(WkhtmlToPdfInvocationRequest request) {
+		return compiledTemplate != null ? compiledTemplate : request.getCompiledTemplate();
+	}
+
+	void setCompiledTemplate(CompiledInvocationTemplate compiledTemplate) {
+		this.compiledTemplate = compiledTemplate;
+	}
+
+	/**
+	 * @param request The request of this invocation, must not be <code>null</code>.
+	 * @return The source of the page this invocation reads instead of the one of the request, if any.
+	 */
+	InputSource getInputSource(WkhtmlToPdfInvocationRequest request) {
+		return inputSource != null ? inputSource : request.getInputSource();
+	}
+
+	void setInputSource(InputSource inputSource) {
+		this.inputSource = inputSource;
+	}
+
+	/**
+	 * @param request The request of this invocation, must not be <code>null</code>.
+	 * @return The sink this invocation writes the document to instead of the one of the request, if any.
+	 */
+	OutputSink getOutputSink(WkhtmlToPdfInvocationRequest request) {
+		return outputSink != null ? outputSink : request.getOutputSink();
+	}
+
+	void setOutputSink(OutputSink outputSink) {
+		this.outputSink = outputSink;
+	}
+
+	/**
+	 * @return <code>true</code> if this invocation replaces any property of its request.
+	 */
+	boolean isOverriding() {
+		return compiledTemplate != null || inputSource != null || outputSink != null;
+	}
+
+	void admit() {
+		admitted.set(true);
+	}
+
+	/**
+	 * Takes over the process slot acquired before the invocation was
+	 * dispatched, so it is released exactly once.
+	 * 
+	 * @return <code>true</code> if the caller now owns the slot and must release it.
+	 */
+	boolean takeAdmission() {
+		return admitted.compareAndSet(true, false);
+	}
+
+	/**
+	 * Attaches the action aborting the current stage of the invocation,
+	 * replacing the one of the previous stage.
+	 * 
+	 * @param canceller The action, must not be <code>null</code>.
+	 * @return <code>false</code> if the invocation has already been cancelled, the action is not attached then.
+	 */
+	synchronized boolean attach(Runnable canceller) {
+		if (cancelled) {
+			return false;
+		}
+		this.canceller = canceller;
+		return true;
+	}
+
+	/**
+	 * Detaches the action of the current stage. Once this method returns the
+	 * action is guaranteed not to run anymore.
+	 */
+	synchronized void detach() {
+		this.canceller = null;
+	}
+
+	public boolean cancel() {
+		synchronized (this) {
+			if (cancelled || (future.isDone() && !future.isCancelled())) {
+				return false;
+			}
+			cancelled = true;
+			if (canceller != null) {
+				// run under the lock so the action cannot hit a stage that has detached already
+				canceller.run();
+				canceller = null;
+			}
+		}
+		return true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	public InvocationResult getResult() throws WkhtmlToPdfInvocationException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WkhtmlToPdfInvocationException("Interrupted while waiting for the invocation.", e);
+		} catch (CancellationException e) {
+			return cancelledResult();
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	public InvocationResult getResult(long timeout, TimeUnit unit) throws WkhtmlToPdfInvocationException, TimeoutException {
+		try {
+			return future.get(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WkhtmlToPdfInvocationException("Interrupted while waiting for the invocation.", e);
+		} catch (CancellationException e) {
+			return cancelledResult();
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	public CompletableFuture<InvocationResult> toCompletableFuture() {
+		return future;
+	}
+
+	void complete(InvocationResult result) {
+		future.complete(result);
+	}
+
+	void fail(Throwable failure) {
+		future.completeExceptionally(failure);
+	}
+
+	/**
+	 * @return A new result recording the cancellation of the invocation.
+	 */
+	InvocationResult cancelledResult() {
+		DefaultInvocationResult result = new DefaultInvocationResult();
+		result.setCancelled(true);
+		result.setExecutionException(new CommandLineException("Invocation cancelled."));
+		result.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return result;
+	}
+
+	private static WkhtmlToPdfInvocationException unwrap(ExecutionException e) {
+		if (e.getCause() instanceof WkhtmlToPdfInvocationException) {
+			return (WkhtmlToPdfInvocationException) e.getCause();
+		}
+		return new WkhtmlToPdfInvocationException("Error executing invocation. Reason: " + e.getCause().getMessage(), e.getCause());
+	}
+
+}
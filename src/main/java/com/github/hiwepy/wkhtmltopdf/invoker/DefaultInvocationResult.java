@@ -38,6 +38,26 @@ public final class DefaultInvocationResult
      */
     private int exitCode = Integer.MIN_VALUE;
 
+    /**
+     * Whether the invocation was aborted because its deadline expired.
+     */
+    private boolean timedOut;
+
+    /**
+     * Whether the invocation was cancelled by the caller.
+     */
+    private boolean cancelled;
+
+    /**
+     * The wall-clock time spent on the invocation in milliseconds.
+     */
+    private long elapsedTime;
+
+    /**
+     * Whether the document was served from the render cache.
+     */
+    private boolean cacheHit;
+
     /**
      * Creates a new invocation result
      */
@@ -56,6 +76,26 @@ public final class DefaultInvocationResult
         return executionException;
     }
 
+    public boolean isTimedOut()
+    {
+        return timedOut;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public long getElapsedTime()
+    {
+        return elapsedTime;
+    }
+
+    public boolean isCacheHit()
+    {
+        return cacheHit;
+    }
+
     /**
      * Sets the exit code reported by the Calibre invocation.
      * 
@@ -76,4 +116,44 @@ public final class DefaultInvocationResult
         this.executionException = executionException;
     }
 
+    /**
+     * Sets whether the invocation was aborted because its deadline expired.
+     * 
+     * @param timedOut <code>true</code> if the invocation timed out.
+     */
+    void setTimedOut( boolean timedOut )
+    {
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * Sets whether the invocation was cancelled by the caller.
+     * 
+     * @param cancelled <code>true</code> if the invocation was cancelled.
+     */
+    void setCancelled( boolean cancelled )
+    {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Sets the wall-clock time spent on the invocation.
+     * 
+     * @param elapsedTime The elapsed time in milliseconds.
+     */
+    void setElapsedTime( long elapsedTime )
+    {
+        this.elapsedTime = elapsedTime;
+    }
+
+    /**
+     * Sets whether the document was served from the render cache.
+     * 
+     * @param cacheHit <code>true</code> if no process was started for the invocation.
+     */
+    void setCacheHit( boolean cacheHit )
+    {
+        this.cacheHit = cacheHit;
+    }
+
 }
@@ -15,18 +15,52 @@
  */
 package com.github.hiwepy.wkhtmltopdf.invoker;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.codehaus.plexus.util.cli.CommandLineException;
-import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.CommandLineTimeOutException;
 import org.codehaus.plexus.util.cli.Commandline;
 
+import com.github.hiwepy.wkhtmltopdf.invoker.asset.AssetLocalizer;
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RenderCache;
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RequestFingerprint;
 import com.github.hiwepy.wkhtmltopdf.invoker.command.AbstractCommandLineBuilder;
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+import com.github.hiwepy.wkhtmltopdf.invoker.command.ExecutableResolver;
 import com.github.hiwepy.wkhtmltopdf.invoker.command.WkhtmlToPdfCommandLineBuilder;
 import com.github.hiwepy.wkhtmltopdf.invoker.command.WkhtmlToImageCommandLineBuilder;
 import com.github.hiwepy.wkhtmltopdf.invoker.exception.CommandLineConfigurationException;
 import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.metrics.InvokerMetrics;
+import com.github.hiwepy.wkhtmltopdf.invoker.metrics.MeteringStreamConsumer;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamConsumer;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamProducer;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.DirectProcessLauncher;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.OutputRedirect;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessEnvironment;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessLauncher;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessRunner;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.Processes;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
 import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
 import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToImageInvocationRequest;
 import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
 
@@ -38,10 +72,29 @@ public class DefaultInvoker implements Invoker {
 
 	public static final String ROLE_HINT = "default";
 
+	private static final String QUIET = "--quiet";
+
+	private static final String LOG_LEVEL = "--log-level";
+
+	private static final String LOG_LEVEL_WARN = "warn";
+
+	/**
+	 * The major, minor and patch version reported by <code>wkhtmltopdf --version</code>.
+	 */
+	private static final Pattern VERSION = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
+
+	private static final String VERBOSE = "--verbose";
+
+	private static final String ALLOW = "--allow";
+
 	private static final InvokerLogger DEFAULT_LOGGER = new SystemOutLogger();
 
 	private static final InvocationOutputHandler DEFAULT_OUTPUT_HANDLER = new SystemOutHandler();
 
+	private static final ProcessRunner DEFAULT_PROCESS_RUNNER = new ProcessRunner();
+
+	private static final ProcessLauncher DEFAULT_PROCESS_LAUNCHER = new DirectProcessLauncher();
+
 	private InvokerLogger logger = DEFAULT_LOGGER;
 
 	private File workingDirectory;
@@ -51,6 +104,31 @@ public class DefaultInvoker implements Invoker {
 	private InvocationOutputHandler outputHandler = DEFAULT_OUTPUT_HANDLER;
 
 	private InvocationOutputHandler errorHandler = DEFAULT_OUTPUT_HANDLER;
+
+	private Executor executor;
+
+	private ProcessRunner processRunner = DEFAULT_PROCESS_RUNNER;
+
+	private ProcessLauncher processLauncher = DEFAULT_PROCESS_LAUNCHER;
+
+	private WkhtmlToPdfWorkerPool workerPool;
+
+	private ExecutableResolver executableResolver = ExecutableResolver.getSharedResolver();
+
+	private ProcessEnvironment environment = ProcessEnvironment.inherited();
+
+	private InvokerMetrics metrics = InvokerMetrics.NONE;
+
+	private RenderCache renderCache;
+
+	/**
+	 * The renders in progress by fingerprint, <code>null</code> unless identical requests are coalesced.
+	 */
+	private volatile ConcurrentMap<RequestFingerprint, Flight> flights;
+
+	private WebCachePool webCachePool;
+
+	private AssetLocalizer assetLocalizer;
 	
 	protected AbstractCommandLineBuilder getCommandLineBuilder(InvocationRequest request) {
 		if(request instanceof WkhtmlToPdfInvocationRequest) {
@@ -63,6 +141,392 @@ public class DefaultInvoker implements Invoker {
 	}
 	
 	public InvocationResult execute(InvocationRequest request) throws WkhtmlToPdfInvocationException {
+		return executeFingerprinted(request, new DefaultInvocationHandle(Deadline.of(request)));
+	}
+
+	/**
+	 * Serves the given request from the render cache or joins an identical
+	 * render in progress if this invoker does either and the request is
+	 * cacheable, and executes it otherwise. Both happen before
+	 * {@link #execute(InvocationRequest, DefaultInvocationHandle)}, so hits and
+	 * coalesced requests do not queue for a process slot, unless a
+	 * {@link PooledInvoker} admitted them before they were dispatched.
+	 */
+	private InvocationResult executeFingerprinted(InvocationRequest request, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		RenderCache renderCache = this.renderCache;
+		ConcurrentMap<RequestFingerprint, Flight> flights = this.flights;
+		if ((renderCache == null && flights == null) || !(request instanceof WkhtmlToPdfInvocationRequest)
+				|| !RequestFingerprint.isCacheable((WkhtmlToPdfInvocationRequest) request)) {
+			return executeLocalized(request, handle);
+		}
+		return new FingerprintedInvocation(this, renderCache, flights, (WkhtmlToPdfInvocationRequest) request).execute(handle);
+	}
+
+	/**
+	 * Localizes the assets of the page read from the standard input if this
+	 * invoker has an asset localizer, and executes the request. The assets are
+	 * fetched before {@link #execute(InvocationRequest, DefaultInvocationHandle)},
+	 * so no process slot is held while they download unless the invocation was
+	 * admitted before it was dispatched, and after the render cache, so hits do
+	 * not fetch anything.
+	 */
+	InvocationResult executeLocalized(InvocationRequest request, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		
+		AssetLocalizer assetLocalizer = this.assetLocalizer;
+		if (assetLocalizer == null || !(request instanceof WkhtmlToPdfInvocationRequest)) {
+			return execute(request, handle);
+		}
+		InputSource inputSource = handle.getInputSource((WkhtmlToPdfInvocationRequest) request);
+		if (inputSource == null) {
+			return execute(request, handle);
+		}
+		
+		long timeout = assetLocalizer.getTimeout();
+		Deadline deadline = handle.getDeadline();
+		if (deadline != null) {
+			timeout = Math.min(timeout, deadline.timeRemaining(TimeUnit.MILLISECONDS));
+		}
+		
+		if (!handle.attach(interrupting(Thread.currentThread()))) {
+			return handle.cancelledResult();
+		}
+		InputSource localized = null;
+		try {
+			localized = assetLocalizer.localize(inputSource, Math.max(0, timeout), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			if (!handle.isCancelled()) {
+				Thread.currentThread().interrupt();
+				throw new WkhtmlToPdfInvocationException("Interrupted while fetching the assets of the page.", e);
+			}
+		} catch (IOException e) {
+			throw new WkhtmlToPdfInvocationException("Error reading the page. Reason: " + e.getMessage(), e);
+		} finally {
+			handle.detach();
+		}
+		if (handle.isCancelled()) {
+			// clear the interrupt that woke us up
+			Thread.interrupted();
+			return handle.cancelledResult();
+		}
+		
+		// the request may be shared by concurrent invocations, so it is left untouched
+		handle.setInputSource(localized);
+		return execute(request, handle);
+	}
+
+	/**
+	 * Executes the given request within the deadline of the given handle. Nested
+	 * work such as queueing for a pooled process inherits the remaining time of
+	 * the deadline rather than starting a timeout of its own, and attaches its
+	 * cancel action to the handle while it runs.
+	 * 
+	 * @param request The invocation request to execute, must not be <code>null</code>.
+	 * @param handle The handle of the invocation, must not be <code>null</code>.
+	 * @return The result of the wkhtmltopdf invocation, never <code>null</code>.
+	 * @throws WkhtmlToPdfInvocationException If the command line could not be built.
+	 */
+	protected InvocationResult execute(InvocationRequest request, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		
+		long start = System.nanoTime();
+		String type = InvokerMetrics.typeOf(request);
+		metrics.queued(type, start - handle.getStart());
+		
+		Commandline cli = buildCommandLine(request, handle);
+		allowAssetStore(cli, request, handle);
+		metrics.commandBuilt(type, System.nanoTime() - start);
+
+		InvocationResult result;
+		if (workerPool != null && request instanceof WkhtmlToPdfInvocationRequest
+				&& workerPool.accepts((WkhtmlToPdfInvocationRequest) request, handle)) {
+			result = workerPool.execute(Arrays.asList(cli.getArguments()), handle);
+		} else {
+			result = executeForked(cli, request, handle, start);
+		}
+		
+		if (result.isTimedOut()) {
+			metrics.timedOut(type);
+		}
+		if (result.isCancelled()) {
+			deletePartialOutput(request, handle);
+		}
+		return result;
+	}
+
+	private InvocationResult executeForked(Commandline cli, InvocationRequest request, DefaultInvocationHandle handle, long start) {
+		
+		Deadline deadline = handle.getDeadline();
+		DefaultInvocationResult result = new DefaultInvocationResult();
+
+		try {
+			
+			if (deadline != null && deadline.isExpired()) {
+				throw new CommandLineTimeOutException("Deadline " + deadline + " expired before the process was started.", null);
+			}
+			
+			WebCachePool.Lease lease = leaseWebCache(cli);
+			try {
+				int exitCode = executeCommandLine(cli, request, handle);
+
+				result.setExitCode(exitCode);
+			} finally {
+				if (lease != null) {
+					lease.release();
+				}
+			}
+		} catch (CommandLineTimeOutException e) {
+			result.setTimedOut(true);
+			result.setExecutionException(e);
+		} catch (CommandLineException e) {
+			result.setExecutionException(e);
+		}
+		
+		if (handle.isCancelled()) {
+			return handle.cancelledResult();
+		}
+
+		result.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return result;
+	}
+
+	/**
+	 * Lets wkhtmltopdf read the assets a page read from the standard input was
+	 * localized to, even if local file access is blocked as by default since
+	 * wkhtmltopdf 0.12.6. Only the store is allowed, not the whole file system.
+	 */
+	private void allowAssetStore(Commandline cli, InvocationRequest request, DefaultInvocationHandle handle) {
+		AssetLocalizer assetLocalizer = this.assetLocalizer;
+		if (assetLocalizer == null || !(request instanceof WkhtmlToPdfInvocationRequest)
+				|| handle.getInputSource((WkhtmlToPdfInvocationRequest) request) == null) {
+			return;
+		}
+		// page options before the first page apply to all pages
+		cli.createArg(true).setValue(assetLocalizer.getFetcher().getStore().getDirectory().getAbsolutePath());
+		cli.createArg(true).setValue(ALLOW);
+	}
+
+	/**
+	 * Leases a directory of the web cache pool, if any, and passes it to the
+	 * process with <code>--cache-dir</code>. Command lines that name a cache
+	 * directory of their own keep it.
+	 * 
+	 * @return The lease or <code>null</code> if the process runs without a pooled cache.
+	 */
+	private WebCachePool.Lease leaseWebCache(Commandline cli) {
+		WebCachePool webCachePool = this.webCachePool;
+		if (webCachePool == null || Arrays.asList(cli.getArguments()).contains(WebCachePool.CACHE_DIR)) {
+			return null;
+		}
+		WebCachePool.Lease lease = webCachePool.acquire();
+		if (lease != null) {
+			// global options go before the pages
+			cli.createArg(true).setValue(lease.getDirectory().getAbsolutePath());
+			cli.createArg(true).setValue(WebCachePool.CACHE_DIR);
+		}
+		return lease;
+	}
+
+	private void deletePartialOutput(InvocationRequest request, DefaultInvocationHandle handle) {
+		if (request instanceof WkhtmlToPdfInvocationRequest) {
+			OutputSink outputSink = handle.getOutputSink((WkhtmlToPdfInvocationRequest) request);
+			File file = outputSink != null ? outputSink.getFile() : null;
+			if (file != null && file.exists() && !file.delete()) {
+				getLogger().warn("Could not delete partial output " + file + " of cancelled invocation.");
+			}
+		}
+	}
+
+	/**
+	 * Submits the given request for execution on the executor of this invoker.
+	 * 
+	 * @param request The invocation request to execute, must not be <code>null</code>.
+	 * @return The handle of the invocation, never <code>null</code>.
+	 */
+	public InvocationHandle submit(final InvocationRequest request) {
+		
+		final DefaultInvocationHandle handle = new DefaultInvocationHandle(Deadline.of(request));
+		dispatch(new Runnable() {
+			
+			public void run() {
+				// the caller may have given up while the invocation was still queued
+				if (handle.isCancelled()) {
+					return;
+				}
+				try {
+					handle.complete(executeFingerprinted(request, handle));
+				} catch (Throwable e) {
+					handle.fail(e);
+				}
+			}
+			
+		}, handle, null);
+		return handle;
+	}
+
+	/**
+	 * Gives back the process slot the invocation of the given handle was
+	 * admitted with before it was dispatched, if any, e.g. while it waits for an
+	 * identical render.
+	 * 
+	 * @param handle The handle of the invocation, must not be <code>null</code>.
+	 */
+	void releaseAdmission(DefaultInvocationHandle handle) {
+		handle.takeAdmission();
+	}
+
+	/**
+	 * Runs the task of a submitted invocation on the executor of this invoker.
+	 * 
+	 * @param task The task, must not be <code>null</code>.
+	 * @param handle The handle of the invocation, must not be <code>null</code>.
+	 * @param dropped The action to run if the task is rejected by the executor or
+	 *        removed from its queue by a cancellation, may be <code>null</code>.
+	 */
+	void dispatch(final Runnable task, final DefaultInvocationHandle handle, final Runnable dropped) {
+		
+		final Executor executor = getExecutor();
+		boolean attached = handle.attach(new Runnable() {
+			
+			public void run() {
+				if (executor instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) executor).remove(task) && dropped != null) {
+					dropped.run();
+				}
+				handle.complete(handle.cancelledResult());
+			}
+			
+		});
+		if (!attached) {
+			// cancelled while it was admitted, the cancellation completed the handle
+			if (dropped != null) {
+				dropped.run();
+			}
+			return;
+		}
+		
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			if (dropped != null) {
+				dropped.run();
+			}
+			handle.fail(new WkhtmlToPdfInvocationException("Error scheduling invocation. Reason: " + e.getMessage(), e));
+		}
+	}
+
+	/**
+	 * Creates a cancel action that interrupts the given thread, for stages that
+	 * block in an interruptible wait.
+	 * 
+	 * @param thread The waiting thread, must not be <code>null</code>.
+	 * @return The cancel action, never <code>null</code>.
+	 */
+	static Runnable interrupting(final Thread thread) {
+		return new Runnable() {
+			
+			public void run() {
+				thread.interrupt();
+			}
+			
+		};
+	}
+
+	/**
+	 * Creates the result of an invocation whose deadline expired before the
+	 * process was started.
+	 * 
+	 * @param deadline The expired deadline, must not be <code>null</code>.
+	 * @param start The {@link System#nanoTime()} the invocation started at.
+	 * @return The timed out result, never <code>null</code>.
+	 */
+	protected static InvocationResult timedOut(Deadline deadline, long start) {
+		DefaultInvocationResult result = new DefaultInvocationResult();
+		result.setTimedOut(true);
+		result.setExecutionException(new CommandLineTimeOutException("Deadline " + deadline + " expired while waiting for a process.", null));
+		result.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return result;
+	}
+
+	/**
+	 * Opens a batch session that keeps one wkhtmltopdf process running in
+	 * <code>--read-args-from-stdin</code> mode. The options of the given template
+	 * apply to every job of the session, the jobs only supply their pages and
+	 * output file.
+	 * 
+	 * @param template The request providing the options shared by all jobs, must not be <code>null</code>.
+	 * @return The open session, never <code>null</code>. It must be closed by the caller.
+	 * @throws WkhtmlToPdfInvocationException If the wkhtmltopdf process could not be started.
+	 * @throws IllegalArgumentException If the template is <code>--quiet</code> or lowers the log level.
+	 */
+	public WkhtmlToPdfSession openSession(WkhtmlToPdfInvocationRequest template) throws WkhtmlToPdfInvocationException {
+		
+		Commandline cli = buildCommandLine(template);
+		WkhtmlToPdfSession.checkSessionArguments(cli.getArguments());
+		cli.createArg().setValue(WkhtmlToPdfSession.READ_ARGS_FROM_STDIN);
+		// the session keeps the directory for the lifetime of its process
+		WebCachePool.Lease lease = leaseWebCache(cli);
+
+		if (getLogger().isDebugEnabled()) {
+			getLogger().debug("Opening session: " + cli);
+		}
+		
+		try {
+			Process process = getProcessLauncher().launch(cli);
+			return new WkhtmlToPdfSession(process, cli.getArguments().length + 1, template.getOutputHandler(this.outputHandler),
+					template.getErrorHandler(this.errorHandler), getLogger(), lease);
+		} catch (CommandLineException | RejectedExecutionException e) {
+			if (lease != null) {
+				lease.release();
+			}
+			throw new WkhtmlToPdfInvocationException("Error starting session. Reason: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Freezes the options of the given request into a template. Requests that
+	 * refer to the template skip the command line builder, only their pages and
+	 * output are appended to the options of the template.
+	 * 
+	 * @param template The request providing the options, must not be <code>null</code>.
+	 * @return The compiled template, never <code>null</code>.
+	 * @throws WkhtmlToPdfInvocationException If the command line could not be built.
+	 */
+	public CompiledInvocationTemplate compile(WkhtmlToPdfInvocationRequest template) throws WkhtmlToPdfInvocationException {
+		try {
+			return newCommandLineBuilder(template).compile(template);
+		} catch (CommandLineConfigurationException e) {
+			throw new WkhtmlToPdfInvocationException("Error compiling command-line. Reason: " + e.getMessage(), e);
+		}
+	}
+
+	protected Commandline buildCommandLine(InvocationRequest request) throws WkhtmlToPdfInvocationException {
+		return buildCommandLine(request, new DefaultInvocationHandle(null));
+	}
+
+	/**
+	 * Builds the command line of the given request with the properties the
+	 * given invocation replaces, e.g. the page it reads from a spool file.
+	 */
+	private Commandline buildCommandLine(InvocationRequest request, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		
+		if (request instanceof WkhtmlToPdfInvocationRequest) {
+			WkhtmlToPdfInvocationRequest pdfRequest = (WkhtmlToPdfInvocationRequest) request;
+			CompiledInvocationTemplate template = handle.getCompiledTemplate(pdfRequest);
+			if (template == null && handle.isOverriding()) {
+				// the builder only reads the request
+				template = compile(pdfRequest);
+			}
+			if (template != null) {
+				return template.newCommandline(pdfRequest, handle.getInputSource(pdfRequest), handle.getOutputSink(pdfRequest));
+			}
+		}
+
+		try {
+			return newCommandLineBuilder(request).build(request);
+		} catch (CommandLineConfigurationException e) {
+			throw new WkhtmlToPdfInvocationException("Error configuring command-line. Reason: " + e.getMessage(), e);
+		}
+	}
+
+	private AbstractCommandLineBuilder newCommandLineBuilder(InvocationRequest request) {
 		
 		AbstractCommandLineBuilder cliBuilder = getCommandLineBuilder(request);
 
@@ -80,41 +544,172 @@ public class DefaultInvoker implements Invoker {
 		if (workingDirectory != null) {
 			cliBuilder.setWorkingDirectory(getWorkingDirectory());
 		}
+		
+		cliBuilder.setExecutableResolver(getExecutableResolver());
+		cliBuilder.setEnvironment(getEnvironment());
 
-		Commandline cli;
-		try {
-			cli = cliBuilder.build(request);
-		} catch (CommandLineConfigurationException e) {
-			throw new WkhtmlToPdfInvocationException("Error configuring command-line. Reason: " + e.getMessage(), e);
-		}
-
-		DefaultInvocationResult result = new DefaultInvocationResult();
-
-		try {
-			
-			int exitCode = executeCommandLine(cli, request);
-
-			result.setExitCode(exitCode);
-		} catch (CommandLineException e) {
-			result.setExecutionException(e);
-		}
+		return cliBuilder;
+	}
 
-		return result;
+	public CompletableFuture<InvocationResult> executeAsync(final InvocationRequest request) {
+		return submit(request).toCompletableFuture();
 	}
 
-	private int executeCommandLine(Commandline cli, InvocationRequest request) throws CommandLineException {
+	private int executeCommandLine(Commandline cli, InvocationRequest request, DefaultInvocationHandle handle) throws CommandLineException {
 		int result = Integer.MIN_VALUE;
 
 		InvocationOutputHandler outputHandler = request.getOutputHandler(this.outputHandler);
 		InvocationOutputHandler errorHandler = request.getErrorHandler(this.errorHandler);
+		if (request.getProgressListener() != null) {
+			errorHandler = new ProgressOutputHandler(request.getProgressListener(), errorHandler);
+		}
 
 		if (getLogger().isDebugEnabled()) {
 			getLogger().debug("Executing: " + cli);
 		}
-		result = CommandLineUtils.executeCommandLine(cli, outputHandler, errorHandler);
+		ByteStreamProducer stdin = null;
+		ByteStreamConsumer stdout = ProcessRunner.lines(outputHandler);
+		if (request instanceof WkhtmlToPdfInvocationRequest) {
+			WkhtmlToPdfInvocationRequest pdfRequest = (WkhtmlToPdfInvocationRequest) request;
+			stdin = handle.getInputSource(pdfRequest);
+			OutputSink outputSink = handle.getOutputSink(pdfRequest);
+			if (outputSink != null && outputSink.isStreaming()) {
+				// the document itself arrives on stdout
+				stdout = outputSink;
+			}
+		}
+
+		ByteStreamConsumer stderr = ProcessRunner.lines(errorHandler);
+		Redirect stdoutTarget = Redirect.PIPE;
+		Redirect stderrTarget = Redirect.PIPE;
+		OutputRedirect outputRedirect = request.getOutputRedirect();
+		if (outputRedirect != null) {
+			try {
+				stderrTarget = outputRedirect.open();
+			} catch (IOException e) {
+				throw new CommandLineException("Error opening " + outputRedirect + ". Reason: " + e.getMessage(), e);
+			}
+			stderr = ProcessRunner.REDIRECTED;
+			if (!(stdout instanceof OutputSink)) {
+				stdoutTarget = stderrTarget;
+				stdout = ProcessRunner.REDIRECTED;
+			}
+		}
+		List<String> arguments = Arrays.asList(cli.getArguments());
+		if (!arguments.contains(VERBOSE) && !arguments.contains(QUIET) && !arguments.contains("-q")
+				&& !arguments.contains(LOG_LEVEL)) {
+			if (outputRedirect == OutputRedirect.DISCARD) {
+				// nobody sees any of the output
+				cli.createArg(true).setValue(QUIET);
+			} else if (!isProgressWanted(outputHandler, errorHandler) && isLogLevelSupported(cli)) {
+				// the progress bar is most of the output and nobody would read it,
+				// unlike --quiet the warnings and errors explaining a failure remain
+				cli.createArg(true).setValue(LOG_LEVEL_WARN);
+				cli.createArg(true).setValue(LOG_LEVEL);
+			}
+		}
+
+		final String type = InvokerMetrics.typeOf(request);
+		MeteringStreamConsumer meteredStdout = null;
+		MeteringStreamConsumer meteredStderr = null;
+		if (metrics != InvokerMetrics.NONE) {
+			if (stdout != ProcessRunner.REDIRECTED) {
+				stdout = meteredStdout = new MeteringStreamConsumer(stdout);
+			}
+			if (stderr != ProcessRunner.REDIRECTED) {
+				stderr = meteredStderr = new MeteringStreamConsumer(stderr);
+			}
+		}
+
+		long spawnStart = System.nanoTime();
+		final Process process = getProcessLauncher().launch(cli, stdoutTarget, stderrTarget);
+		long renderStart = System.nanoTime();
+		metrics.processSpawned(type, renderStart - spawnStart);
+		if (!handle.attach(new Runnable() {
+			
+			public void run() {
+				Processes.destroyTree(process);
+				Processes.closeStreams(process);
+			}
+			
+		})) {
+			Processes.destroyTree(process);
+			metrics.killed(type);
+			throw new CommandLineException("Invocation cancelled.");
+		}
+		
+		Deadline deadline = handle.getDeadline();
+		long timeout = deadline != null ? Math.max(1, deadline.timeRemaining(TimeUnit.NANOSECONDS)) : 0;
+		try {
+			result = getProcessRunner().run(process, stdin, stdout, stderr, timeout, TimeUnit.NANOSECONDS);
+		} finally {
+			handle.detach();
+			if (result == Integer.MIN_VALUE) {
+				// timed out, cancelled or failed, the process is gone
+				metrics.killed(type);
+			} else {
+				metrics.processExited(type, System.nanoTime() - renderStart, result);
+			}
+			if (meteredStdout != null) {
+				metrics.outputDrained(type, meteredStdout.getDrainTime(), meteredStdout.getBytes());
+			}
+			if (meteredStderr != null) {
+				metrics.errorOutputDrained(type, meteredStderr.getLines());
+			}
+			if (result != 0 && outputRedirect != null && outputRedirect.getFile() != null) {
+				// nobody looked at the log so far, only failures are worth it
+				replayLog(outputRedirect.getFile(), errorHandler);
+			}
+		}
 		return result;
 	}
 
+	private static boolean isProgressWanted(InvocationOutputHandler outputHandler, InvocationOutputHandler errorHandler) {
+		return (outputHandler != null && outputHandler.isInterestedInProgress())
+				|| (errorHandler != null && errorHandler.isInterestedInProgress());
+	}
+
+	/**
+	 * Tells whether the executable of the given command line accepts
+	 * <code>--log-level</code>, which wkhtmltopdf supports since 0.12.5. Older
+	 * versions can only be silenced with <code>--quiet</code>, which also
+	 * suppresses the errors.
+	 */
+	private boolean isLogLevelSupported(Commandline cli) {
+		String version;
+		try {
+			version = getExecutableResolver().getVersion(new File(cli.getLiteralExecutable()));
+		} catch (IOException e) {
+			return false;
+		}
+		Matcher matcher = VERSION.matcher(version);
+		if (!matcher.find()) {
+			return false;
+		}
+		int[] parts = { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)) };
+		int[] required = { 0, 12, 5 };
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i] != required[i]) {
+				return parts[i] > required[i];
+			}
+		}
+		return true;
+	}
+
+	private void replayLog(File log, InvocationOutputHandler errorHandler) {
+		if (errorHandler == null) {
+			return;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log)))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				errorHandler.consumeLine(line);
+			}
+		} catch (IOException e) {
+			getLogger().warn("Error reading log " + log + ". Reason: " + e.getMessage());
+		}
+	}
+
 	public InvokerLogger getLogger() {
 		return logger;
 	}
@@ -151,5 +746,188 @@ public class DefaultInvoker implements Invoker {
 		this.outputHandler = outputHandler;
 		return this;
 	}
-	
+
+	public Executor getExecutor() {
+		return executor != null ? executor : ProcessThreads.getSharedExecutor();
+	}
+
+	public Invoker setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	public ProcessRunner getProcessRunner() {
+		return processRunner;
+	}
+
+	/**
+	 * Gets the metrics this invoker reports its invocations to.
+	 * 
+	 * @return The metrics, never <code>null</code>.
+	 */
+	public InvokerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics this invoker reports its invocations to, e.g. a
+	 * {@link com.github.hiwepy.wkhtmltopdf.invoker.metrics.DropwizardInvokerMetrics}.
+	 * 
+	 * @param metrics The metrics, may be <code>null</code> to report nothing.
+	 * @return This invoker instance.
+	 */
+	public Invoker setMetrics(InvokerMetrics metrics) {
+		this.metrics = metrics != null ? metrics : InvokerMetrics.NONE;
+		return this;
+	}
+
+	public RenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	/**
+	 * Sets the cache that rendered documents are served from, e.g. a
+	 * {@link com.github.hiwepy.wkhtmltopdf.invoker.cache.DiskRenderCache}, or a
+	 * {@link com.github.hiwepy.wkhtmltopdf.invoker.cache.MemoryRenderCache} in front of one.
+	 * Requests are looked up by their {@link RequestFingerprint}, which
+	 * covers the wkhtmltopdf version, the options and the page, and only
+	 * rendered on a miss.
+	 * @param renderCache The render cache, may be <code>null</code> to render every request.
+	 * @return This invoker instance.
+	 */
+	public Invoker setRenderCache(RenderCache renderCache) {
+		this.renderCache = renderCache;
+		return this;
+	}
+
+	public WebCachePool getWebCachePool() {
+		return webCachePool;
+	}
+
+	/**
+	 * Sets the pool of QtWebKit cache directories passed to the processes with
+	 * <code>--cache-dir</code>, one per running process, so assets shared by
+	 * many documents are not downloaded for every render.
+	 * @param webCachePool The web cache pool, may be <code>null</code> to run processes without a cache directory.
+	 * @return This invoker instance.
+	 */
+	public Invoker setWebCachePool(WebCachePool webCachePool) {
+		this.webCachePool = webCachePool;
+		return this;
+	}
+
+	public AssetLocalizer getAssetLocalizer() {
+		return assetLocalizer;
+	}
+
+	/**
+	 * Sets the stage that fetches the stylesheets, images and fonts of pages
+	 * read from the standard input before they are rendered, see
+	 * {@link com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource}. wkhtmltopdf
+	 * then reads them from the local asset store instead of the network.
+	 * @param assetLocalizer The asset localizer, may be <code>null</code> to leave the assets to wkhtmltopdf.
+	 * @return This invoker instance.
+	 */
+	public Invoker setAssetLocalizer(AssetLocalizer assetLocalizer) {
+		this.assetLocalizer = assetLocalizer;
+		return this;
+	}
+
+	public boolean isCoalescing() {
+		return flights != null;
+	}
+
+	/**
+	 * Sets whether identical requests executed concurrently share a single
+	 * render. The first one runs wkhtmltopdf, the others wait for it and get
+	 * their own copy of the document. Requests are identical if their
+	 * {@link RequestFingerprint} is, so this applies to the same requests a
+	 * render cache does, with or without one.
+	 * @param coalescing <code>true</code> to coalesce identical requests, <code>false</code> to render each of them.
+	 * @return This invoker instance.
+	 */
+	public Invoker setCoalescing(boolean coalescing) {
+		if (coalescing != isCoalescing()) {
+			this.flights = coalescing ? new ConcurrentHashMap<RequestFingerprint, Flight>() : null;
+		}
+		return this;
+	}
+
+	public ProcessLauncher getProcessLauncher() {
+		return processLauncher;
+	}
+
+	/**
+	 * Sets the launcher that starts the wkhtmltopdf processes.
+	 * @param processLauncher The process launcher, may be <code>null</code> to start the executable directly without a shell.
+	 * @return This invoker instance.
+	 */
+	public Invoker setProcessLauncher(ProcessLauncher processLauncher) {
+		this.processLauncher = (processLauncher != null) ? processLauncher : DEFAULT_PROCESS_LAUNCHER;
+		return this;
+	}
+
+	public WkhtmlToPdfWorkerPool getWorkerPool() {
+		return workerPool;
+	}
+
+	/**
+	 * Sets the pool of warm wkhtmltopdf processes that {@link WkhtmlToPdfInvocationRequest}s
+	 * are sent to instead of forking a new process per invocation. The output of
+	 * pooled jobs is reported to the handlers of the pool's template request.
+	 * Only requests converting pages into a file are pooled; requests reading
+	 * an {@link InputSource}, streaming their output, listening to the progress,
+	 * redirecting the output or bringing handlers or an environment of their
+	 * own fork a process as before.
+	 * @param workerPool The worker pool, may be <code>null</code> to fork a process per invocation.
+	 * @return This invoker instance.
+	 */
+	public Invoker setWorkerPool(WkhtmlToPdfWorkerPool workerPool) {
+		this.workerPool = workerPool;
+		return this;
+	}
+
+	public ExecutableResolver getExecutableResolver() {
+		return executableResolver;
+	}
+
+	/**
+	 * Sets the resolver that locates the wkhtmltopdf executables. The resolver
+	 * caches what it found, so the per-invocation command line builders do not
+	 * look up the installation again.
+	 * @param executableResolver The executable resolver, may be <code>null</code> to use the shared resolver.
+	 * @return This invoker instance.
+	 */
+	public Invoker setExecutableResolver(ExecutableResolver executableResolver) {
+		this.executableResolver = (executableResolver != null) ? executableResolver : ExecutableResolver.getSharedResolver();
+		return this;
+	}
+
+	public ProcessEnvironment getEnvironment() {
+		return environment;
+	}
+
+	/**
+	 * Sets the base environment of the forked processes, e.g.
+	 * {@link ProcessEnvironment#minimal()} to pass only the variables that
+	 * matter to wkhtmltopdf. Requests that inherit the shell environment get this
+	 * environment with their own variables laid over it.
+	 * @param environment The base environment, may be <code>null</code> to use the environment of this JVM.
+	 * @return This invoker instance.
+	 */
+	public Invoker setEnvironment(ProcessEnvironment environment) {
+		this.environment = (environment != null) ? environment : ProcessEnvironment.inherited();
+		return this;
+	}
+
+	/**
+	 * Sets the runner that pumps the streams of the forked processes.
+	 * @param processRunner The process runner, may be <code>null</code> to use the shared default runner.
+	 * @return This invoker instance.
+	 */
+	public Invoker setProcessRunner(ProcessRunner processRunner) {
+		this.processRunner = (processRunner != null) ? processRunner : DEFAULT_PROCESS_RUNNER;
+		return this;
+	}
+
 }
@@ -0,0 +1,385 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RenderCache;
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RequestFingerprint;
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * Executes a request identified by its {@link RequestFingerprint}. The request
+ * is fingerprinted before anything else happens. Then:
+ * <ul>
+ * <li>it is served from the {@link RenderCache}, if any, so a hit neither
+ * waits for a process slot nor starts a process;</li>
+ * <li>if coalescing is enabled, it joins the {@link Flight} of an identical
+ * request that is being rendered right now, or starts one;</li>
+ * <li>otherwise it is rendered as usual.</li>
+ * </ul>
+ * A document rendered successfully is published to the cache. The request is
+ * never modified, the compiled template, the copy of the page and the sink the
+ * document is rendered into are handed to the invoker by the handle of the
+ * render, so the same request may be executed by several threads at once.
+ */
+final class FingerprintedInvocation {
+
+	private final DefaultInvoker invoker;
+
+	private final RenderCache cache;
+
+	private final ConcurrentMap<RequestFingerprint, Flight> flights;
+
+	private final WkhtmlToPdfInvocationRequest request;
+
+	/**
+	 * The compiled options of the request, set once it is fingerprinted.
+	 */
+	private CompiledInvocationTemplate template;
+
+	/**
+	 * The source of the page to render, the copy of a source that is not repeatable.
+	 */
+	private InputSource inputSource;
+
+	/**
+	 * @param invoker The invoker rendering the request, must not be <code>null</code>.
+	 * @param cache The render cache, may be <code>null</code>.
+	 * @param flights The flights in progress, may be <code>null</code> to not coalesce requests.
+	 * @param request The cacheable request, must not be <code>null</code>.
+	 */
+	FingerprintedInvocation(DefaultInvoker invoker, RenderCache cache, ConcurrentMap<RequestFingerprint, Flight> flights,
+			WkhtmlToPdfInvocationRequest request) {
+		this.invoker = invoker;
+		this.cache = cache;
+		this.flights = flights;
+		this.request = request;
+	}
+
+	InvocationResult execute(DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		
+		long start = System.nanoTime();
+		InvokerLogger logger = invoker.getLogger();
+		OutputSink outputSink = request.getOutputSink();
+		inputSource = request.getInputSource();
+		Path spool = null;
+		try {
+			
+			CompiledInvocationTemplate compiledTemplate = request.getCompiledTemplate();
+			CompiledInvocationTemplate template = compiledTemplate != null ? compiledTemplate : invoker.compile(request);
+			String version;
+			try {
+				version = invoker.getExecutableResolver().getVersion(new File(template.getExecutable()));
+			} catch (IOException e) {
+				logger.warn("Not fingerprinting, the wkhtmltopdf version could not be probed. Reason: " + e.getMessage());
+				return invoker.executeLocalized(request, handle);
+			}
+			// the options are compiled already, do not build them again
+			this.template = template;
+			
+			RequestFingerprint fingerprint;
+			try {
+				if (inputSource != null && !inputSource.isRepeatable()) {
+					// the source can only be read once, render from a copy
+					spool = Files.createTempFile("wkhtmltopdf-", ".html");
+					try (OutputStream copy = Files.newOutputStream(spool)) {
+						fingerprint = RequestFingerprint.compute(version, template, request, copy);
+					}
+					inputSource = InputSource.fromPath(spool);
+				} else {
+					fingerprint = RequestFingerprint.compute(version, template, request, null);
+				}
+			} catch (IOException e) {
+				if (spool != null) {
+					throw new WkhtmlToPdfInvocationException("Error reading the page. Reason: " + e.getMessage(), e);
+				}
+				logger.warn("Not fingerprinting, the page could not be read. Reason: " + e.getMessage());
+				return executeLocalized(outputSink, handle);
+			}
+			
+			if (cache != null) {
+				try {
+					if (cache.deliver(fingerprint, outputSink)) {
+						return hit(start);
+					}
+				} catch (IOException e) {
+					if (outputSink.isStreaming()) {
+						// part of the document may have been streamed already
+						return failed(new CommandLineException("Error writing cached document. Reason: " + e.getMessage(), e), start);
+					}
+					logger.warn("Error reading cached document " + fingerprint + ", rendering it again. Reason: " + e.getMessage());
+				}
+			}
+			
+			if (flights != null) {
+				return coalesce(fingerprint, outputSink, handle, start);
+			}
+			return render(fingerprint, outputSink, handle);
+		} finally {
+			if (spool != null) {
+				try {
+					Files.deleteIfExists(spool);
+				} catch (IOException e) {
+					logger.warn("Could not delete page copy " + spool + ". Reason: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renders the request into the given sink and publishes the document to
+	 * the cache if wkhtmltopdf succeeded.
+	 */
+	private InvocationResult render(RequestFingerprint fingerprint, OutputSink outputSink, DefaultInvocationHandle handle)
+			throws WkhtmlToPdfInvocationException {
+		
+		if (cache == null) {
+			return executeLocalized(outputSink, handle);
+		}
+		
+		InvokerLogger logger = invoker.getLogger();
+		RenderCache.EntryWriter writer;
+		try {
+			writer = cache.stage(fingerprint);
+		} catch (IOException e) {
+			logger.warn("Not caching, the cache entry could not be created. Reason: " + e.getMessage());
+			return executeLocalized(outputSink, handle);
+		}
+		
+		try {
+			CachingOutputSink cachingSink = null;
+			if (outputSink.isStreaming()) {
+				cachingSink = new CachingOutputSink(outputSink, writer);
+			}
+			
+			InvocationResult result = executeLocalized(cachingSink != null ? cachingSink : outputSink, handle);
+			
+			// a non-zero exit code may still leave a document behind, but not a complete one
+			if (result.getExitCode() == 0 && result.getExecutionException() == null
+					&& (cachingSink == null || cachingSink.isCopied())) {
+				try {
+					if (cachingSink == null) {
+						Files.copy(outputSink.getFile().toPath(), writer);
+					}
+					writer.commit();
+				} catch (IOException e) {
+					logger.warn("Could not cache document " + fingerprint + ". Reason: " + e.getMessage());
+				}
+			}
+			return result;
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				logger.debug("Error discarding cache entry " + fingerprint + ".", e);
+			}
+		}
+	}
+
+	/**
+	 * Renders the request into the given sink by the given handle, with the
+	 * compiled template and the page of this invocation.
+	 */
+	private InvocationResult executeLocalized(OutputSink outputSink, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		handle.setCompiledTemplate(template);
+		handle.setInputSource(inputSource);
+		handle.setOutputSink(outputSink);
+		return invoker.executeLocalized(request, handle);
+	}
+
+	/**
+	 * Joins the flight of an identical request or starts one. The leader
+	 * renders into its own sink by way of the flight, the other waiters copy the
+	 * document of the flight into their sinks once it is rendered.
+	 */
+	private InvocationResult coalesce(RequestFingerprint fingerprint, OutputSink outputSink, final DefaultInvocationHandle handle,
+			long start) throws WkhtmlToPdfInvocationException {
+		
+		final Flight.Waiter waiter = Flight.join(flights, fingerprint, handle.getDeadline());
+		Flight flight = waiter.getFlight();
+		try {
+			if (waiter.isLeader()) {
+				// the caller giving up only leaves the flight, the render goes on for the other waiters
+				boolean attached = handle.attach(new Runnable() {
+
+					public void run() {
+						waiter.leave();
+						handle.complete(handle.cancelledResult());
+					}
+
+				});
+				if (!attached) {
+					// the flight is rendered and completed all the same, waiters may have joined already
+					waiter.leave();
+				}
+				InvocationResult result = null;
+				Throwable failure = null;
+				Flight.StreamSink streamSink = null;
+				if (handle.takeAdmission()) {
+					// the flight renders with the process slot the leader was admitted with
+					flight.getHandle().admit();
+				}
+				try {
+					OutputSink flightSink;
+					if (outputSink.getFile() != null) {
+						flightSink = OutputSink.toFile(flight.createOutput(outputSink.getFile()).toFile());
+					} else {
+						streamSink = flight.newStreamSink(outputSink);
+						flightSink = streamSink;
+					}
+					result = render(fingerprint, flightSink, flight.getHandle());
+				} catch (IOException e) {
+					failure = e;
+					throw new WkhtmlToPdfInvocationException("Error creating the output of the render. Reason: " + e.getMessage(), e);
+				} catch (WkhtmlToPdfInvocationException | RuntimeException | Error e) {
+					// the waiters get whatever the leader failed with
+					failure = e;
+					throw e;
+				} finally {
+					handle.detach();
+					invoker.releaseAdmission(flight.getHandle());
+					flight.complete(result, failure);
+				}
+				if (handle.isCancelled()) {
+					return handle.cancelledResult();
+				}
+				if (streamSink == null) {
+					return deliver(flight, result, outputSink, true, start);
+				}
+				// the document has streamed to the caller already
+				IOException leaderFailure = streamSink.getLeaderFailure();
+				if (leaderFailure != null) {
+					return failed(new CommandLineException("Error writing rendered document. Reason: " + leaderFailure.getMessage(),
+							leaderFailure), start);
+				}
+				return result;
+			}
+			
+			// the leader renders, waiting takes no process slot
+			invoker.releaseAdmission(handle);
+			if (!handle.attach(DefaultInvoker.interrupting(Thread.currentThread()))) {
+				return handle.cancelledResult();
+			}
+			boolean done;
+			try {
+				done = flight.await(handle.getDeadline());
+			} catch (InterruptedException e) {
+				if (!handle.isCancelled()) {
+					Thread.currentThread().interrupt();
+					throw new WkhtmlToPdfInvocationException("Interrupted while waiting for an identical render.", e);
+				}
+				done = false;
+			} finally {
+				handle.detach();
+			}
+			if (handle.isCancelled()) {
+				// leaves the flight, clear the interrupt that woke us up
+				Thread.interrupted();
+				return handle.cancelledResult();
+			}
+			if (!done) {
+				return DefaultInvoker.timedOut(handle.getDeadline(), start);
+			}
+			
+			Throwable failure = flight.getFailure();
+			if (failure != null) {
+				throw new WkhtmlToPdfInvocationException("Error executing identical render. Reason: " + failure.getMessage(), failure);
+			}
+			return deliver(flight, copyOf(flight.getResult(), start), outputSink, false, start);
+		} finally {
+			waiter.leave();
+		}
+	}
+
+	/**
+	 * Copies the document of a finished flight into the given sink, unless the
+	 * render did not leave one behind. A leader nobody else waits with takes
+	 * the file over instead.
+	 */
+	private InvocationResult deliver(Flight flight, InvocationResult result, OutputSink outputSink, boolean leader, long start) {
+		if (result.isCancelled() || result.isTimedOut() || result.getExecutionException() != null) {
+			return result;
+		}
+		Path output = flight.getOutput();
+		if (output == null) {
+			return failed(new CommandLineException("The identical render did not produce a document."), start);
+		}
+		try {
+			if (outputSink.getFile() != null) {
+				Path file = outputSink.getFile().toPath();
+				if (leader && flight.isLeaderAlone()) {
+					// created next to the file, so the rename is atomic
+					try {
+						Files.move(output, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(output, file, StandardCopyOption.REPLACE_EXISTING);
+					}
+				} else {
+					Files.copy(output, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} else {
+				try (InputStream in = Files.newInputStream(output)) {
+					outputSink.consume(in);
+				}
+			}
+		} catch (IOException e) {
+			return failed(new CommandLineException("Error writing rendered document. Reason: " + e.getMessage(), e), start);
+		}
+		return result;
+	}
+
+	private static InvocationResult copyOf(InvocationResult flightResult, long start) {
+		DefaultInvocationResult result = new DefaultInvocationResult();
+		result.setExitCode(flightResult.getExitCode());
+		result.setExecutionException(flightResult.getExecutionException());
+		result.setTimedOut(flightResult.isTimedOut());
+		result.setCancelled(flightResult.isCancelled());
+		result.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return result;
+	}
+
+	private static InvocationResult hit(long start) {
+		DefaultInvocationResult result = new DefaultInvocationResult();
+		result.setExitCode(0);
+		result.setCacheHit(true);
+		result.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return result;
+	}
+
+	private static InvocationResult failed(CommandLineException e, long start) {
+		DefaultInvocationResult result = new DefaultInvocationResult();
+		result.setExecutionException(e);
+		result.setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return result;
+	}
+
+}
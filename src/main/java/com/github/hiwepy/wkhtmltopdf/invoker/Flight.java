@@ -0,0 +1,431 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RequestFingerprint;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * A render shared by concurrent invocations of identical requests. The first
+ * invocation, the leader, starts the flight and runs the process. Invocations
+ * with the same fingerprint that arrive while it runs join as waiters, and
+ * each reads its own copy of the document from the output file of the flight
+ * once the render is done.
+ * <p>
+ * A leader writing to a file renders into a file next to it, which it takes
+ * over with a rename if nobody joined. A leader writing to a stream receives
+ * the document directly; it is only spooled into a file if waiters have
+ * joined by the time the document starts to arrive, otherwise the flight is
+ * closed to new waiters from then on.
+ * <p>
+ * A waiter that gives up only leaves the flight. The process is killed once no
+ * waiter is left. The output file is deleted when the last waiter leaves a
+ * finished flight.
+ */
+final class Flight {
+
+	private final ConcurrentMap<RequestFingerprint, Flight> flights;
+
+	private final RequestFingerprint fingerprint;
+
+	/**
+	 * The handle of the render, cancelled once the flight is abandoned.
+	 */
+	private final DefaultInvocationHandle handle;
+
+	/**
+	 * The file the document is rendered or spooled into, <code>null</code> if
+	 * there is none yet, guarded by this.
+	 */
+	private Path output;
+
+	/**
+	 * The number of waiters that have not left yet, guarded by this.
+	 */
+	private int waiters = 1;
+
+	/**
+	 * Whether the leader has not left yet, guarded by this.
+	 */
+	private boolean leading = true;
+
+	/**
+	 * Whether the document streams to the leader only, guarded by this.
+	 */
+	private boolean exclusive;
+
+	/**
+	 * Guarded by this.
+	 */
+	private boolean done;
+
+	/**
+	 * Guarded by this.
+	 */
+	private InvocationResult result;
+
+	/**
+	 * Guarded by this.
+	 */
+	private Throwable failure;
+
+	private Flight(ConcurrentMap<RequestFingerprint, Flight> flights, RequestFingerprint fingerprint, Deadline deadline) {
+		this.flights = flights;
+		this.fingerprint = fingerprint;
+		this.handle = new DefaultInvocationHandle(deadline);
+	}
+
+	/**
+	 * Joins the flight of the given fingerprint or starts a new one.
+	 * 
+	 * @param flights The flights in progress by fingerprint, must not be <code>null</code>.
+	 * @param fingerprint The fingerprint of the request, must not be <code>null</code>.
+	 * @param deadline The deadline of the render if a new flight is started, may be <code>null</code>.
+	 * @return The waiter, the leader if it started the flight. It must leave the flight when done.
+	 */
+	static Waiter join(ConcurrentMap<RequestFingerprint, Flight> flights, RequestFingerprint fingerprint, Deadline deadline) {
+		for (;;) {
+			Flight flight = flights.get(fingerprint);
+			if (flight != null) {
+				if (flight.tryJoin()) {
+					return flight.new Waiter(false);
+				}
+				// abandoned or streaming to its leader only, it is on its way out
+				flights.remove(fingerprint, flight);
+				continue;
+			}
+			flight = new Flight(flights, fingerprint, deadline);
+			if (flights.putIfAbsent(fingerprint, flight) == null) {
+				return flight.new Waiter(true);
+			}
+		}
+	}
+
+	private synchronized boolean tryJoin() {
+		if (done || exclusive || waiters == 0) {
+			return false;
+		}
+		waiters++;
+		return true;
+	}
+
+	private void leave(boolean leader) {
+		boolean abandoned;
+		boolean finished;
+		synchronized (this) {
+			waiters--;
+			if (leader) {
+				leading = false;
+			}
+			abandoned = waiters == 0 && !done;
+			finished = waiters == 0 && done;
+		}
+		if (abandoned) {
+			flights.remove(fingerprint, this);
+			handle.cancel();
+		}
+		if (finished) {
+			deleteOutput();
+		}
+	}
+
+	/**
+	 * Records the outcome of the render and wakes up the waiters. Invocations
+	 * arriving from now on start a new flight.
+	 * 
+	 * @param result The result of the render, may be <code>null</code> if it failed.
+	 * @param failure The exception the render failed with, may be <code>null</code>.
+	 */
+	void complete(InvocationResult result, Throwable failure) {
+		if (result == null && failure == null) {
+			// the waiters can not deliver nothing
+			failure = new IllegalStateException("The render finished without a result.");
+		}
+		flights.remove(fingerprint, this);
+		boolean finished;
+		synchronized (this) {
+			this.done = true;
+			this.result = result;
+			this.failure = failure;
+			notifyAll();
+			finished = waiters == 0;
+		}
+		if (finished) {
+			deleteOutput();
+		}
+	}
+
+	/**
+	 * Waits for the render to finish.
+	 * 
+	 * @param deadline The deadline of the waiting invocation, may be <code>null</code>.
+	 * @return <code>true</code> if the render finished, <code>false</code> if the deadline expired first.
+	 * @throws InterruptedException If the waiting thread was interrupted.
+	 */
+	synchronized boolean await(Deadline deadline) throws InterruptedException {
+		while (!done) {
+			if (deadline == null) {
+				wait();
+			} else {
+				long remaining = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the output file of this flight.
+	 * 
+	 * @param nextTo The file the leader writes the document to, the output file
+	 *            is created in the same directory so it can be renamed to it. May
+	 *            be <code>null</code> to create it in the temporary directory.
+	 * @return The output file, never <code>null</code>.
+	 * @throws IOException If the file could not be created.
+	 */
+	Path createOutput(File nextTo) throws IOException {
+		Path file;
+		if (nextTo != null) {
+			file = Files.createTempFile(nextTo.getAbsoluteFile().getParentFile().toPath(), "." + nextTo.getName() + "-", ".tmp");
+		} else {
+			file = Files.createTempFile("wkhtmltopdf-", ".pdf");
+		}
+		synchronized (this) {
+			output = file;
+		}
+		return file;
+	}
+
+	/**
+	 * Decides whether the document, which is starting to arrive, has to be
+	 * spooled for other waiters. If nobody but the leader waits for it, the
+	 * flight is closed to new waiters, so the document only streams to the
+	 * leader.
+	 * 
+	 * @return <code>true</code> if the document has to be spooled.
+	 */
+	private boolean startOutput() {
+		synchronized (this) {
+			if (!leading || waiters > 1) {
+				return true;
+			}
+			exclusive = true;
+		}
+		flights.remove(fingerprint, this);
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if the leader is the only waiter left, nobody
+	 *         else will read the output file then.
+	 */
+	synchronized boolean isLeaderAlone() {
+		return leading && waiters == 1;
+	}
+
+	private synchronized boolean isLeading() {
+		return leading;
+	}
+
+	private void deleteOutput() {
+		Path output = getOutput();
+		if (output == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(output);
+		} catch (IOException e) {
+			// a temporary file, nothing depends on it anymore
+		}
+	}
+
+	/**
+	 * @return The handle the render is executed with.
+	 */
+	DefaultInvocationHandle getHandle() {
+		return handle;
+	}
+
+	/**
+	 * @return The file the document is rendered or spooled into, <code>null</code> if there is none.
+	 */
+	synchronized Path getOutput() {
+		return output;
+	}
+
+	/**
+	 * Creates the sink the render streams the document into on behalf of a
+	 * leader that reads it from a stream.
+	 * 
+	 * @param leaderSink The sink of the leader, must not be <code>null</code>.
+	 * @return The sink, never <code>null</code>.
+	 */
+	StreamSink newStreamSink(OutputSink leaderSink) {
+		return new StreamSink(leaderSink);
+	}
+
+	/**
+	 * @return The result of the render or <code>null</code> if it failed or is not done yet.
+	 */
+	synchronized InvocationResult getResult() {
+		return result;
+	}
+
+	/**
+	 * @return The exception the render failed with or <code>null</code>.
+	 */
+	synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * An invocation taking part in a flight.
+	 */
+	final class Waiter {
+
+		private final boolean leader;
+
+		private final AtomicBoolean left = new AtomicBoolean();
+
+		Waiter(boolean leader) {
+			this.leader = leader;
+		}
+
+		/**
+		 * @return <code>true</code> if this waiter started the flight and has to run the render.
+		 */
+		boolean isLeader() {
+			return leader;
+		}
+
+		Flight getFlight() {
+			return Flight.this;
+		}
+
+		/**
+		 * Leaves the flight, once only.
+		 */
+		void leave() {
+			if (left.compareAndSet(false, true)) {
+				Flight.this.leave(leader);
+			}
+		}
+
+	}
+
+	/**
+	 * Sink passing the document on to the sink of the leader while the leader
+	 * waits for it, and spooling it into the output file of the flight if other
+	 * waiters joined before it started to arrive. If the sink of the leader
+	 * fails, the document is still spooled for the others.
+	 */
+	final class StreamSink extends OutputSink {
+
+		private final OutputSink leaderSink;
+
+		private volatile IOException leaderFailure;
+
+		StreamSink(OutputSink leaderSink) {
+			this.leaderSink = leaderSink;
+		}
+
+		@Override
+		public String getArgument() {
+			return leaderSink.getArgument();
+		}
+
+		public long consume(InputStream in) throws IOException {
+			
+			// wkhtmltopdf prints the document once the pages are laid out, until then waiters may join
+			PushbackInputStream document = new PushbackInputStream(in, 1);
+			int first = document.read();
+			if (first != -1) {
+				document.unread(first);
+			}
+			if (!startOutput()) {
+				return leaderSink.consume(document);
+			}
+			
+			try (final OutputStream spool = Files.newOutputStream(createOutput(null))) {
+				long count = 0;
+				if (isLeading()) {
+					try {
+						count = leaderSink.consume(new FilterInputStream(document) {
+
+							@Override
+							public int read() throws IOException {
+								byte[] b = new byte[1];
+								return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+							}
+
+							@Override
+							public int read(byte[] b, int off, int len) throws IOException {
+								if (!isLeading()) {
+									// the leader left, stop feeding its sink
+									return -1;
+								}
+								int n = super.read(b, off, len);
+								if (n > 0) {
+									spool.write(b, off, n);
+								}
+								return n;
+							}
+
+							@Override
+							public boolean markSupported() {
+								return false;
+							}
+
+						});
+					} catch (IOException e) {
+						leaderFailure = e;
+					}
+				}
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = document.read(buffer)) != -1) {
+					spool.write(buffer, 0, n);
+					count += n;
+				}
+				return count;
+			}
+		}
+
+		/**
+		 * @return The exception the sink of the leader failed with while the document was spooled, or <code>null</code>.
+		 */
+		IOException getLeaderFailure() {
+			return leaderFailure;
+		}
+
+	}
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+
+/**
+ * A handle to a submitted wkhtmltopdf invocation that lets the caller wait for
+ * its result or give up on it. Cancelling an invocation that is still queued
+ * removes it from the queue; cancelling a running invocation kills its process
+ * tree, closes its pipes and deletes the partially written output file.
+ */
+public interface InvocationHandle {
+
+	/**
+	 * Cancels the invocation. The result of a cancelled invocation reports
+	 * {@link InvocationResult#isCancelled()}.
+	 * 
+	 * @return <code>true</code> if the invocation was cancelled by this call,
+	 *         <code>false</code> if it had already finished or been cancelled.
+	 */
+	boolean cancel();
+
+	/**
+	 * @return <code>true</code> if the invocation was cancelled.
+	 */
+	boolean isCancelled();
+
+	/**
+	 * @return <code>true</code> if the result of the invocation is available.
+	 */
+	boolean isDone();
+
+	/**
+	 * Waits for the invocation to finish.
+	 * 
+	 * @return The result of the invocation, never <code>null</code>.
+	 * @throws WkhtmlToPdfInvocationException If the invocation could not be performed or the calling thread was interrupted.
+	 */
+	InvocationResult getResult() throws WkhtmlToPdfInvocationException;
+
+	/**
+	 * Waits at most the given time for the invocation to finish. The invocation
+	 * keeps running if the time is up.
+	 * 
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout, must not be <code>null</code>.
+	 * @return The result of the invocation, never <code>null</code>.
+	 * @throws WkhtmlToPdfInvocationException If the invocation could not be performed or the calling thread was interrupted.
+	 * @throws TimeoutException If the invocation did not finish in time.
+	 */
+	InvocationResult getResult(long timeout, TimeUnit unit) throws WkhtmlToPdfInvocationException, TimeoutException;
+
+	/**
+	 * Gets a completion stage of the invocation. Cancelling the returned future
+	 * cancels the invocation.
+	 * 
+	 * @return The future of the invocation, never <code>null</code>.
+	 */
+	CompletableFuture<InvocationResult> toCompletableFuture();
+
+}
@@ -21,5 +21,17 @@ import org.codehaus.plexus.util.cli.StreamConsumer;
  * Receives the standard/error output from a Calibre invocation.
  */
 public interface InvocationOutputHandler extends StreamConsumer {
-	// empty by design
+
+	/**
+	 * Indicates whether this handler wants the progress output of wkhtmltopdf.
+	 * If neither the output handler nor the error handler of an invocation
+	 * wants it, the invoker passes <code>--log-level warn</code> to wkhtmltopdf
+	 * 0.12.5 and later.
+	 * 
+	 * @return <code>true</code> if the progress output is of interest, <code>true</code> by default.
+	 */
+	default boolean isInterestedInProgress() {
+		return true;
+	}
+
 }
@@ -40,4 +40,34 @@ public interface InvocationResult
      */
     int getExitCode();
 
+    /**
+     * Gets whether the invocation was aborted because its timeout or deadline expired. The process tree is killed in
+     * that case and {@link #getExecutionException()} reports the timeout.
+     * 
+     * @return <code>true</code> if the invocation timed out, <code>false</code> otherwise.
+     */
+    boolean isTimedOut();
+
+    /**
+     * Gets whether the invocation was cancelled through its {@link InvocationHandle}.
+     * 
+     * @return <code>true</code> if the invocation was cancelled, <code>false</code> otherwise.
+     */
+    boolean isCancelled();
+
+    /**
+     * Gets the wall-clock time spent on the invocation, including the time spent waiting for a free process slot.
+     * 
+     * @return The elapsed time in milliseconds.
+     */
+    long getElapsedTime();
+
+    /**
+     * Gets whether the document was served from the {@link com.github.hiwepy.wkhtmltopdf.invoker.cache.RenderCache}
+     * of the invoker instead of being rendered.
+     * 
+     * @return <code>true</code> if no process was started for the invocation, <code>false</code> otherwise.
+     */
+    boolean isCacheHit();
+
 }
@@ -16,6 +16,8 @@
 package com.github.hiwepy.wkhtmltopdf.invoker;
 
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
 import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
@@ -44,6 +46,32 @@ public interface Invoker {
 	 */
 	InvocationResult execute(InvocationRequest request) throws WkhtmlToPdfInvocationException;
 
+	/**
+	 * Executes wkhtmltopdf asynchronously using the parameters specified by the
+	 * given invocation request. The invocation is handed to the executor of this
+	 * invoker and the calling thread returns immediately.
+	 * 
+	 * @param request
+	 *            The invocation request to execute, must not be <code>null</code>.
+	 * @return A completion stage of the wkhtmltopdf invocation, never
+	 *         <code>null</code>. It completes exceptionally with a
+	 *         {@link WkhtmlToPdfInvocationException} if the invocation could not
+	 *         be performed. Cancelling it cancels the invocation.
+	 */
+	CompletableFuture<InvocationResult> executeAsync(InvocationRequest request);
+
+	/**
+	 * Submits the given invocation request for asynchronous execution and returns
+	 * a handle that can be used to cancel it. Unlike {@link #execute(InvocationRequest)},
+	 * this lets the caller stop a render it is no longer interested in, e.g.
+	 * because the client that asked for it went away.
+	 * 
+	 * @param request
+	 *            The invocation request to execute, must not be <code>null</code>.
+	 * @return The handle of the invocation, never <code>null</code>.
+	 */
+	InvocationHandle submit(InvocationRequest request);
+
 	/**
 	 * Gets the working directory for the wkhtmltopdf invocation.
 	 * 
@@ -112,4 +140,13 @@ public interface Invoker {
 	 * @return This invoker instance.
 	 */
 	Invoker setErrorHandler(InvocationOutputHandler errorHandler);
+
+	/**
+	 * Sets the executor used to run asynchronous invocations.
+	 * 
+	 * @param executor
+	 *            The executor, may be <code>null</code> to use a shared default executor.
+	 * @return This invoker instance.
+	 */
+	Invoker setExecutor(Executor executor);
 }
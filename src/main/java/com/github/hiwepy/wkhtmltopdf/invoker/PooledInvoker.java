@@ -0,0 +1,499 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.InvocationRejectedException;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
+
+/**
+ * Invoker that caps the number of concurrently forked wkhtmltopdf processes.
+ * Invocations beyond the cap wait in a bounded queue for a free process slot;
+ * once the queue is full, or a slot does not become free within the queue
+ * timeout, the invocation is rejected with an
+ * {@link InvocationRejectedException} instead of adding more load to an
+ * already saturated host.
+ * <p>
+ * Asynchronous invocations are admitted before they are dispatched to the
+ * executor, so an invocation waiting for a slot does not hold a thread. They
+ * keep their slot from then on, including a render cache lookup and the
+ * download of their assets. One that joins an identical render gives its slot
+ * back at once, so identical requests still coalesce as long as a slot is
+ * left besides the renders in progress.
+ */
+public class PooledInvoker extends DefaultInvoker {
+
+	public static final String ROLE_HINT = "pooled";
+
+	public static final int DEFAULT_MAX_QUEUE_SIZE = 100;
+
+	public static final long DEFAULT_QUEUE_TIMEOUT = 30000;
+
+	/**
+	 * The maximum number of wkhtmltopdf processes running at the same time.
+	 */
+	private final int maxProcesses;
+
+	/**
+	 * The maximum number of invocations waiting for a process slot.
+	 */
+	private final int maxQueueSize;
+
+	/**
+	 * The time in milliseconds an invocation may wait for a process slot.
+	 */
+	private final long queueTimeout;
+
+	private final Object lock = new Object();
+
+	/**
+	 * The number of free process slots, guarded by lock.
+	 */
+	private int freeSlots;
+
+	/**
+	 * The invocations waiting for a slot in arrival order, guarded by lock.
+	 */
+	private final Deque<SlotWaiter> waiters = new ArrayDeque<SlotWaiter>();
+
+	private final AtomicInteger queueDepth = new AtomicInteger();
+
+	private final AtomicLong admittedCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+
+	private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+
+	/**
+	 * Creates a new invoker running at most one process per available processor.
+	 */
+	public PooledInvoker() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new invoker with the default queue size and queue timeout.
+	 * 
+	 * @param maxProcesses The maximum number of concurrent wkhtmltopdf processes, must be positive.
+	 */
+	public PooledInvoker(int maxProcesses) {
+		this(maxProcesses, DEFAULT_MAX_QUEUE_SIZE, DEFAULT_QUEUE_TIMEOUT);
+	}
+
+	/**
+	 * Creates a new invoker.
+	 * 
+	 * @param maxProcesses The maximum number of concurrent wkhtmltopdf processes, must be positive.
+	 * @param maxQueueSize The maximum number of invocations waiting for a process slot, <code>0</code> to reject as soon as all slots are busy.
+	 * @param queueTimeout The time in milliseconds an invocation may wait for a process slot.
+	 */
+	public PooledInvoker(int maxProcesses, int maxQueueSize, long queueTimeout) {
+		if (maxProcesses < 1) {
+			throw new IllegalArgumentException("maxProcesses must be positive: " + maxProcesses);
+		}
+		if (maxQueueSize < 0) {
+			throw new IllegalArgumentException("maxQueueSize must not be negative: " + maxQueueSize);
+		}
+		this.maxProcesses = maxProcesses;
+		this.maxQueueSize = maxQueueSize;
+		this.queueTimeout = queueTimeout;
+		this.freeSlots = maxProcesses;
+	}
+
+	@Override
+	void dispatch(final Runnable task, final DefaultInvocationHandle handle, final Runnable dropped) {
+		
+		final Runnable release = new Runnable() {
+			
+			public void run() {
+				// the invocation ended before it reached the process, e.g. a cache hit
+				releaseAdmission(handle);
+			}
+			
+		};
+		final Runnable admittedTask = new Runnable() {
+			
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					release.run();
+				}
+			}
+			
+		};
+		
+		// attached before the waiter is queued, a granted waiter attaches the next stage
+		final AsyncWaiter waiter = new AsyncWaiter(handle, admittedTask, release);
+		handle.attach(new Runnable() {
+			
+			public void run() {
+				if (leaveQueue(waiter)) {
+					waiter.cancelTimeout();
+				}
+				handle.complete(handle.cancelledResult());
+			}
+			
+		});
+		
+		boolean admitted = false;
+		boolean queued = false;
+		synchronized (lock) {
+			if (waiters.isEmpty() && freeSlots > 0) {
+				freeSlots--;
+				admitted = true;
+			} else if (waiters.size() < maxQueueSize) {
+				waiters.add(waiter);
+				queueDepth.incrementAndGet();
+				queued = true;
+			}
+		}
+		
+		if (admitted) {
+			admittedCount.incrementAndGet();
+			handle.admit();
+			super.dispatch(admittedTask, handle, release);
+		} else if (queued) {
+			waiter.scheduleTimeout();
+		} else {
+			rejectedCount.incrementAndGet();
+			handle.fail(new InvocationRejectedException("Invocation rejected, " + maxQueueSize + " invocations are already waiting for one of " + maxProcesses + " process slots."));
+		}
+	}
+
+	@Override
+	void releaseAdmission(DefaultInvocationHandle handle) {
+		if (handle.takeAdmission()) {
+			releaseSlot();
+		}
+	}
+
+	@Override
+	protected InvocationResult execute(InvocationRequest request, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		if (handle.takeAdmission()) {
+			// admitted before it was dispatched, the time in the queue counts from the submission
+			return executeAdmitted(request, handle, handle.getStart());
+		}
+		long start = System.nanoTime();
+		if (!handle.attach(interrupting(Thread.currentThread()))) {
+			return handle.cancelledResult();
+		}
+		boolean acquired = false;
+		try {
+			acquired = acquireSlot(handle.getDeadline());
+		} catch (WkhtmlToPdfInvocationException e) {
+			if (!handle.isCancelled()) {
+				throw e;
+			}
+		} finally {
+			handle.detach();
+		}
+		if (handle.isCancelled()) {
+			// leaves the queue, clear the interrupt that woke us up
+			Thread.interrupted();
+			if (acquired) {
+				releaseSlot();
+			}
+			return handle.cancelledResult();
+		}
+		if (!acquired) {
+			return timedOut(handle.getDeadline(), start);
+		}
+		return executeAdmitted(request, handle, start);
+	}
+
+	private InvocationResult executeAdmitted(InvocationRequest request, DefaultInvocationHandle handle, long start) throws WkhtmlToPdfInvocationException {
+		try {
+			InvocationResult result = super.execute(request, handle);
+			if (result instanceof DefaultInvocationResult) {
+				// account for the time spent in the queue as well
+				((DefaultInvocationResult) result).setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+			return result;
+		} finally {
+			releaseSlot();
+		}
+	}
+
+	/**
+	 * Waits for a free process slot, at most for the queue timeout or the time
+	 * remaining until the given deadline, whichever is shorter.
+	 * 
+	 * @param deadline The deadline of the invocation, may be <code>null</code>.
+	 * @return <code>true</code> if a slot was acquired, <code>false</code> if the deadline expired first.
+	 * @throws WkhtmlToPdfInvocationException If the invocation was rejected or interrupted.
+	 */
+	protected boolean acquireSlot(Deadline deadline) throws WkhtmlToPdfInvocationException {
+		
+		BlockingWaiter waiter = new BlockingWaiter();
+		synchronized (lock) {
+			// fast path, a slot is free and nobody is waiting for it
+			if (waiters.isEmpty() && freeSlots > 0) {
+				freeSlots--;
+				admittedCount.incrementAndGet();
+				return true;
+			}
+			if (waiters.size() >= maxQueueSize) {
+				rejectedCount.incrementAndGet();
+				throw new InvocationRejectedException("Invocation rejected, " + maxQueueSize + " invocations are already waiting for one of " + maxProcesses + " process slots.");
+			}
+			waiters.add(waiter);
+			queueDepth.incrementAndGet();
+		}
+		
+		long timeout = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+		boolean deadlineBound = deadline != null && deadline.timeRemaining(TimeUnit.NANOSECONDS) < timeout;
+		if (deadlineBound) {
+			timeout = deadline.timeRemaining(TimeUnit.NANOSECONDS);
+		}
+		
+		try {
+			// a slot handed over just after the wait timed out is kept
+			if (waiter.granted.await(timeout, TimeUnit.NANOSECONDS) || !leaveQueue(waiter)) {
+				admittedCount.incrementAndGet();
+				return true;
+			}
+			if (deadlineBound) {
+				return false;
+			}
+			rejectedCount.incrementAndGet();
+			throw new InvocationRejectedException("Invocation rejected, no process slot became free within " + queueTimeout + " ms.");
+		} catch (InterruptedException e) {
+			if (!leaveQueue(waiter)) {
+				// the slot was handed over while we were interrupted, pass it on
+				releaseSlot();
+			}
+			Thread.currentThread().interrupt();
+			throw new WkhtmlToPdfInvocationException("Interrupted while waiting for a process slot.", e);
+		} finally {
+			recordQueueWait(System.nanoTime() - waiter.enqueued);
+		}
+	}
+
+	/**
+	 * Frees a process slot acquired with {@link #acquireSlot(Deadline)}. The
+	 * slot is handed straight to the longest waiting invocation, if any.
+	 */
+	protected void releaseSlot() {
+		SlotWaiter next;
+		synchronized (lock) {
+			next = waiters.poll();
+			if (next == null) {
+				freeSlots++;
+				return;
+			}
+			queueDepth.decrementAndGet();
+		}
+		next.grant();
+	}
+
+	/**
+	 * Removes the given waiter from the queue.
+	 * 
+	 * @return <code>false</code> if it is no longer queued, i.e. it has been granted a slot.
+	 */
+	private boolean leaveQueue(SlotWaiter waiter) {
+		synchronized (lock) {
+			if (!waiters.remove(waiter)) {
+				return false;
+			}
+			queueDepth.decrementAndGet();
+			return true;
+		}
+	}
+
+	private void recordQueueWait(long nanos) {
+		totalQueueWaitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxQueueWaitNanos.get())) {
+			if (maxQueueWaitNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return The maximum number of concurrent wkhtmltopdf processes.
+	 */
+	public int getMaxProcesses() {
+		return maxProcesses;
+	}
+
+	/**
+	 * @return The maximum number of invocations waiting for a process slot.
+	 */
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * @return The time in milliseconds an invocation may wait for a process slot.
+	 */
+	public long getQueueTimeout() {
+		return queueTimeout;
+	}
+
+	/**
+	 * @return The number of invocations currently running a wkhtmltopdf process.
+	 */
+	public int getActiveCount() {
+		synchronized (lock) {
+			return maxProcesses - freeSlots;
+		}
+	}
+
+	/**
+	 * @return The number of invocations currently waiting for a process slot.
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return The number of invocations that were given a process slot.
+	 */
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	/**
+	 * @return The number of invocations rejected because the invoker was saturated.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @param unit The unit of the returned value.
+	 * @return The accumulated time invocations spent waiting for a process slot.
+	 */
+	public long getTotalQueueWaitTime(TimeUnit unit) {
+		return unit.convert(totalQueueWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param unit The unit of the returned value.
+	 * @return The longest time a single invocation spent waiting for a process slot.
+	 */
+	public long getMaxQueueWaitTime(TimeUnit unit) {
+		return unit.convert(maxQueueWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * An invocation waiting for a process slot.
+	 */
+	private abstract static class SlotWaiter {
+
+		final long enqueued = System.nanoTime();
+
+		/**
+		 * Hands a process slot over to this waiter, which has left the queue.
+		 */
+		abstract void grant();
+
+	}
+
+	/**
+	 * A thread blocked in {@link PooledInvoker#acquireSlot(Deadline)}.
+	 */
+	private static final class BlockingWaiter extends SlotWaiter {
+
+		final CountDownLatch granted = new CountDownLatch(1);
+
+		@Override
+		void grant() {
+			granted.countDown();
+		}
+
+	}
+
+	/**
+	 * A submitted invocation that is dispatched to the executor once it is
+	 * granted a slot, so it does not hold a thread while it waits.
+	 */
+	private final class AsyncWaiter extends SlotWaiter {
+
+		private final DefaultInvocationHandle handle;
+
+		private final Runnable task;
+
+		private final Runnable release;
+
+		private ScheduledFuture<?> timeout;
+
+		AsyncWaiter(DefaultInvocationHandle handle, Runnable task, Runnable release) {
+			this.handle = handle;
+			this.task = task;
+			this.release = release;
+		}
+
+		@Override
+		void grant() {
+			cancelTimeout();
+			admittedCount.incrementAndGet();
+			recordQueueWait(System.nanoTime() - enqueued);
+			handle.admit();
+			PooledInvoker.super.dispatch(task, handle, release);
+		}
+
+		void scheduleTimeout() {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+			Deadline deadline = handle.getDeadline();
+			final boolean deadlineBound = deadline != null && deadline.timeRemaining(TimeUnit.NANOSECONDS) < timeout;
+			if (deadlineBound) {
+				timeout = Math.max(0, deadline.timeRemaining(TimeUnit.NANOSECONDS));
+			}
+			ScheduledFuture<?> future = ProcessThreads.getScheduler().schedule(new Runnable() {
+
+				public void run() {
+					if (!leaveQueue(AsyncWaiter.this)) {
+						return;
+					}
+					recordQueueWait(System.nanoTime() - enqueued);
+					if (deadlineBound) {
+						handle.complete(timedOut(handle.getDeadline(), enqueued));
+					} else {
+						rejectedCount.incrementAndGet();
+						handle.fail(new InvocationRejectedException("Invocation rejected, no process slot became free within " + queueTimeout + " ms."));
+					}
+				}
+
+			}, timeout, TimeUnit.NANOSECONDS);
+			synchronized (this) {
+				this.timeout = future;
+			}
+		}
+
+		synchronized void cancelTimeout() {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+/**
+ * Describes the progress of a wkhtmltopdf invocation, e.g. phase 1 of 6
+ * "Loading pages" at 40%, or phase 6 of 6 "Printing pages" at page 3 of 10.
+ */
+public final class ProgressEvent {
+
+	private final String phase;
+
+	private final int phaseIndex;
+
+	private final int phaseCount;
+
+	private final int percent;
+
+	private final int current;
+
+	private final int total;
+
+	private final boolean done;
+
+	private final long timestamp;
+
+	ProgressEvent(String phase, int phaseIndex, int phaseCount, int percent, int current, int total, boolean done) {
+		this.phase = phase;
+		this.phaseIndex = phaseIndex;
+		this.phaseCount = phaseCount;
+		this.percent = percent;
+		this.current = current;
+		this.total = total;
+		this.done = done;
+		this.timestamp = System.nanoTime();
+	}
+
+	/**
+	 * @return The name of the current phase, e.g. "Loading pages", or <code>null</code> before the first phase.
+	 */
+	public String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return The 1-based index of the current phase or <code>0</code> before the first phase.
+	 */
+	public int getPhaseIndex() {
+		return phaseIndex;
+	}
+
+	/**
+	 * @return The number of phases or <code>0</code> if not known yet.
+	 */
+	public int getPhaseCount() {
+		return phaseCount;
+	}
+
+	/**
+	 * @return The percentage reported for the current phase or <code>-1</code> if not reported.
+	 */
+	public int getPercent() {
+		return percent;
+	}
+
+	/**
+	 * @return The current page or object of the current phase or <code>0</code> if not reported.
+	 */
+	public int getCurrent() {
+		return current;
+	}
+
+	/**
+	 * @return The number of pages or objects of the current phase or <code>0</code> if not reported.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return <code>true</code> if wkhtmltopdf reported that it is done.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return The {@link System#nanoTime()} at which the progress was parsed.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		if (done) {
+			return "ProgressEvent[done]";
+		}
+		StringBuilder sb = new StringBuilder("ProgressEvent[");
+		sb.append(phase).append(" (").append(phaseIndex).append('/').append(phaseCount).append(')');
+		if (percent >= 0) {
+			sb.append(' ').append(percent).append('%');
+		}
+		if (total > 0) {
+			sb.append(' ').append(current).append(" of ").append(total);
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+/**
+ * Receives the progress of a wkhtmltopdf invocation as parsed by a
+ * {@link ProgressOutputHandler}.
+ */
+public interface ProgressListener {
+
+	/**
+	 * Called on the thread that pumps the error output whenever the phase, the
+	 * percentage or the page/object count reported by wkhtmltopdf changes.
+	 * Implementations should return quickly, the process blocks while its
+	 * output is not read.
+	 * 
+	 * @param event The progress, never <code>null</code>.
+	 */
+	void progressChanged(ProgressEvent event);
+
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamConsumer;
+
+/**
+ * Offers an output handler that parses the progress wkhtmltopdf writes to its
+ * error output into {@link ProgressEvent}s, e.g.
+ * 
+ * <pre>
+ * Loading pages (1/6)
+ * [==========&gt;               ] 40%
+ * Printing pages (6/6)
+ * [=========================] Page 1 of 1
+ * Done
+ * </pre>
+ * 
+ * The output is scanned byte by byte; carriage returns end a line just like
+ * line feeds, so every redraw of the progress bar is seen. Nothing is
+ * allocated for a progress line that does not change the progress. Lines that
+ * are not progress, e.g. warnings and errors, are passed on to the delegate
+ * handler. Use one instance per invocation.
+ */
+public class ProgressOutputHandler implements InvocationOutputHandler, ByteStreamConsumer {
+
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	private static final byte[] DONE = { 'D', 'o', 'n', 'e' };
+
+	private static final byte[] PAGE = { 'P', 'a', 'g', 'e', ' ' };
+
+	private static final byte[] OBJECT = { 'O', 'b', 'j', 'e', 'c', 't', ' ' };
+
+	private final ProgressListener listener;
+
+	private final InvocationOutputHandler delegate;
+
+	private final Charset charset;
+
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+
+	private int length;
+
+	private boolean overflow;
+
+	private String phase;
+
+	private int phaseIndex;
+
+	private int phaseCount;
+
+	private int percent = -1;
+
+	private int current;
+
+	private int total;
+
+	/**
+	 * Creates a new handler that only reports the progress.
+	 * 
+	 * @param listener The listener to notify, must not be <code>null</code>.
+	 */
+	public ProgressOutputHandler(ProgressListener listener) {
+		this(listener, null);
+	}
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param listener The listener to notify, must not be <code>null</code>.
+	 * @param delegate The handler receiving all other lines, may be <code>null</code> if they are not of interest.
+	 */
+	public ProgressOutputHandler(ProgressListener listener, InvocationOutputHandler delegate) {
+		if (listener == null) {
+			throw new NullPointerException("missing listener");
+		}
+		this.listener = listener;
+		this.delegate = delegate;
+		this.charset = Charset.defaultCharset();
+	}
+
+	public long consume(InputStream in) throws IOException {
+		byte[] buffer = new byte[4096];
+		long count = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			for (int i = 0; i < n; i++) {
+				accept(buffer[i]);
+			}
+			count += n;
+		}
+		endLine();
+		return count;
+	}
+
+	public void consumeLine(String text) throws IOException {
+		// the line still holds the carriage returns of the progress bar
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				accept((byte) c);
+			} else {
+				// not part of any progress line, only forwarded
+				byte[] bytes = String.valueOf(c).getBytes(charset);
+				for (byte b : bytes) {
+					accept(b);
+				}
+			}
+		}
+		endLine();
+	}
+
+	public boolean isInterestedInProgress() {
+		return true;
+	}
+
+	private void accept(byte b) throws IOException {
+		if (b == '\r' || b == '\n') {
+			endLine();
+		} else if (length < line.length) {
+			line[length++] = b;
+		} else {
+			overflow = true;
+		}
+	}
+
+	private void endLine() throws IOException {
+		if (length > 0 && !parse()) {
+			if (delegate != null) {
+				delegate.consumeLine(new String(line, 0, length, charset));
+			}
+		}
+		length = 0;
+		overflow = false;
+	}
+
+	/**
+	 * @return <code>true</code> if the line was a progress line.
+	 */
+	private boolean parse() {
+		if (overflow) {
+			return false;
+		}
+		if (line[0] == '[') {
+			return parseBar();
+		}
+		if (startsWith(0, DONE) && length == DONE.length) {
+			listener.progressChanged(new ProgressEvent(phase, phaseIndex, phaseCount, 100, current, total, true));
+			return true;
+		}
+		return parsePhase();
+	}
+
+	/**
+	 * Parses "Loading pages (1/6)".
+	 */
+	private boolean parsePhase() {
+		if (line[length - 1] != ')') {
+			return false;
+		}
+		int open = length - 2;
+		while (open > 0 && line[open] != '(') {
+			open--;
+		}
+		if (open < 2 || line[open - 1] != ' ') {
+			return false;
+		}
+		int slash = skipDigits(open + 1);
+		if (slash == open + 1 || slash >= length - 1 || line[slash] != '/') {
+			return false;
+		}
+		int end = skipDigits(slash + 1);
+		if (end != length - 1 || end == slash + 1) {
+			return false;
+		}
+		int index = parseInt(open + 1, slash);
+		int count = parseInt(slash + 1, end);
+		if (index != phaseIndex || count != phaseCount || phase == null) {
+			phase = new String(line, 0, open - 1, charset);
+			phaseIndex = index;
+			phaseCount = count;
+			percent = -1;
+			current = 0;
+			total = 0;
+			fire();
+		}
+		return true;
+	}
+
+	/**
+	 * Parses "[====&gt;   ] 40%", "[====] Page 1 of 2" and "[====] Object 1 of 2".
+	 */
+	private boolean parseBar() {
+		int close = 1;
+		while (close < length && line[close] != ']') {
+			close++;
+		}
+		if (close == length) {
+			return false;
+		}
+		int start = close + 1;
+		while (start < length && line[start] == ' ') {
+			start++;
+		}
+		int digits = skipDigits(start);
+		if (digits > start && digits == length - 1 && line[digits] == '%') {
+			update(parseInt(start, digits), current, total);
+		} else if (startsWith(start, PAGE)) {
+			parseCount(start + PAGE.length);
+		} else if (startsWith(start, OBJECT)) {
+			parseCount(start + OBJECT.length);
+		}
+		// anything else, e.g. "Preparing", is still a progress line
+		return true;
+	}
+
+	/**
+	 * Parses "1 of 2".
+	 */
+	private void parseCount(int start) {
+		int end = skipDigits(start);
+		if (end == start || end + 4 > length || line[end] != ' ' || line[end + 1] != 'o' || line[end + 2] != 'f'
+				|| line[end + 3] != ' ') {
+			return;
+		}
+		int last = skipDigits(end + 4);
+		if (last == end + 4 || last != length) {
+			return;
+		}
+		update(percent, parseInt(start, end), parseInt(end + 4, last));
+	}
+
+	private void update(int newPercent, int newCurrent, int newTotal) {
+		if (newPercent != percent || newCurrent != current || newTotal != total) {
+			percent = newPercent;
+			current = newCurrent;
+			total = newTotal;
+			fire();
+		}
+	}
+
+	private void fire() {
+		listener.progressChanged(new ProgressEvent(phase, phaseIndex, phaseCount, percent, current, total, false));
+	}
+
+	private boolean startsWith(int offset, byte[] prefix) {
+		if (offset + prefix.length > length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (line[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int skipDigits(int offset) {
+		while (offset < length && line[offset] >= '0' && line[offset] <= '9') {
+			offset++;
+		}
+		return offset;
+	}
+
+	private int parseInt(int from, int to) {
+		int value = 0;
+		for (int i = from; i < to && value < Integer.MAX_VALUE / 10; i++) {
+			value = value * 10 + (line[i] - '0');
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamConsumer;
+
+/**
+ * Offers an output handler that keeps only the last bytes of the output in a
+ * fixed-size ring buffer, e.g. the warnings and errors that explain a failed
+ * invocation. Memory use is bounded no matter how much a page prints. The
+ * output is stored as raw bytes and only decoded when the tail is read.
+ * <p>
+ * This handler is not interested in progress output, an invocation using it
+ * for both streams runs with <code>--log-level warn</code> where wkhtmltopdf
+ * supports it, so the warnings and errors are still kept. Use one instance per
+ * invocation.
+ */
+public class TailOutputHandler implements InvocationOutputHandler, ByteStreamConsumer {
+
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	private static final int CHUNK_SIZE = 4096;
+
+	private final byte[] ring;
+
+	private final Charset charset;
+
+	/**
+	 * The number of bytes written so far, guarded by this.
+	 */
+	private long total;
+
+	/**
+	 * Creates a new handler keeping the last {@value #DEFAULT_CAPACITY} bytes.
+	 */
+	public TailOutputHandler() {
+		this(DEFAULT_CAPACITY, Charset.defaultCharset());
+	}
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param capacity The number of bytes kept, must be positive.
+	 * @param charset The charset of the output, must not be <code>null</code>.
+	 */
+	public TailOutputHandler(int capacity, Charset charset) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		if (charset == null) {
+			throw new NullPointerException("missing charset");
+		}
+		this.ring = new byte[capacity];
+		this.charset = charset;
+	}
+
+	public long consume(InputStream in) throws IOException {
+		byte[] chunk = new byte[Math.min(CHUNK_SIZE, ring.length)];
+		long count = 0;
+		int n;
+		while ((n = in.read(chunk)) != -1) {
+			write(chunk, 0, n);
+			count += n;
+		}
+		return count;
+	}
+
+	public void consumeLine(String line) {
+		byte[] bytes = ((line != null ? line : "") + '\n').getBytes(charset);
+		write(bytes, 0, bytes.length);
+	}
+
+	public boolean isInterestedInProgress() {
+		return false;
+	}
+
+	private synchronized void write(byte[] bytes, int offset, int length) {
+		if (length >= ring.length) {
+			// only the end of the chunk survives
+			offset += length - ring.length;
+			total += length - ring.length;
+			length = ring.length;
+		}
+		int position = (int) (total % ring.length);
+		int first = Math.min(length, ring.length - position);
+		System.arraycopy(bytes, offset, ring, position, first);
+		System.arraycopy(bytes, offset + first, ring, 0, length - first);
+		total += length;
+	}
+
+	/**
+	 * @return A copy of the retained bytes in the order they were written.
+	 */
+	public synchronized byte[] getTailBytes() {
+		int size = (int) Math.min(total, ring.length);
+		byte[] tail = new byte[size];
+		int start = (int) ((total - size) % ring.length);
+		int first = Math.min(size, ring.length - start);
+		System.arraycopy(ring, start, tail, 0, first);
+		System.arraycopy(ring, 0, tail, first, size - first);
+		return tail;
+	}
+
+	/**
+	 * Decodes the retained output. If older output was dropped, the partial
+	 * line at the start of the buffer is skipped.
+	 * 
+	 * @return The retained output, never <code>null</code>.
+	 */
+	public String getTail() {
+		byte[] tail;
+		boolean truncated;
+		synchronized (this) {
+			tail = getTailBytes();
+			truncated = isTruncated();
+		}
+		int start = 0;
+		if (truncated) {
+			while (start < tail.length && tail[start] != '\n' && tail[start] != '\r') {
+				start++;
+			}
+			while (start < tail.length && (tail[start] == '\n' || tail[start] == '\r')) {
+				start++;
+			}
+		}
+		return new String(tail, start, tail.length - start, charset);
+	}
+
+	/**
+	 * Splits the retained output into lines. Carriage returns separate lines as
+	 * well, so every update of a progress bar is a line of its own.
+	 * 
+	 * @return The retained lines without empty ones, never <code>null</code>.
+	 */
+	public List<String> getTailLines() {
+		List<String> lines = new ArrayList<String>();
+		for (String line : getTail().split("[\\r\\n]+")) {
+			if (!line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @return The number of bytes written to this handler, including the dropped ones.
+	 */
+	public synchronized long getTotalBytes() {
+		return total;
+	}
+
+	/**
+	 * @return <code>true</code> if older output was dropped to make room.
+	 */
+	public synchronized boolean isTruncated() {
+		return total > ring.length;
+	}
+
+	/**
+	 * Discards the retained output.
+	 */
+	public synchronized void clear() {
+		total = 0;
+	}
+
+	@Override
+	public String toString() {
+		return getTail();
+	}
+
+}
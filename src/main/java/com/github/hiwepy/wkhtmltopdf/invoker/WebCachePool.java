@@ -0,0 +1,518 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+import com.github.hiwepy.wkhtmltopdf.invoker.command.EnvironmentCommandline;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * A fixed set of QtWebKit HTTP cache directories, handed to wkhtmltopdf with
+ * <code>--cache-dir</code> so stylesheets, fonts and images shared by many
+ * documents are downloaded once per directory instead of once per render.
+ * QtWebKit does not expect other processes to write to its cache, so every
+ * running process leases a directory of its own. A process started while all
+ * directories are leased runs without a cache; size the pool to the number of
+ * processes that run at the same time, e.g. the maximum of a
+ * {@link PooledInvoker} or the size of a {@link WkhtmlToPdfWorkerPool}.
+ * <p>
+ * QtWebKit does not bound the size of the directory, {@link #evict()} deletes
+ * the least recently written files of idle directories beyond the maximum
+ * size; {@link #startEviction(long, TimeUnit)} does so periodically.
+ * 
+ * @see DefaultInvoker#setWebCachePool(WebCachePool)
+ */
+public class WebCachePool implements Closeable {
+
+	public static final String CACHE_DIR = "--cache-dir";
+
+	public static final long DEFAULT_MAX_SIZE = 100L * 1024 * 1024;
+
+	public static final long DEFAULT_WARM_TIMEOUT = 60000;
+
+	private final File root;
+
+	private final List<File> directories;
+
+	private final long maxSize;
+
+	private final ConcurrentLinkedQueue<File> idle = new ConcurrentLinkedQueue<File>();
+
+	private ScheduledFuture<?> eviction;
+
+	private final AtomicLong leaseCount = new AtomicLong();
+
+	private final AtomicLong unavailableCount = new AtomicLong();
+
+	private final AtomicLong evictedFiles = new AtomicLong();
+
+	private final AtomicLong evictedBytes = new AtomicLong();
+
+	/**
+	 * Creates a new pool with the default maximum size per directory.
+	 * 
+	 * @param root The directory the cache directories are created in, must not be <code>null</code>.
+	 * @param size The number of cache directories, must be positive.
+	 * @throws IOException If a cache directory could not be created.
+	 */
+	public WebCachePool(File root, int size) throws IOException {
+		this(root, size, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a new pool. Directories left behind by a previous pool in the
+	 * same root are reused, along with what they cached.
+	 * 
+	 * @param root The directory the cache directories are created in, must not be <code>null</code>.
+	 * @param size The number of cache directories, must be positive.
+	 * @param maxSize The size in bytes {@link #evict()} trims each directory to, must be positive.
+	 * @throws IOException If a cache directory could not be created.
+	 */
+	public WebCachePool(File root, int size, long maxSize) throws IOException {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.root = root;
+		this.maxSize = maxSize;
+		List<File> directories = new ArrayList<File>(size);
+		for (int i = 0; i < size; i++) {
+			File directory = new File(root, "slot-" + i);
+			Files.createDirectories(directory.toPath());
+			directories.add(directory);
+		}
+		this.directories = Collections.unmodifiableList(directories);
+		this.idle.addAll(directories);
+	}
+
+	/**
+	 * Leases an idle cache directory.
+	 * 
+	 * @return The lease or <code>null</code> if all directories are leased. It must be released by the caller.
+	 */
+	public Lease acquire() {
+		File directory = idle.poll();
+		if (directory == null) {
+			unavailableCount.incrementAndGet();
+			return null;
+		}
+		leaseCount.incrementAndGet();
+		return new Lease(directory);
+	}
+
+	/**
+	 * Reads a warming manifest: one absolute URL per line, blank lines and
+	 * lines starting with <code>#</code> are ignored.
+	 * 
+	 * @param manifest The manifest, must not be <code>null</code>.
+	 * @return The URLs listed by the manifest, never <code>null</code>.
+	 * @throws IOException If the manifest could not be read or lists a malformed URL.
+	 */
+	public static List<URL> readManifest(File manifest) throws IOException {
+		List<URL> urls = new ArrayList<URL>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					urls.add(new URL(line));
+				} catch (MalformedURLException e) {
+					throw new IOException("Malformed URL in line " + number + " of " + manifest + ": " + line, e);
+				}
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Warms all idle directories with the given assets, so even the first
+	 * documents rendered do not download them. wkhtmltopdf loads them once into
+	 * one directory by rendering a page referring to all of them with the
+	 * options of the given template; the other directories are copies of it.
+	 * Meant to be called at startup, before the pool is in use.
+	 * 
+	 * @param invoker The invoker providing the executable and the process launcher, must not be <code>null</code>.
+	 * @param template The request providing the options the assets are loaded with, e.g. cookies or custom headers, must not be <code>null</code>.
+	 * @param urls The stylesheets, scripts, fonts and images to cache, must not be <code>null</code>.
+	 * @throws WkhtmlToPdfInvocationException If wkhtmltopdf could not be started or the directories could not be written.
+	 */
+	public void warm(DefaultInvoker invoker, WkhtmlToPdfInvocationRequest template, Collection<URL> urls)
+			throws WkhtmlToPdfInvocationException {
+		
+		if (urls.isEmpty()) {
+			return;
+		}
+		
+		List<File> warming = new ArrayList<File>();
+		File directory;
+		while ((directory = idle.poll()) != null) {
+			warming.add(directory);
+		}
+		if (warming.isEmpty()) {
+			invoker.getLogger().warn("Not warming web cache, all directories are in use.");
+			return;
+		}
+		
+		Path page = null;
+		Path output = null;
+		try {
+			page = Files.createTempFile("wkhtmltopdf-warm-", ".html");
+			output = Files.createTempFile("wkhtmltopdf-warm-", ".pdf");
+			Files.write(page, toWarmingPage(urls).getBytes(StandardCharsets.UTF_8));
+			
+			File seed = warming.get(0);
+			CompiledInvocationTemplate compiled = invoker.compile(template);
+			EnvironmentCommandline cli = new EnvironmentCommandline();
+			cli.setExecutable(compiled.getExecutable());
+			cli.setEnvironment(compiled.getEnvironment());
+			if (compiled.getWorkingDirectory() != null) {
+				cli.setWorkingDirectory(compiled.getWorkingDirectory());
+			}
+			cli.addArguments(new String[] { CACHE_DIR, seed.getAbsolutePath(), "--quiet" });
+			cli.addArguments(compiled.getOptions().toArray(new String[0]));
+			cli.addArguments(new String[] { page.toString(), output.toString() });
+			
+			if (invoker.getLogger().isDebugEnabled()) {
+				invoker.getLogger().debug("Warming web cache: " + cli);
+			}
+			Process process = invoker.getProcessLauncher().launch(cli);
+			int exitCode = invoker.getProcessRunner().run(process, null, null, null, DEFAULT_WARM_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (exitCode != 0) {
+				// some assets failed to load, the others are cached all the same
+				invoker.getLogger().warn("Warming web cache exited with code " + exitCode + ", some assets may not be cached.");
+			}
+			
+			for (File copy : warming.subList(1, warming.size())) {
+				copyTree(seed.toPath(), copy.toPath());
+			}
+		} catch (CommandLineException e) {
+			throw new WkhtmlToPdfInvocationException("Error warming web cache. Reason: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new WkhtmlToPdfInvocationException("Error warming web cache. Reason: " + e.getMessage(), e);
+		} finally {
+			idle.addAll(warming);
+			deleteQuietly(page);
+			deleteQuietly(output);
+		}
+	}
+
+	/**
+	 * Creates a page that makes QtWebKit load each of the given URLs the way
+	 * a document would, so they are cached under the same keys.
+	 */
+	static String toWarmingPage(Collection<URL> urls) {
+		StringBuilder head = new StringBuilder();
+		StringBuilder body = new StringBuilder();
+		int font = 0;
+		for (URL url : urls) {
+			String href = url.toExternalForm().replace("&", "&amp;").replace("\"", "%22");
+			String path = url.getPath().toLowerCase(Locale.ENGLISH);
+			if (path.endsWith(".css")) {
+				head.append("<link rel=\"stylesheet\" href=\"").append(href).append("\">\n");
+			} else if (path.endsWith(".js")) {
+				head.append("<script src=\"").append(href).append("\"></script>\n");
+			} else if (path.endsWith(".woff") || path.endsWith(".woff2") || path.endsWith(".ttf") || path.endsWith(".otf")) {
+				// fonts are only fetched once text uses them
+				head.append("<style>@font-face { font-family: warm-").append(font).append("; src: url(\"").append(href)
+						.append("\"); }</style>\n");
+				body.append("<span style=\"font-family: warm-").append(font).append("\">x</span>\n");
+				font++;
+			} else {
+				body.append("<img src=\"").append(href).append("\">\n");
+			}
+		}
+		return "<!DOCTYPE html>\n<html>\n<head>\n" + head + "</head>\n<body>\n" + body + "</body>\n</html>\n";
+	}
+
+	/**
+	 * Trims every idle directory to the maximum size, deleting the least
+	 * recently written files first. Leased directories are skipped, they are
+	 * trimmed by a later run.
+	 */
+	public void evict() {
+		for (int i = 0; i < directories.size(); i++) {
+			File directory = idle.poll();
+			if (directory == null) {
+				return;
+			}
+			try {
+				trim(directory.toPath());
+			} catch (IOException e) {
+				// the directory itself is gone, try again next time
+			} finally {
+				idle.offer(directory);
+			}
+		}
+	}
+
+	private void trim(Path directory) throws IOException {
+		
+		final List<Path> files = new ArrayList<Path>();
+		final List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				files.add(file);
+				attributes.add(attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				// QtWebKit deletes files by itself, trim the rest
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+		
+		long size = 0;
+		List<Integer> order = new ArrayList<Integer>(files.size());
+		for (int i = 0; i < files.size(); i++) {
+			size += attributes.get(i).size();
+			order.add(i);
+		}
+		if (size <= maxSize) {
+			return;
+		}
+		
+		Collections.sort(order, new Comparator<Integer>() {
+
+			public int compare(Integer a, Integer b) {
+				return attributes.get(a).lastModifiedTime().compareTo(attributes.get(b).lastModifiedTime());
+			}
+
+		});
+		for (int i = 0; i < order.size() && size > maxSize; i++) {
+			int index = order.get(i);
+			try {
+				if (!Files.deleteIfExists(files.get(index))) {
+					// deleted by QtWebKit in the meantime
+					size -= attributes.get(index).size();
+					continue;
+				}
+			} catch (IOException e) {
+				// e.g. still open on Windows, the next file may do
+				continue;
+			}
+			size -= attributes.get(index).size();
+			evictedFiles.incrementAndGet();
+			evictedBytes.addAndGet(attributes.get(index).size());
+		}
+	}
+
+	/**
+	 * Runs {@link #evict()} periodically in the background until the pool is
+	 * closed.
+	 * 
+	 * @param interval The time between two runs, must be positive.
+	 * @param unit The unit of the interval, must not be <code>null</code>.
+	 */
+	public synchronized void startEviction(long interval, TimeUnit unit) {
+		if (eviction != null) {
+			eviction.cancel(false);
+		}
+		eviction = ProcessThreads.getScheduler().scheduleWithFixedDelay(new Runnable() {
+
+			public void run() {
+				// keep the file system walk off the watchdog thread
+				try {
+					ProcessThreads.getPumpExecutor().execute(new Runnable() {
+
+						public void run() {
+							evict();
+						}
+
+					});
+				} catch (RejectedExecutionException e) {
+					// the executor is unavailable, the next run trims
+				}
+			}
+
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops the background eviction. The directories are kept for the next pool.
+	 */
+	public synchronized void close() {
+		if (eviction != null) {
+			eviction.cancel(false);
+			eviction = null;
+		}
+	}
+
+	private static void copyTree(final Path source, final Path target) throws IOException {
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(target.resolve(source.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+	}
+
+	private static void deleteQuietly(Path file) {
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				// a temporary file, nothing depends on it anymore
+			}
+		}
+	}
+
+	/**
+	 * @return The directory the cache directories are created in.
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return The cache directories, leased or not.
+	 */
+	public List<File> getDirectories() {
+		return directories;
+	}
+
+	/**
+	 * @return The size in bytes each directory is trimmed to.
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return The number of directories currently leased.
+	 */
+	public int getLeasedCount() {
+		return directories.size() - idle.size();
+	}
+
+	/**
+	 * @return The number of leases handed out.
+	 */
+	public long getLeaseCount() {
+		return leaseCount.get();
+	}
+
+	/**
+	 * @return The number of processes started without a cache because all directories were leased.
+	 */
+	public long getUnavailableCount() {
+		return unavailableCount.get();
+	}
+
+	/**
+	 * @return The number of files deleted by eviction.
+	 */
+	public long getEvictedFiles() {
+		return evictedFiles.get();
+	}
+
+	/**
+	 * @return The number of bytes freed by eviction.
+	 */
+	public long getEvictedBytes() {
+		return evictedBytes.get();
+	}
+
+	/**
+	 * The exclusive use of a cache directory by one process.
+	 */
+	public final class Lease {
+
+		private final File directory;
+
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		Lease(File directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * @return The cache directory to pass with <code>--cache-dir</code>.
+		 */
+		public File getDirectory() {
+			return directory;
+		}
+
+		/**
+		 * Returns the directory to the pool once the process using it has exited. Calling it again has no effect.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				idle.offer(directory);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,571 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.Processes;
+
+/**
+ * A batch session backed by a single wkhtmltopdf process running in
+ * <code>--read-args-from-stdin</code> mode. Every submitted job is written as
+ * one line to the standard input of the process, so Qt/WebKit is initialized
+ * once per session instead of once per document. Jobs are rendered one after
+ * the other in submission order. The jobs are told apart by the progress
+ * wkhtmltopdf prints on its error output: a job succeeds when wkhtmltopdf
+ * reports <code>Done</code> and the output file exists, and fails when it
+ * reports an exit code or when the next job starts loading without either.
+ * All outstanding jobs fail when the process exits. The template must
+ * therefore neither be <code>--quiet</code> nor lower the log level below
+ * <code>info</code>.
+ * 
+ * @see DefaultInvoker#openSession(com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest)
+ */
+public class WkhtmlToPdfSession implements Closeable {
+
+	public static final String READ_ARGS_FROM_STDIN = "--read-args-from-stdin";
+
+	/**
+	 * The line wkhtmltopdf prints on its error output when a document was converted.
+	 */
+	static final String DONE = "Done";
+
+	/**
+	 * The start of the line wkhtmltopdf prints on its error output when a document failed.
+	 */
+	static final String EXIT_WITH_CODE = "Exit with code ";
+
+	/**
+	 * The start of the lines wkhtmltopdf prints on its error output for errors.
+	 */
+	static final String ERROR = "Error: ";
+
+	/**
+	 * The first phase wkhtmltopdf reports for every document.
+	 */
+	static final String LOADING_PAGES = "Loading pages";
+
+	/**
+	 * The size of the buffer wkhtmltopdf reads a line of arguments into,
+	 * including the line break. Longer lines are split into several jobs.
+	 */
+	static final int MAX_LINE_LENGTH = 20397;
+
+	/**
+	 * The number of arguments wkhtmltopdf accepts for a job, including the
+	 * executable and the arguments the session was started with.
+	 */
+	static final int MAX_ARGUMENTS = 1000;
+
+	private final Process process;
+
+	private final Writer stdin;
+
+	/**
+	 * Serializes the writes to the standard input. A write blocks once the pipe
+	 * is full, so it must not hold the monitor of the session, which the error
+	 * pump needs to finish jobs and thereby let the process read on.
+	 */
+	private final Object writeLock = new Object();
+
+	private final InvocationOutputHandler outputHandler;
+
+	private final InvocationOutputHandler errorHandler;
+
+	private final InvokerLogger logger;
+
+	/**
+	 * The jobs written to the process and not yet finished, in submission order.
+	 */
+	private final Deque<Job> pending = new ArrayDeque<Job>();
+
+	private final AtomicLong completedJobs = new AtomicLong();
+
+	private final AtomicLong failedJobs = new AtomicLong();
+
+	private boolean closed;
+
+	/**
+	 * The number of arguments the session process was started with, including the executable.
+	 */
+	private final int sessionArguments;
+
+	/**
+	 * The state of the job being rendered, only accessed by the error pump.
+	 */
+	private boolean jobStarted;
+
+	private String lastMarker;
+
+	private List<String> jobErrors = new ArrayList<String>();
+
+	/**
+	 * The web cache directory of the process, released once it exited, may be <code>null</code>.
+	 */
+	private final WebCachePool.Lease webCacheLease;
+
+	WkhtmlToPdfSession(Process process, int sessionArguments, InvocationOutputHandler outputHandler,
+			InvocationOutputHandler errorHandler, InvokerLogger logger, WebCachePool.Lease webCacheLease) {
+		this.process = process;
+		this.sessionArguments = sessionArguments;
+		this.stdin = new OutputStreamWriter(process.getOutputStream());
+		this.outputHandler = outputHandler;
+		this.errorHandler = errorHandler;
+		this.logger = logger;
+		this.webCacheLease = webCacheLease;
+
+		Executor executor = ProcessThreads.getPumpExecutor();
+		try {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					pumpOutput();
+				}
+
+			});
+			executor.execute(new Runnable() {
+
+				public void run() {
+					pumpErrors();
+				}
+
+			});
+		} catch (RejectedExecutionException e) {
+			Processes.destroyTree(process);
+			throw e;
+		}
+	}
+
+	/**
+	 * Submits a job converting the given pages into the given output file.
+	 * 
+	 * @param outputFile The PDF file to write, must not be <code>null</code>.
+	 * @param pages The URLs or paths of the pages to convert, optionally mixed with page options.
+	 * @return A completion stage of the job, never <code>null</code>.
+	 */
+	public CompletableFuture<InvocationResult> submit(File outputFile, String... pages) {
+		List<String> arguments = new ArrayList<String>(Arrays.asList(pages));
+		arguments.add(outputFile.getAbsolutePath());
+		return submit(arguments);
+	}
+
+	/**
+	 * Checks that wkhtmltopdf reports the progress of every document when started
+	 * with the given arguments, the session could not tell the jobs apart
+	 * otherwise.
+	 * 
+	 * @param arguments The arguments the session is started with.
+	 * @throws IllegalArgumentException If the arguments silence the progress.
+	 */
+	static void checkSessionArguments(String[] arguments) {
+		for (int i = 0; i < arguments.length; i++) {
+			String argument = arguments[i];
+			if ("-q".equals(argument) || "--quiet".equals(argument)) {
+				throw new IllegalArgumentException("A session can not be --quiet, its jobs could not be told apart.");
+			}
+			if ("--log-level".equals(argument) && i + 1 < arguments.length
+					&& !"info".equals(arguments[i + 1])) {
+				throw new IllegalArgumentException("A session needs --log-level info, its jobs could not be told apart with "
+						+ arguments[i + 1] + ".");
+			}
+		}
+	}
+
+	/**
+	 * Submits a job. The arguments are combined with the arguments the session
+	 * was started with and must end with the output file; writing to standard
+	 * output is not supported because the output of consecutive jobs could not
+	 * be told apart. An existing output file is replaced.
+	 * 
+	 * @param arguments The arguments of the job, must not be <code>null</code>.
+	 * @return A completion stage of the job, never <code>null</code>.
+	 */
+	public CompletableFuture<InvocationResult> submit(List<String> arguments) {
+		
+		CompletableFuture<InvocationResult> future = new CompletableFuture<InvocationResult>();
+		
+		if (arguments.isEmpty() || "-".equals(arguments.get(arguments.size() - 1))) {
+			future.completeExceptionally(new IllegalArgumentException("A session job must end with an output file."));
+			return future;
+		}
+		
+		String line;
+		try {
+			if (sessionArguments + arguments.size() >= MAX_ARGUMENTS) {
+				throw new IllegalArgumentException("A session job can not have more than "
+						+ (MAX_ARGUMENTS - 1 - sessionArguments) + " arguments.");
+			}
+			line = toArgumentLine(arguments);
+		} catch (IllegalArgumentException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		
+		// a stale file would pass for the output of a failed job
+		File output = new File(arguments.get(arguments.size() - 1));
+		if (output.exists() && !output.delete()) {
+			future.complete(failure(new CommandLineException("Error replacing " + output + ".")));
+			return future;
+		}
+		
+		Job job = new Job(output, future);
+		synchronized (writeLock) {
+			// the jobs are queued in the order their lines are written
+			synchronized (this) {
+				if (closed || !process.isAlive()) {
+					future.complete(failure(new CommandLineException("Session is closed.")));
+					return future;
+				}
+				pending.addLast(job);
+			}
+			try {
+				stdin.write(line);
+				stdin.write('\n');
+				stdin.flush();
+			} catch (IOException e) {
+				boolean removed;
+				synchronized (this) {
+					removed = pending.remove(job);
+				}
+				// otherwise the exited process failed the job already
+				if (removed) {
+					failedJobs.incrementAndGet();
+					future.complete(failure(new CommandLineException("Error writing job to session. Reason: " + e.getMessage(), e)));
+				}
+			}
+		}
+		
+		return future;
+	}
+
+	/**
+	 * Joins the arguments into a line as understood by wkhtmltopdf, quoting
+	 * every argument and escaping quotes and backslashes.
+	 * 
+	 * @throws IllegalArgumentException If an argument contains a line break or
+	 *         the line does not fit into the buffer of wkhtmltopdf.
+	 */
+	static String toArgumentLine(List<String> arguments) {
+		StringBuilder line = new StringBuilder();
+		for (String argument : arguments) {
+			if (argument.indexOf('\n') >= 0 || argument.indexOf('\r') >= 0) {
+				throw new IllegalArgumentException("Line breaks are not allowed in session arguments: " + argument);
+			}
+			if (line.length() > 0) {
+				line.append(' ');
+			}
+			line.append('"');
+			for (int i = 0; i < argument.length(); i++) {
+				char c = argument.charAt(i);
+				if (c == '"' || c == '\\') {
+					line.append('\\');
+				}
+				line.append(c);
+			}
+			line.append('"');
+		}
+		// wkhtmltopdf reads the bytes of the platform charset, like the session writes them
+		int length = line.toString().getBytes().length + 1;
+		if (length > MAX_LINE_LENGTH) {
+			throw new IllegalArgumentException("A session job line can not be longer than " + MAX_LINE_LENGTH
+					+ " bytes, it has " + length + ".");
+		}
+		return line.toString();
+	}
+
+	private void pumpOutput() {
+		try {
+			readLines(process.getInputStream(), outputHandler);
+		} catch (IOException e) {
+			logger.debug("Error reading session output.", e);
+		}
+	}
+
+	private void pumpErrors() {
+		try {
+			readLines(process.getErrorStream(), new InvocationOutputHandler() {
+
+				public void consumeLine(String line) throws IOException {
+					if (errorHandler != null) {
+						errorHandler.consumeLine(line);
+					}
+					consumeErrorLine(line.trim());
+				}
+
+			});
+		} catch (IOException e) {
+			logger.debug("Error reading session error output.", e);
+		} finally {
+			processExited();
+		}
+	}
+
+	private void readLines(InputStream in, InvocationOutputHandler handler) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (handler != null) {
+					handler.consumeLine(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Follows the progress of the jobs. Depending on the version, wkhtmltopdf
+	 * reports a failed document with an exit code line followed by
+	 * <code>Done</code>, with the exit code line alone, or reports
+	 * <code>Done</code> followed by an exit code line when it ignored failed
+	 * resources; the second marker of a pair belongs to the job already finished.
+	 */
+	void consumeErrorLine(String line) {
+		if (DONE.equals(line)) {
+			if (lastMarker != EXIT_WITH_CODE) {
+				finishJob(null);
+				lastMarker = DONE;
+			} else {
+				lastMarker = null;
+			}
+		} else if (line.startsWith(EXIT_WITH_CODE)) {
+			if (lastMarker != DONE) {
+				finishJob(line);
+				lastMarker = EXIT_WITH_CODE;
+			} else {
+				lastMarker = null;
+			}
+		} else if (!line.isEmpty()) {
+			lastMarker = null;
+			if (line.startsWith(LOADING_PAGES)) {
+				if (jobStarted) {
+					finishJob("wkhtmltopdf started the next job without finishing the previous one");
+				}
+				jobStarted = true;
+			} else if (line.startsWith(ERROR)) {
+				jobErrors.add(line);
+			}
+		}
+	}
+
+	/**
+	 * Completes the oldest outstanding job.
+	 * 
+	 * @param failure The reason the job failed, <code>null</code> if wkhtmltopdf reported it as done.
+	 */
+	private void finishJob(String failure) {
+		List<String> errors = jobErrors;
+		jobErrors = new ArrayList<String>();
+		jobStarted = false;
+		
+		Job job;
+		synchronized (this) {
+			job = pending.pollFirst();
+		}
+		if (job == null) {
+			return;
+		}
+		if (failure == null && !job.output.isFile()) {
+			failure = "wkhtmltopdf reported Done without writing " + job.output;
+		}
+		if (failure == null) {
+			completedJobs.incrementAndGet();
+			DefaultInvocationResult result = new DefaultInvocationResult();
+			result.setExitCode(0);
+			job.future.complete(result);
+			return;
+		}
+		failedJobs.incrementAndGet();
+		StringBuilder message = new StringBuilder(failure);
+		for (String error : errors) {
+			message.append(". ").append(error);
+		}
+		DefaultInvocationResult result = failure(new CommandLineException(message.toString()));
+		result.setExitCode(exitCodeOf(failure));
+		job.future.complete(result);
+	}
+
+	/**
+	 * @return The exit code of an exit code line, {@link Integer#MIN_VALUE} for other failures.
+	 */
+	static int exitCodeOf(String failure) {
+		if (!failure.startsWith(EXIT_WITH_CODE)) {
+			return Integer.MIN_VALUE;
+		}
+		int end = EXIT_WITH_CODE.length();
+		while (end < failure.length() && Character.isDigit(failure.charAt(end))) {
+			end++;
+		}
+		try {
+			return Integer.parseInt(failure.substring(EXIT_WITH_CODE.length(), end));
+		} catch (NumberFormatException e) {
+			return Integer.MIN_VALUE;
+		}
+	}
+
+	private void processExited() {
+		int exitCode;
+		try {
+			exitCode = process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.destroy();
+			exitCode = Integer.MIN_VALUE;
+		}
+		if (webCacheLease != null) {
+			webCacheLease.release();
+		}
+		
+		List<Job> unfinished;
+		synchronized (this) {
+			closed = true;
+			unfinished = new ArrayList<Job>(pending);
+			pending.clear();
+		}
+		
+		for (Job job : unfinished) {
+			failedJobs.incrementAndGet();
+			StringBuilder message = new StringBuilder("Session process exited with code " + exitCode + " before the job was finished.");
+			for (String error : jobErrors) {
+				message.append(' ').append(error);
+			}
+			jobErrors = new ArrayList<String>();
+			DefaultInvocationResult result = failure(new CommandLineException(message.toString()));
+			result.setExitCode(exitCode != 0 ? exitCode : Integer.MIN_VALUE);
+			job.future.complete(result);
+		}
+	}
+
+	private DefaultInvocationResult failure(CommandLineException e) {
+		DefaultInvocationResult result = new DefaultInvocationResult();
+		result.setExecutionException(e);
+		return result;
+	}
+
+	/**
+	 * @return <code>true</code> if the session accepts jobs.
+	 */
+	public synchronized boolean isOpen() {
+		return !closed && process.isAlive();
+	}
+
+	/**
+	 * @return The native id of the session process or <code>-1</code> if it can not be determined.
+	 */
+	public long getPid() {
+		return Processes.getPid(process);
+	}
+
+	/**
+	 * @return The resident set size of the session process in bytes or <code>-1</code> if it can not be determined.
+	 */
+	public long getResidentSetSize() {
+		return Processes.getResidentSetSize(getPid());
+	}
+
+	/**
+	 * @return The number of submitted jobs that are not finished yet.
+	 */
+	public synchronized int getPendingJobs() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of jobs finished successfully.
+	 */
+	public long getCompletedJobs() {
+		return completedJobs.get();
+	}
+
+	/**
+	 * @return The number of jobs that failed.
+	 */
+	public long getFailedJobs() {
+		return failedJobs.get();
+	}
+
+	/**
+	 * Stops accepting jobs and closes the standard input of the process. The
+	 * process finishes the jobs already submitted and exits; this method waits
+	 * for it to do so.
+	 */
+	public void close() throws IOException {
+		boolean closing;
+		synchronized (this) {
+			closing = !closed;
+			closed = true;
+		}
+		if (closing) {
+			// after the job being written, if any
+			synchronized (writeLock) {
+				stdin.close();
+			}
+		}
+		try {
+			process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			destroy();
+		}
+	}
+
+	/**
+	 * Kills the process and its descendants, failing all outstanding jobs.
+	 */
+	public void destroy() {
+		synchronized (this) {
+			closed = true;
+		}
+		Processes.destroyTree(process);
+	}
+
+	/**
+	 * A job written to the process.
+	 */
+	private static final class Job {
+
+		final File output;
+
+		final CompletableFuture<InvocationResult> future;
+
+		Job(File output, CompletableFuture<InvocationResult> future) {
+			this.output = output;
+			this.future = future;
+		}
+
+	}
+
+}
@@ -0,0 +1,447 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.InvocationRejectedException;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * A pool of warm wkhtmltopdf processes, each one a {@link WkhtmlToPdfSession}
+ * running in <code>--read-args-from-stdin</code> mode. A job checks out an idle
+ * worker exclusively, so the pool size also caps the number of concurrent
+ * renders. Because QtWebKit leaks memory, a worker is recycled after a number
+ * of jobs or once its resident set size exceeds a limit; workers whose process
+ * died are replaced transparently on the next checkout.
+ * 
+ * @see DefaultInvoker#setWorkerPool(WkhtmlToPdfWorkerPool)
+ */
+public class WkhtmlToPdfWorkerPool implements Closeable {
+
+	public static final int DEFAULT_MAX_JOBS_PER_WORKER = 100;
+
+	public static final long DEFAULT_CHECKOUT_TIMEOUT = 30000;
+
+	private final DefaultInvoker invoker;
+
+	private final WkhtmlToPdfInvocationRequest template;
+
+	private final int size;
+
+	private final Semaphore permits;
+
+	private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+
+	/**
+	 * The number of jobs after which a worker is recycled, <code>0</code> for no limit.
+	 */
+	private int maxJobsPerWorker = DEFAULT_MAX_JOBS_PER_WORKER;
+
+	/**
+	 * The resident set size in bytes above which a worker is recycled, <code>0</code> for no limit.
+	 */
+	private long maxResidentSetSize;
+
+	/**
+	 * The time in milliseconds a job may wait for an idle worker.
+	 */
+	private long checkoutTimeout = DEFAULT_CHECKOUT_TIMEOUT;
+
+	private final AtomicLong startedWorkers = new AtomicLong();
+
+	private final AtomicLong recycledWorkers = new AtomicLong();
+
+	private final AtomicLong crashedWorkers = new AtomicLong();
+
+	private final AtomicLong timedOutWorkers = new AtomicLong();
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new pool. Workers are started lazily, see {@link #prestart()}.
+	 * 
+	 * @param invoker The invoker used to start the worker processes, must not be <code>null</code>.
+	 * @param template The request providing the options every worker process is started with, must not be <code>null</code>.
+	 * @param size The maximum number of worker processes, must be positive.
+	 */
+	public WkhtmlToPdfWorkerPool(DefaultInvoker invoker, WkhtmlToPdfInvocationRequest template, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		this.invoker = invoker;
+		this.template = template;
+		this.size = size;
+		this.permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Starts all worker processes up front so the first jobs do not pay the
+	 * Qt/WebKit startup.
+	 * 
+	 * @throws WkhtmlToPdfInvocationException If a worker process could not be started.
+	 */
+	public void prestart() throws WkhtmlToPdfInvocationException {
+		int missing = permits.drainPermits();
+		try {
+			for (int i = idle.size(); i < missing; i++) {
+				idle.offer(startWorker());
+			}
+		} finally {
+			permits.release(missing);
+		}
+	}
+
+	/**
+	 * Tells whether the given request can run as a job of a worker. A worker only
+	 * reads its arguments from the standard input, and reports its output to the
+	 * handlers of the template it was started with, so only requests converting
+	 * pages into a file without stream hooks and environment of their own qualify.
+	 * 
+	 * @param request The request to check, must not be <code>null</code>.
+	 * @param handle The handle of the invocation of the request, must not be <code>null</code>.
+	 * @return <code>true</code> if the request can be sent to the pool.
+	 */
+	boolean accepts(WkhtmlToPdfInvocationRequest request, DefaultInvocationHandle handle) {
+		OutputSink outputSink = handle.getOutputSink(request);
+		return handle.getInputSource(request) == null
+				&& outputSink != null && !outputSink.isStreaming() && outputSink.getFile() != null
+				&& request.getProgressListener() == null
+				&& request.getOutputRedirect() == null
+				&& request.getOutputHandler(null) == template.getOutputHandler(null)
+				&& request.getErrorHandler(null) == template.getErrorHandler(null)
+				&& request.isShellEnvironmentInherited() == template.isShellEnvironmentInherited()
+				&& request.getShellEnvironments().equals(template.getShellEnvironments());
+	}
+
+	/**
+	 * Runs a job on an idle worker, waiting for one to become idle if necessary.
+	 * 
+	 * @param arguments The arguments of the job, they are combined with the arguments of the template.
+	 * @return The result of the job, never <code>null</code>.
+	 * @throws WkhtmlToPdfInvocationException If no worker became idle in time or the job could not be run.
+	 */
+	public InvocationResult execute(List<String> arguments) throws WkhtmlToPdfInvocationException {
+		return execute(arguments, (Deadline) null);
+	}
+
+	/**
+	 * Runs a job on an idle worker within the given deadline. If the deadline
+	 * expires while the job is running, the worker is killed along with any
+	 * other jobs it was running and replaced on the next checkout.
+	 * 
+	 * @param arguments The arguments of the job, they are combined with the arguments of the template.
+	 * @param deadline The deadline of the job, may be <code>null</code> to wait forever.
+	 * @return The result of the job, never <code>null</code>.
+	 * @throws WkhtmlToPdfInvocationException If no worker became idle in time or the job could not be run.
+	 */
+	public InvocationResult execute(List<String> arguments, Deadline deadline) throws WkhtmlToPdfInvocationException {
+		return execute(arguments, new DefaultInvocationHandle(deadline));
+	}
+
+	InvocationResult execute(List<String> arguments, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+		
+		if (closed) {
+			throw new InvocationRejectedException("Worker pool is closed.");
+		}
+		
+		Deadline deadline = handle.getDeadline();
+		long start = System.nanoTime();
+		long timeout = TimeUnit.MILLISECONDS.toNanos(checkoutTimeout);
+		boolean deadlineBound = deadline != null && deadline.timeRemaining(TimeUnit.NANOSECONDS) < timeout;
+		if (deadlineBound) {
+			timeout = deadline.timeRemaining(TimeUnit.NANOSECONDS);
+		}
+		
+		if (!handle.attach(DefaultInvoker.interrupting(Thread.currentThread()))) {
+			return handle.cancelledResult();
+		}
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(timeout, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			if (!handle.isCancelled()) {
+				Thread.currentThread().interrupt();
+				throw new WkhtmlToPdfInvocationException("Interrupted while waiting for an idle worker.", e);
+			}
+			acquired = false;
+		} finally {
+			handle.detach();
+		}
+		if (handle.isCancelled()) {
+			// leaves the queue, clear the interrupt that woke us up
+			Thread.interrupted();
+			if (acquired) {
+				permits.release();
+			}
+			return handle.cancelledResult();
+		}
+		if (!acquired) {
+			if (deadlineBound) {
+				return DefaultInvoker.timedOut(deadline, start);
+			}
+			throw new InvocationRejectedException("No idle wkhtmltopdf worker within " + checkoutTimeout + " ms.");
+		}
+		
+		Worker worker = null;
+		try {
+			worker = checkout();
+			final Worker cancelled = worker;
+			if (!handle.attach(new Runnable() {
+
+				public void run() {
+					cancelled.kill();
+				}
+
+			})) {
+				return handle.cancelledResult();
+			}
+			CompletableFuture<InvocationResult> job = worker.session.submit(arguments);
+			InvocationResult result;
+			try {
+				result = deadline != null
+						? job.get(deadline.timeRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+						: job.get();
+			} finally {
+				handle.detach();
+			}
+			if (handle.isCancelled()) {
+				return handle.cancelledResult();
+			}
+			worker.jobs++;
+			if (result instanceof DefaultInvocationResult) {
+				((DefaultInvocationResult) result).setElapsedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+			return result;
+		} catch (TimeoutException e) {
+			invoker.getLogger().warn("Killing wkhtmltopdf worker " + worker.session.getPid() + ", deadline " + deadline + " expired.");
+			timedOutWorkers.incrementAndGet();
+			worker.kill();
+			return DefaultInvoker.timedOut(deadline, start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			worker.kill();
+			throw new WkhtmlToPdfInvocationException("Interrupted while waiting for the worker.", e);
+		} catch (ExecutionException e) {
+			throw new WkhtmlToPdfInvocationException("Error submitting job. Reason: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			if (worker != null) {
+				checkin(worker);
+			}
+			permits.release();
+		}
+	}
+
+	private Worker checkout() throws WkhtmlToPdfInvocationException {
+		Worker worker;
+		while ((worker = idle.poll()) != null) {
+			if (worker.session.isOpen()) {
+				return worker;
+			}
+			crashedWorkers.incrementAndGet();
+			invoker.getLogger().warn("Replacing wkhtmltopdf worker " + worker.session.getPid() + ", its process has exited.");
+			worker.session.destroy();
+		}
+		return startWorker();
+	}
+
+	private void checkin(Worker worker) {
+		if (worker.killed) {
+			// counted by whoever killed it, it did not crash
+			return;
+		} else if (!worker.session.isOpen()) {
+			crashedWorkers.incrementAndGet();
+			worker.session.destroy();
+		} else if (closed || isWornOut(worker)) {
+			recycledWorkers.incrementAndGet();
+			retire(worker);
+		} else {
+			idle.offer(worker);
+			if (closed) {
+				// raced with close()
+				retireIdleWorkers();
+			}
+		}
+	}
+
+	protected boolean isWornOut(Worker worker) {
+		if (maxJobsPerWorker > 0 && worker.jobs >= maxJobsPerWorker) {
+			return true;
+		}
+		if (maxResidentSetSize > 0) {
+			long rss = worker.session.getResidentSetSize();
+			if (rss > maxResidentSetSize) {
+				if (invoker.getLogger().isDebugEnabled()) {
+					invoker.getLogger().debug("Recycling wkhtmltopdf worker " + worker.session.getPid() + " with a resident set size of " + rss + " bytes.");
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Worker startWorker() throws WkhtmlToPdfInvocationException {
+		Worker worker = new Worker(invoker.openSession(template));
+		startedWorkers.incrementAndGet();
+		return worker;
+	}
+
+	/**
+	 * Closes the session of the worker in the background; the process exits once
+	 * it sees the end of its input.
+	 */
+	private void retire(final Worker worker) {
+		try {
+			ProcessThreads.getPumpExecutor().execute(new Runnable() {
+
+				public void run() {
+					try {
+						worker.session.close();
+					} catch (IOException e) {
+						worker.session.destroy();
+					}
+				}
+
+			});
+		} catch (RejectedExecutionException e) {
+			// no thread to wait for a graceful exit
+			worker.session.destroy();
+		}
+	}
+
+	private void retireIdleWorkers() {
+		Worker worker;
+		while ((worker = idle.poll()) != null) {
+			retire(worker);
+		}
+	}
+
+	/**
+	 * Stops accepting jobs and retires all idle workers. Busy workers are retired
+	 * as soon as their current job is finished.
+	 */
+	public void close() {
+		closed = true;
+		retireIdleWorkers();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getMaxJobsPerWorker() {
+		return maxJobsPerWorker;
+	}
+
+	public void setMaxJobsPerWorker(int maxJobsPerWorker) {
+		this.maxJobsPerWorker = maxJobsPerWorker;
+	}
+
+	public long getMaxResidentSetSize() {
+		return maxResidentSetSize;
+	}
+
+	/**
+	 * The resident set size is read from <code>/proc</code>, so this limit has no
+	 * effect on systems without it.
+	 * @param maxResidentSetSize The resident set size in bytes above which a worker is recycled, <code>0</code> for no limit.
+	 */
+	public void setMaxResidentSetSize(long maxResidentSetSize) {
+		this.maxResidentSetSize = maxResidentSetSize;
+	}
+
+	public long getCheckoutTimeout() {
+		return checkoutTimeout;
+	}
+
+	public void setCheckoutTimeout(long checkoutTimeout) {
+		this.checkoutTimeout = checkoutTimeout;
+	}
+
+	/**
+	 * @return The number of workers currently waiting for a job.
+	 */
+	public int getIdleWorkers() {
+		return idle.size();
+	}
+
+	/**
+	 * @return The number of worker processes started so far.
+	 */
+	public long getStartedWorkers() {
+		return startedWorkers.get();
+	}
+
+	/**
+	 * @return The number of workers retired because of their job count or memory usage.
+	 */
+	public long getRecycledWorkers() {
+		return recycledWorkers.get();
+	}
+
+	/**
+	 * @return The number of workers replaced because their process exited unexpectedly.
+	 */
+	public long getCrashedWorkers() {
+		return crashedWorkers.get();
+	}
+
+	/**
+	 * @return The number of workers killed because the deadline of their job expired.
+	 */
+	public long getTimedOutWorkers() {
+		return timedOutWorkers.get();
+	}
+
+	/**
+	 * A worker process together with the number of jobs it has run.
+	 */
+	protected static class Worker {
+
+		final WkhtmlToPdfSession session;
+
+		int jobs;
+
+		/**
+		 * Whether the pool killed the process, it is not replaced as a crash then.
+		 */
+		volatile boolean killed;
+
+		Worker(WkhtmlToPdfSession session) {
+			this.session = session;
+		}
+
+		void kill() {
+			killed = true;
+			session.destroy();
+		}
+
+	}
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.asset;
+
+import java.io.File;
+import java.net.URL;
+
+/**
+ * An asset fetched into an {@link AssetStore}.
+ */
+public final class Asset {
+
+	private final URL url;
+
+	private final File file;
+
+	private final String contentType;
+
+	Asset(URL url, File file, String contentType) {
+		this.url = url;
+		this.file = file;
+		this.contentType = contentType;
+	}
+
+	/**
+	 * @return The URL the asset was fetched from.
+	 */
+	public URL getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return The file of the asset in the store.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The content type the server declared or <code>null</code>.
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String toString() {
+		return "Asset[" + url + " -> " + file + "]";
+	}
+
+}
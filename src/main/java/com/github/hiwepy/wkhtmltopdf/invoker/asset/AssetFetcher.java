@@ -0,0 +1,377 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.asset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+
+/**
+ * Fetches assets over HTTP into an {@link AssetStore}, meant to be shared by
+ * all renders of an application. Fetches run in parallel on an executor and
+ * reuse the keep-alive connections of {@link HttpURLConnection}. Concurrent
+ * fetches of the same URL share one download, and a fetched asset is served
+ * from the store until it expires according to its
+ * <code>Cache-Control</code> header, or the default maximum age if it has
+ * none. An expired asset is revalidated with a conditional request, so an
+ * unchanged asset is not downloaded again. Failed fetches are not remembered.
+ */
+public class AssetFetcher {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	public static final long DEFAULT_MAX_AGE = 10 * 60 * 1000;
+
+	public static final long DEFAULT_MAX_SIZE = 20L * 1024 * 1024;
+
+	private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+	private static final Pattern EXTENSION = Pattern.compile("\\.[A-Za-z0-9]{1,5}$");
+
+	private final AssetStore store;
+
+	private final Executor executor;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	/**
+	 * The time in milliseconds an asset without <code>Cache-Control</code> is served without revalidation.
+	 */
+	private long maxAge = DEFAULT_MAX_AGE;
+
+	/**
+	 * The maximum size of an asset in bytes.
+	 */
+	private long maxSize = DEFAULT_MAX_SIZE;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong downloadCount = new AtomicLong();
+
+	private final AtomicLong revalidationCount = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	/**
+	 * Creates a new fetcher running on the shared pump executor, so downloads
+	 * an invocation waits for never queue behind invocations.
+	 * 
+	 * @param store The store the assets are written to, must not be <code>null</code>.
+	 */
+	public AssetFetcher(AssetStore store) {
+		this(store, ProcessThreads.getPumpExecutor());
+	}
+
+	/**
+	 * Creates a new fetcher.
+	 * 
+	 * @param store The store the assets are written to, must not be <code>null</code>.
+	 * @param executor The executor the downloads run on, must not be <code>null</code>.
+	 */
+	public AssetFetcher(AssetStore store, Executor executor) {
+		this.store = store;
+		this.executor = executor;
+	}
+
+	/**
+	 * Fetches the given asset, from the store if it is still fresh.
+	 * 
+	 * @param url The URL of the asset, must use <code>http</code> or <code>https</code>.
+	 * @return A completion stage of the asset, never <code>null</code>. It completes exceptionally if the asset could not be fetched.
+	 */
+	public CompletableFuture<Asset> fetch(final URL url) {
+		
+		String protocol = url.getProtocol();
+		if (!"http".equals(protocol) && !"https".equals(protocol)) {
+			CompletableFuture<Asset> future = new CompletableFuture<Asset>();
+			future.completeExceptionally(new MalformedURLException("Not an HTTP URL: " + url));
+			return future;
+		}
+		
+		String key = withoutFragment(url);
+		for (;;) {
+			final Entry entry = entries.get(key);
+			if (entry != null) {
+				if (!entry.future.isDone()) {
+					return entry.future;
+				}
+				if (entry.isFresh()) {
+					hitCount.incrementAndGet();
+					return entry.future;
+				}
+			}
+			final Entry next = new Entry();
+			if (entry == null ? entries.putIfAbsent(key, next) == null : entries.replace(key, entry, next)) {
+				try {
+					executor.execute(new Runnable() {
+
+						public void run() {
+							load(url, entry, next);
+						}
+
+					});
+				} catch (RejectedExecutionException e) {
+					fail(next, e);
+				}
+				return next.future;
+			}
+		}
+	}
+
+	private void load(URL url, Entry stale, Entry next) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			connection.setInstanceFollowRedirects(true);
+			if (stale != null) {
+				if (stale.etag != null) {
+					connection.setRequestProperty("If-None-Match", stale.etag);
+				}
+				if (stale.lastModified != null) {
+					connection.setRequestProperty("If-Modified-Since", stale.lastModified);
+				}
+			}
+			
+			int status = connection.getResponseCode();
+			Asset asset;
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED && stale != null) {
+				revalidationCount.incrementAndGet();
+				asset = stale.future.join();
+				next.etag = stale.etag;
+				next.lastModified = stale.lastModified;
+			} else if (status == HttpURLConnection.HTTP_OK) {
+				String contentType = connection.getContentType();
+				File file;
+				try (InputStream in = connection.getInputStream()) {
+					file = store.put(in, extensionOf(url, contentType), maxSize);
+				}
+				downloadCount.incrementAndGet();
+				asset = new Asset(url, file, contentType);
+			} else {
+				throw new IOException("HTTP " + status + " fetching " + url);
+			}
+			
+			if (connection.getHeaderField("ETag") != null) {
+				next.etag = connection.getHeaderField("ETag");
+			}
+			if (connection.getHeaderField("Last-Modified") != null) {
+				next.lastModified = connection.getHeaderField("Last-Modified");
+			}
+			next.expires = System.currentTimeMillis() + maxAgeOf(connection.getHeaderField("Cache-Control"));
+			next.future.complete(asset);
+		} catch (IOException | RuntimeException e) {
+			fail(next, e);
+			if (connection != null) {
+				drain(connection);
+			}
+		}
+	}
+
+	private void fail(Entry entry, Throwable failure) {
+		failureCount.incrementAndGet();
+		entries.values().remove(entry);
+		entry.future.completeExceptionally(failure);
+	}
+
+	/**
+	 * Reads the error body, so the connection can be kept alive.
+	 */
+	private static void drain(HttpURLConnection connection) {
+		try (InputStream in = connection.getErrorStream()) {
+			if (in != null) {
+				byte[] buffer = new byte[4096];
+				while (in.read(buffer) != -1) {
+					// discard
+				}
+			}
+		} catch (IOException e) {
+			// the connection is not reused then
+		}
+	}
+
+	private long maxAgeOf(String cacheControl) {
+		if (cacheControl == null) {
+			return maxAge;
+		}
+		String directives = cacheControl.toLowerCase(Locale.ENGLISH);
+		if (directives.contains("no-store") || directives.contains("no-cache")) {
+			return 0;
+		}
+		Matcher matcher = MAX_AGE.matcher(directives);
+		if (matcher.find()) {
+			try {
+				return Long.parseLong(matcher.group(1)) * 1000;
+			} catch (NumberFormatException e) {
+				return maxAge;
+			}
+		}
+		return maxAge;
+	}
+
+	/**
+	 * Keeps the extension of the URL, QtWebKit derives the type of local files
+	 * from it.
+	 */
+	static String extensionOf(URL url, String contentType) {
+		Matcher matcher = EXTENSION.matcher(url.getPath());
+		if (matcher.find()) {
+			return matcher.group().toLowerCase(Locale.ENGLISH);
+		}
+		String type = contentType != null ? contentType.toLowerCase(Locale.ENGLISH) : "";
+		if (type.startsWith("text/css")) {
+			return ".css";
+		} else if (type.startsWith("image/png")) {
+			return ".png";
+		} else if (type.startsWith("image/jpeg")) {
+			return ".jpg";
+		} else if (type.startsWith("image/gif")) {
+			return ".gif";
+		} else if (type.startsWith("image/svg")) {
+			return ".svg";
+		} else if (type.contains("woff2")) {
+			return ".woff2";
+		} else if (type.contains("woff")) {
+			return ".woff";
+		} else if (type.contains("ttf") || type.contains("truetype")) {
+			return ".ttf";
+		} else if (type.contains("otf") || type.contains("opentype")) {
+			return ".otf";
+		}
+		return "";
+	}
+
+	private static String withoutFragment(URL url) {
+		String external = url.toExternalForm();
+		int hash = external.indexOf('#');
+		return hash < 0 ? external : external.substring(0, hash);
+	}
+
+	/**
+	 * @return The store the assets are written to.
+	 */
+	public AssetStore getStore() {
+		return store;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @param maxAge The time in milliseconds an asset without <code>Cache-Control</code> is served without revalidation.
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize The maximum size of an asset in bytes, larger ones fail to fetch.
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return The number of fetches served from the store without a request.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return The number of assets downloaded.
+	 */
+	public long getDownloadCount() {
+		return downloadCount.get();
+	}
+
+	/**
+	 * @return The number of expired assets the server confirmed as unchanged.
+	 */
+	public long getRevalidationCount() {
+		return revalidationCount.get();
+	}
+
+	/**
+	 * @return The number of fetches that failed.
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * The state of one URL. The fields describing the response are written
+	 * before the future completes and only read afterwards.
+	 */
+	private static final class Entry {
+
+		final CompletableFuture<Asset> future = new CompletableFuture<Asset>();
+
+		volatile String etag;
+
+		volatile String lastModified;
+
+		volatile long expires;
+
+		boolean isFresh() {
+			return !future.isCompletedExceptionally() && System.currentTimeMillis() < expires;
+		}
+
+	}
+
+}
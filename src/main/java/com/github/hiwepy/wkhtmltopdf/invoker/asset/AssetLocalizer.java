@@ -0,0 +1,425 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.asset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+
+/**
+ * Pre-render stage taking the network out of the render. QtWebKit fetches the
+ * sub-resources of a page slowly, a few at a time and without a cache shared
+ * between processes; this stage fetches the stylesheets, images and fonts of
+ * a page in parallel with a shared {@link AssetFetcher} instead and rewrites
+ * their references to <code>file://</code> URLs of the {@link AssetStore}, so
+ * wkhtmltopdf reads them from disk. Stylesheets are rewritten the same way,
+ * including the fonts, images and imports they refer to.
+ * <p>
+ * Localizing is best effort: a reference whose asset could not be fetched in
+ * time keeps its URL and is left to wkhtmltopdf. wkhtmltopdf must be allowed
+ * to read the store, see <code>--allow</code>.
+ */
+public class AssetLocalizer {
+
+	public static final long DEFAULT_TIMEOUT = 10000;
+
+	/**
+	 * <code>url(...)</code>, optionally imported, or an <code>@import</code> of a plain string.
+	 */
+	private static final Pattern CSS_REFERENCE = Pattern.compile(
+			"(@import\\s+)?url\\(\\s*(['\"]?)([^'\")]+?)\\2\\s*\\)|@import\\s+(['\"])([^'\"]+)\\4", Pattern.CASE_INSENSITIVE);
+
+	private static final int MAX_IMPORT_DEPTH = 4;
+
+	private final AssetFetcher fetcher;
+
+	/**
+	 * The time in milliseconds a page waits for its assets.
+	 */
+	private long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Creates a new localizer.
+	 * 
+	 * @param fetcher The fetcher of the assets, must not be <code>null</code>.
+	 */
+	public AssetLocalizer(AssetFetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	/**
+	 * Reads and localizes the given page. A page read from the standard input
+	 * has no URL of its own, so relative references are only resolved against
+	 * its <code>&lt;base href&gt;</code>; without one they are skipped and left
+	 * as they are, just like wkhtmltopdf can not load them either.
+	 * 
+	 * @param page The page, must not be <code>null</code>. It is read once.
+	 * @param timeout The maximum time to wait for the assets.
+	 * @param unit The unit of the timeout, must not be <code>null</code>.
+	 * @return The localized page, never <code>null</code>.
+	 * @throws IOException If the page could not be read.
+	 * @throws InterruptedException If the calling thread was interrupted while waiting for the assets.
+	 * @see #localize(InputSource, String, long, TimeUnit)
+	 */
+	public InputSource localize(InputSource page, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		return localize(page, "", timeout, unit);
+	}
+
+	/**
+	 * Reads and localizes the given page, which is streamed into the parser.
+	 * Relative references are resolved against the
+	 * <code>&lt;base href&gt;</code> of the page or else the given base URI,
+	 * e.g. the URL the page was downloaded from; references that can not be
+	 * resolved are skipped.
+	 * 
+	 * @param page The page, must not be <code>null</code>. It is read once.
+	 * @param baseUri The URI of the page, empty if it is unknown.
+	 * @param timeout The maximum time to wait for the assets.
+	 * @param unit The unit of the timeout, must not be <code>null</code>.
+	 * @return The localized page, never <code>null</code>.
+	 * @throws IOException If the page could not be read.
+	 * @throws InterruptedException If the calling thread was interrupted while waiting for the assets.
+	 */
+	public InputSource localize(InputSource page, String baseUri, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		Document document;
+		try (InputStream html = page.openStream()) {
+			// the charset is sniffed from the page, the localized page is written in the same one
+			document = Jsoup.parse(html, null, baseUri == null ? "" : baseUri);
+		}
+		localize(document, timeout, unit);
+		return InputSource.fromDocument(document);
+	}
+
+	/**
+	 * Localizes the assets of the given document in place. Relative references
+	 * are resolved against the base URI of the document.
+	 * 
+	 * @param document The document, must not be <code>null</code>.
+	 * @param timeout The maximum time to wait for the assets.
+	 * @param unit The unit of the timeout, must not be <code>null</code>.
+	 * @return The number of elements whose references were rewritten.
+	 * @throws InterruptedException If the calling thread was interrupted while waiting for the assets.
+	 */
+	public int localize(Document document, long timeout, TimeUnit unit) throws InterruptedException {
+		
+		Localization localization = new Localization();
+		List<Element> stylesheets = new ArrayList<Element>();
+		for (Element link : document.select("link[href]")) {
+			if (isStylesheet(link) && localization.resolve(link.baseUri(), link.attr("href"), true, 0) != null) {
+				stylesheets.add(link);
+			}
+		}
+		List<Element> images = new ArrayList<Element>();
+		for (Element image : document.select("img[src]")) {
+			if (localization.resolve(image.baseUri(), image.attr("src"), false, 0) != null) {
+				images.add(image);
+			}
+		}
+		List<Element> styles = document.select("style");
+		for (Element style : styles) {
+			localization.collect(style.data(), style.baseUri(), 0);
+		}
+		List<Element> styled = document.select("[style]");
+		for (Element element : styled) {
+			localization.collect(element.attr("style"), element.baseUri(), 0);
+		}
+		
+		try {
+			localization.await().get(timeout, unit);
+		} catch (TimeoutException e) {
+			// use what is there, wkhtmltopdf fetches the rest
+		} catch (ExecutionException e) {
+			// some assets failed, they keep their URLs
+		}
+		
+		int rewritten = 0;
+		for (Element link : stylesheets) {
+			String local = localization.get(link.baseUri(), link.attr("href"), true, 0);
+			if (local != null) {
+				link.attr("href", local);
+				rewritten++;
+			}
+		}
+		for (Element image : images) {
+			String local = localization.get(image.baseUri(), image.attr("src"), false, 0);
+			if (local != null) {
+				image.attr("src", local);
+				rewritten++;
+			}
+		}
+		for (Element style : styles) {
+			String css = style.data();
+			String local = localization.rewrite(css, style.baseUri(), false, 0);
+			if (!local.equals(css)) {
+				// a data node, the text would be escaped
+				style.empty().appendChild(new DataNode(local));
+				rewritten++;
+			}
+		}
+		for (Element element : styled) {
+			String css = element.attr("style");
+			String local = localization.rewrite(css, element.baseUri(), false, 0);
+			if (!local.equals(css)) {
+				element.attr("style", local);
+				rewritten++;
+			}
+		}
+		return rewritten;
+	}
+
+	private static boolean isStylesheet(Element link) {
+		for (String rel : link.attr("rel").toLowerCase(Locale.ENGLISH).split("\\s+")) {
+			if ("stylesheet".equals(rel)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Resolves a reference, <code>null</code> if it does not point to a
+	 * network resource, e.g. a <code>data:</code> URL or a fragment.
+	 */
+	static URL resolve(String base, String reference) {
+		String trimmed = reference.trim();
+		if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.regionMatches(true, 0, "data:", 0, 5)) {
+			return null;
+		}
+		try {
+			return base == null || base.isEmpty() ? new URL(trimmed) : new URL(new URL(base), trimmed);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	private static String toFileUrl(File file) {
+		return file.toPath().toUri().toString();
+	}
+
+	/**
+	 * @return The fetcher of the assets.
+	 */
+	public AssetFetcher getFetcher() {
+		return fetcher;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout The time in milliseconds a page waits for its assets, the deadline of the invocation still applies.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * The assets of one page, each fetched once however often it is referred to.
+	 */
+	private final class Localization {
+
+		private final ConcurrentMap<String, CompletableFuture<File>> files = new ConcurrentHashMap<String, CompletableFuture<File>>();
+
+		/**
+		 * Starts localizing the given reference.
+		 * 
+		 * @return The resolved URL or <code>null</code> if the reference is not localized.
+		 */
+		URL resolve(String base, String reference, final boolean stylesheet, final int depth) {
+			URL url = AssetLocalizer.resolve(base, reference);
+			String protocol = url != null ? url.getProtocol() : null;
+			if (!"http".equals(protocol) && !"https".equals(protocol)) {
+				return null;
+			}
+			if (stylesheet && depth > MAX_IMPORT_DEPTH) {
+				return null;
+			}
+			String key = key(url, stylesheet, depth);
+			if (!files.containsKey(key)) {
+				CompletableFuture<Asset> asset = fetcher.fetch(url);
+				CompletableFuture<File> file;
+				if (stylesheet) {
+					file = asset.thenCompose(new Function<Asset, CompletableFuture<File>>() {
+
+						public CompletableFuture<File> apply(Asset asset) {
+							return stylesheet(asset, depth);
+						}
+
+					});
+				} else {
+					file = asset.thenApply(new Function<Asset, File>() {
+
+						public File apply(Asset asset) {
+							return asset.getFile();
+						}
+
+					});
+				}
+				files.putIfAbsent(key, file);
+			}
+			return url;
+		}
+
+		/**
+		 * Starts localizing the references of the given stylesheet.
+		 */
+		void collect(String css, String base, int depth) {
+			Matcher matcher = CSS_REFERENCE.matcher(css);
+			while (matcher.find()) {
+				boolean imported = matcher.group(1) != null || matcher.group(5) != null;
+				String reference = matcher.group(3) != null ? matcher.group(3) : matcher.group(5);
+				resolve(base, reference, imported, depth + (imported ? 1 : 0));
+			}
+		}
+
+		/**
+		 * Rewrites the references of the given stylesheet to the assets
+		 * localized so far. With <code>absolute</code> the others are
+		 * made absolute, since a stylesheet moved into the store can no
+		 * longer resolve relative ones.
+		 */
+		String rewrite(String css, String base, boolean absolute, int depth) {
+			Matcher matcher = CSS_REFERENCE.matcher(css);
+			StringBuffer rewritten = new StringBuffer(css.length());
+			while (matcher.find()) {
+				boolean imported = matcher.group(1) != null || matcher.group(5) != null;
+				String reference = matcher.group(3) != null ? matcher.group(3) : matcher.group(5);
+				String target = get(base, reference, imported, depth + (imported ? 1 : 0));
+				if (target == null && absolute) {
+					URL url = AssetLocalizer.resolve(base, reference);
+					target = url != null ? url.toExternalForm() : null;
+				}
+				if (target == null) {
+					matcher.appendReplacement(rewritten, Matcher.quoteReplacement(matcher.group()));
+				} else if (matcher.group(3) != null) {
+					String prefix = matcher.group(1) != null ? matcher.group(1) : "";
+					matcher.appendReplacement(rewritten, Matcher.quoteReplacement(prefix + "url(\"" + target + "\")"));
+				} else {
+					matcher.appendReplacement(rewritten, Matcher.quoteReplacement("@import \"" + target + "\""));
+				}
+			}
+			matcher.appendTail(rewritten);
+			return rewritten.toString();
+		}
+
+		/**
+		 * @return The <code>file://</code> URL of the given reference if it is localized already, <code>null</code> otherwise.
+		 */
+		String get(String base, String reference, boolean stylesheet, int depth) {
+			URL url = AssetLocalizer.resolve(base, reference);
+			CompletableFuture<File> file = url != null ? files.get(key(url, stylesheet, depth)) : null;
+			if (file == null || !file.isDone() || file.isCompletedExceptionally()) {
+				return null;
+			}
+			return toFileUrl(file.join());
+		}
+
+		/**
+		 * Localizes the references of a fetched stylesheet and stores the
+		 * rewritten stylesheet once they are all settled.
+		 */
+		private CompletableFuture<File> stylesheet(Asset asset, final int depth) {
+			final String css;
+			try {
+				css = new String(Files.readAllBytes(asset.getFile().toPath()), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				CompletableFuture<File> failed = new CompletableFuture<File>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+			final String base = asset.getUrl().toExternalForm();
+			List<CompletableFuture<File>> references = new ArrayList<CompletableFuture<File>>();
+			Matcher matcher = CSS_REFERENCE.matcher(css);
+			while (matcher.find()) {
+				boolean imported = matcher.group(1) != null || matcher.group(5) != null;
+				String reference = matcher.group(3) != null ? matcher.group(3) : matcher.group(5);
+				int referenceDepth = depth + (imported ? 1 : 0);
+				URL url = resolve(base, reference, imported, referenceDepth);
+				if (url != null) {
+					references.add(files.get(key(url, imported, referenceDepth)));
+				}
+			}
+			return settled(references).thenApply(new Function<Void, File>() {
+
+				public File apply(Void settled) {
+					try {
+						return fetcher.getStore().put(rewrite(css, base, true, depth).getBytes(StandardCharsets.UTF_8), ".css");
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+
+			});
+		}
+
+		/**
+		 * @return A stage completing once all localizations started so far are settled, failed or not.
+		 */
+		CompletableFuture<Void> await() {
+			return settled(new ArrayList<CompletableFuture<File>>(files.values()));
+		}
+
+		private CompletableFuture<Void> settled(List<CompletableFuture<File>> futures) {
+			CompletableFuture<?>[] settled = new CompletableFuture<?>[futures.size()];
+			for (int i = 0; i < settled.length; i++) {
+				settled[i] = futures.get(i).handle(new BiFunction<File, Throwable, Void>() {
+
+					public Void apply(File file, Throwable failure) {
+						return null;
+					}
+
+				});
+			}
+			return CompletableFuture.allOf(settled);
+		}
+
+		/**
+		 * Stylesheets are told apart by their import depth, so an import cycle
+		 * ends at the maximum depth instead of waiting for itself.
+		 */
+		private String key(URL url, boolean stylesheet, int depth) {
+			return stylesheet ? "css " + depth + " " + url.toExternalForm() : url.toExternalForm();
+		}
+
+	}
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.asset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed store of the assets of localized pages. Every asset is a
+ * file named by the SHA-256 of its content, <code>ab/abcdef....css</code>, so
+ * the same stylesheet or font served under many URLs is kept once and a file,
+ * once written, never changes. Files are written to a staging directory first
+ * and moved into place with an atomic rename, so wkhtmltopdf never reads a
+ * partially written asset, even across processes sharing the directory.
+ * <p>
+ * Nothing is ever deleted from the store by itself.
+ */
+public class AssetStore {
+
+	private static final String STAGING = ".staging";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File directory;
+
+	private final Path staging;
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary.
+	 * 
+	 * @param directory The directory of the store, must not be <code>null</code>.
+	 * @throws IOException If the directory could not be created.
+	 */
+	public AssetStore(File directory) throws IOException {
+		this.directory = directory;
+		this.staging = directory.toPath().resolve(STAGING);
+		Files.createDirectories(staging);
+	}
+
+	/**
+	 * Stores the content of the given stream.
+	 * 
+	 * @param in The content, must not be <code>null</code>. It is read to the end but not closed.
+	 * @param extension The file extension of the asset including the dot, e.g. <code>.css</code>, may be empty.
+	 * @param maxSize The maximum size of the content in bytes.
+	 * @return The file of the asset, never <code>null</code>.
+	 * @throws IOException If the content could not be read or written, or is larger than the maximum size.
+	 */
+	public File put(InputStream in, String extension, long maxSize) throws IOException {
+		
+		MessageDigest digest = newDigest();
+		Path temp = Files.createTempFile(staging, "asset-", ".tmp");
+		try {
+			try (OutputStream out = new DigestOutputStream(Files.newOutputStream(temp), digest)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long size = 0;
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					size += n;
+					if (size > maxSize) {
+						throw new IOException("Asset exceeds " + maxSize + " bytes.");
+					}
+					out.write(buffer, 0, n);
+				}
+			}
+			return publish(temp, toHex(digest.digest()), extension);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Stores the given content.
+	 * 
+	 * @param content The content, must not be <code>null</code>.
+	 * @param extension The file extension of the asset including the dot, e.g. <code>.css</code>, may be empty.
+	 * @return The file of the asset, never <code>null</code>.
+	 * @throws IOException If the content could not be written.
+	 */
+	public File put(byte[] content, String extension) throws IOException {
+		String hex = toHex(newDigest().digest(content));
+		File file = toFile(hex, extension);
+		if (file.isFile()) {
+			return file;
+		}
+		Path temp = Files.createTempFile(staging, "asset-", ".tmp");
+		try {
+			Files.write(temp, content);
+			return publish(temp, hex, extension);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private File publish(Path temp, String hex, String extension) throws IOException {
+		File file = toFile(hex, extension);
+		if (file.isFile()) {
+			// same content, stored before
+			return file;
+		}
+		Files.createDirectories(file.getParentFile().toPath());
+		try {
+			Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			// raced with another writer of the same content
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return file;
+	}
+
+	private File toFile(String hex, String extension) {
+		return new File(new File(directory, hex.substring(0, 2)), hex + extension);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return The directory of the store.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+}
@@ -0,0 +1,416 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * Render cache keeping the documents as files named by their fingerprint in a
+ * directory, <code>ab/abcdef...</code>. New entries are written to a staging
+ * directory next to them and moved into place with an atomic rename, so a
+ * reader never sees a partially written document, even across processes
+ * sharing the directory.
+ * <p>
+ * The total size of the entries is capped. Once it is exceeded, the least
+ * recently used entries are deleted. The order survives restarts: a hit
+ * touches the modification time of the file and the index is rebuilt from the
+ * modification times when the cache is opened.
+ */
+public class DiskRenderCache implements RenderCache {
+
+	public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+	private static final String STAGING = ".staging";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path directory;
+
+	private final Path staging;
+
+	/**
+	 * The maximum total size of the entries in bytes.
+	 */
+	private final long maxSize;
+
+	/**
+	 * The sizes of the entries by name, least recently used first, guarded by this.
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/**
+	 * The total size of the entries, guarded by this.
+	 */
+	private long size;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Opens a cache of the default maximum size.
+	 * 
+	 * @param directory The cache directory, created if it does not exist.
+	 * @throws IOException If the directory could not be created or read.
+	 */
+	public DiskRenderCache(File directory) throws IOException {
+		this(directory, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Opens a cache, indexing the entries already in the given directory.
+	 * 
+	 * @param directory The cache directory, created if it does not exist.
+	 * @param maxSize The maximum total size of the entries in bytes, must be positive.
+	 * @throws IOException If the directory could not be created or read.
+	 */
+	public DiskRenderCache(File directory, long maxSize) throws IOException {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.directory = directory.toPath();
+		this.staging = this.directory.resolve(STAGING);
+		this.maxSize = maxSize;
+		Files.createDirectories(staging);
+		load();
+	}
+
+	private void load() throws IOException {
+		
+		// left behind by writers that never finished
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		}
+		
+		List<Found> found = new ArrayList<Found>();
+		try (DirectoryStream<Path> shards = Files.newDirectoryStream(directory)) {
+			for (Path shard : shards) {
+				if (shard.getFileName().toString().length() != 2 || !Files.isDirectory(shard)) {
+					continue;
+				}
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+					for (Path file : files) {
+						BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+						if (attributes.isRegularFile()) {
+							found.add(new Found(file.getFileName().toString(), attributes.size(),
+									attributes.lastModifiedTime().toMillis()));
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(found, new Comparator<Found>() {
+
+			public int compare(Found a, Found b) {
+				return Long.compare(a.lastModified, b.lastModified);
+			}
+
+		});
+		
+		List<String> victims;
+		synchronized (this) {
+			for (Found entry : found) {
+				entries.put(entry.name, entry.size);
+				size += entry.size;
+			}
+			victims = evict();
+		}
+		delete(victims);
+	}
+
+	public boolean deliver(RequestFingerprint fingerprint, OutputSink sink) throws IOException {
+		
+		String name = fingerprint.toString();
+		synchronized (this) {
+			// also marks the entry as recently used
+			if (entries.get(name) == null) {
+				missCount.incrementAndGet();
+				return false;
+			}
+		}
+		
+		Path file = path(name);
+		try {
+			if (sink.getFile() != null) {
+				Files.copy(file, sink.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				try (InputStream in = Files.newInputStream(file)) {
+					sink.consume(in);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			if (!file.toString().equals(e.getFile())) {
+				throw e;
+			}
+			// deleted by another process sharing the directory
+			remove(name);
+			missCount.incrementAndGet();
+			return false;
+		}
+		
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// only the order after a restart suffers
+		}
+		hitCount.incrementAndGet();
+		return true;
+	}
+
+	public EntryWriter stage(RequestFingerprint fingerprint) throws IOException {
+		String name = fingerprint.toString();
+		return new DiskEntryWriter(name, Files.createTempFile(staging, name, ".tmp"));
+	}
+
+	/**
+	 * Deletes all entries.
+	 */
+	public void clear() {
+		List<String> victims;
+		synchronized (this) {
+			victims = new ArrayList<String>(entries.keySet());
+			entries.clear();
+			size = 0;
+		}
+		for (String name : victims) {
+			try {
+				Files.deleteIfExists(path(name));
+			} catch (IOException e) {
+				// still open on a platform that does not allow that, ignore
+			}
+		}
+	}
+
+	private void publish(String name, Path temp, long length) throws IOException {
+		
+		Path file = path(name);
+		Files.createDirectories(file.getParent());
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		List<String> victims;
+		synchronized (this) {
+			Long previous = entries.put(name, length);
+			size += length - (previous != null ? previous : 0);
+			victims = evict();
+		}
+		delete(victims);
+	}
+
+	/**
+	 * Removes the least recently used entries from the index until the cache
+	 * fits its maximum size. The caller must hold the lock of this cache and
+	 * delete the files of the returned entries after releasing it.
+	 */
+	private List<String> evict() {
+		List<String> victims = Collections.emptyList();
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			size -= eldest.getValue();
+			if (victims.isEmpty()) {
+				victims = new ArrayList<String>();
+			}
+			victims.add(eldest.getKey());
+		}
+		return victims;
+	}
+
+	private void delete(List<String> victims) {
+		for (String name : victims) {
+			try {
+				Files.deleteIfExists(path(name));
+			} catch (IOException e) {
+				// still being delivered on a platform that does not allow that, ignore
+			}
+		}
+		evictionCount.addAndGet(victims.size());
+	}
+
+	private synchronized void remove(String name) {
+		Long length = entries.remove(name);
+		if (length != null) {
+			size -= length;
+		}
+	}
+
+	private Path path(String name) {
+		return directory.resolve(name.substring(0, 2)).resolve(name);
+	}
+
+	/**
+	 * @return The cache directory.
+	 */
+	public File getDirectory() {
+		return directory.toFile();
+	}
+
+	/**
+	 * @return The maximum total size of the entries in bytes.
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return The total size of the entries in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of entries.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of lookups that found a document.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return The number of lookups that found no document.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return The number of entries deleted to keep the cache within its maximum size.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	private static final class Found {
+
+		final String name;
+
+		final long size;
+
+		final long lastModified;
+
+		Found(String name, long size, long lastModified) {
+			this.name = name;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+	}
+
+	private final class DiskEntryWriter extends EntryWriter {
+
+		private final String name;
+
+		private final Path temp;
+
+		private final OutputStream out;
+
+		private long written;
+
+		private boolean closed;
+
+		DiskEntryWriter(String name, Path temp) throws IOException {
+			this.name = name;
+			this.temp = temp;
+			this.out = new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureCapacity(1);
+			out.write(b);
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureCapacity(len);
+			out.write(b, off, len);
+			written += len;
+		}
+
+		private void ensureCapacity(int len) throws IOException {
+			if (written + len > maxSize) {
+				throw new IOException("Document exceeds the maximum cache size of " + maxSize + " bytes.");
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void commit() throws IOException {
+			if (closed) {
+				throw new IOException("Entry " + name + " is already closed.");
+			}
+			closed = true;
+			out.close();
+			publish(name, temp, written);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (!closed) {
+					out.close();
+				}
+			} finally {
+				closed = true;
+				Files.deleteIfExists(temp);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+/**
+ * Count-min sketch estimating how often a key was seen recently, the
+ * frequency filter of a TinyLFU admission policy. Each of the four rows maps a
+ * key to a 4-bit counter, the estimate is the smallest of the four. Once the
+ * number of increments reaches ten times the width of the sketch, all
+ * counters are halved, so that keys that were popular a while ago fade out.
+ * Not thread-safe.
+ */
+final class FrequencySketch {
+
+	private static final int[] SEEDS = { 0x97cb3127, 0xb2d7a9e1, 0xc4ceb9fe, 0x3a5d1cb7 };
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	/**
+	 * Sixteen 4-bit counters per element.
+	 */
+	private final long[] table;
+
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int additions;
+
+	/**
+	 * @param expectedEntries The number of entries the cache is expected to hold.
+	 */
+	FrequencySketch(int expectedEntries) {
+		int width = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+		this.table = new long[width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	/**
+	 * @return The estimated number of recent occurrences of the key, at most 15.
+	 */
+	int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int h = rehash(hash, i);
+			int count = (int) ((table[index(h)] >>> offset(h)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records an occurrence of the key.
+	 */
+	void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int h = rehash(hash, i);
+			int index = index(h);
+			int offset = offset(h);
+			if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+		if (added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions >>>= 1;
+	}
+
+	private int index(int h) {
+		return (h >>> 4) & mask;
+	}
+
+	private static int offset(int h) {
+		return (h & 0xf) << 2;
+	}
+
+	private static int rehash(int hash, int i) {
+		int h = hash * SEEDS[i];
+		return h ^ (h >>> 17);
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		return h ^ (h >>> 16);
+	}
+
+}
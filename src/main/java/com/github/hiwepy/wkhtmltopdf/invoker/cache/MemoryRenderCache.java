@@ -0,0 +1,519 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * Render cache keeping small documents, e.g. single page PDFs and thumbnails,
+ * in memory in front of another cache, typically a {@link DiskRenderCache}.
+ * Documents larger than the maximum entry size only go to the next tier.
+ * <p>
+ * Entries are weighed by their size in bytes against a global budget and kept
+ * on the heap or in direct buffers. Admission follows W-TinyLFU: new entries
+ * enter a small LRU window; an entry leaving the window only displaces the
+ * least recently used entries of the main area if it was requested more often
+ * recently than they were, as estimated by a {@link FrequencySketch}. A burst
+ * of one-off documents therefore cannot flush the hot set.
+ * <p>
+ * A hit hands out a view of the stored buffer; the document is neither copied
+ * nor decoded on the way to the sink. Direct buffers count against
+ * <code>-XX:MaxDirectMemorySize</code> and are released by the garbage
+ * collector after eviction.
+ */
+public class MemoryRenderCache implements RenderCache {
+
+	public static final int DEFAULT_MAX_ENTRY_SIZE = 200 * 1024;
+
+	/**
+	 * Where the documents are stored.
+	 */
+	public enum Storage {
+
+		/**
+		 * Byte arrays on the Java heap.
+		 */
+		HEAP,
+
+		/**
+		 * Direct buffers outside the Java heap.
+		 */
+		DIRECT
+
+	}
+
+	/**
+	 * The cache consulted on a miss and written through on a commit, may be <code>null</code>.
+	 */
+	private final RenderCache next;
+
+	/**
+	 * The maximum total size of the entries in bytes.
+	 */
+	private final long maxSize;
+
+	/**
+	 * The maximum size of a single entry in bytes.
+	 */
+	private final int maxEntrySize;
+
+	private final Storage storage;
+
+	private final long maxWindowSize;
+
+	private final long maxMainSize;
+
+	/**
+	 * The recently admitted entries, least recently used first, guarded by this.
+	 */
+	private final LinkedHashMap<RequestFingerprint, ByteBuffer> window = new LinkedHashMap<RequestFingerprint, ByteBuffer>(16, 0.75f, true);
+
+	/**
+	 * The entries that won admission, least recently used first, guarded by this.
+	 */
+	private final LinkedHashMap<RequestFingerprint, ByteBuffer> main = new LinkedHashMap<RequestFingerprint, ByteBuffer>(16, 0.75f, true);
+
+	/**
+	 * Guarded by this.
+	 */
+	private final FrequencySketch sketch;
+
+	private long windowSize;
+
+	private long mainSize;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private final AtomicLong rejectionCount = new AtomicLong();
+
+	/**
+	 * Creates a heap cache with the default maximum entry size.
+	 * 
+	 * @param maxSize The maximum total size of the entries in bytes, must be positive.
+	 * @param next The cache consulted on a miss, may be <code>null</code>.
+	 */
+	public MemoryRenderCache(long maxSize, RenderCache next) {
+		this(maxSize, DEFAULT_MAX_ENTRY_SIZE, Storage.HEAP, next);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxSize The maximum total size of the entries in bytes, must be positive.
+	 * @param maxEntrySize The maximum size of a single entry in bytes, must be positive.
+	 * @param storage Where the documents are stored, must not be <code>null</code>.
+	 * @param next The cache consulted on a miss, may be <code>null</code>.
+	 */
+	public MemoryRenderCache(long maxSize, int maxEntrySize, Storage storage, RenderCache next) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		if (maxEntrySize < 1) {
+			throw new IllegalArgumentException("maxEntrySize must be positive: " + maxEntrySize);
+		}
+		if (storage == null) {
+			throw new NullPointerException("missing storage");
+		}
+		this.maxSize = maxSize;
+		this.maxEntrySize = (int) Math.min(maxEntrySize, maxSize);
+		this.storage = storage;
+		this.next = next;
+		// one percent of the budget, but room for at least one entry
+		this.maxWindowSize = Math.min(maxSize, Math.max(maxSize / 100, this.maxEntrySize));
+		this.maxMainSize = maxSize - maxWindowSize;
+		this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxSize / Math.max(1, this.maxEntrySize / 4)));
+	}
+
+	/**
+	 * Looks up the document of the given fingerprint in memory only.
+	 * 
+	 * @param fingerprint The fingerprint of the request, must not be <code>null</code>.
+	 * @return A read-only view of the document or <code>null</code> if it is not in memory.
+	 */
+	public ByteBuffer get(RequestFingerprint fingerprint) {
+		ByteBuffer buffer = lookup(fingerprint);
+		return buffer != null ? buffer.asReadOnlyBuffer() : null;
+	}
+
+	public boolean deliver(RequestFingerprint fingerprint, OutputSink sink) throws IOException {
+		
+		ByteBuffer buffer = lookup(fingerprint);
+		if (buffer != null) {
+			// only the built-in sinks get the array itself, others a read-only view
+			if (buffer.hasArray()) {
+				sink.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			} else {
+				sink.write(buffer.asReadOnlyBuffer());
+			}
+			return true;
+		}
+		if (next == null) {
+			return false;
+		}
+		
+		File file = sink.getFile();
+		if (file != null) {
+			if (!next.deliver(fingerprint, sink)) {
+				return false;
+			}
+			if (file.length() <= maxEntrySize) {
+				byte[] document = Files.readAllBytes(file.toPath());
+				admit(fingerprint, document, document.length);
+			}
+			return true;
+		}
+		
+		CapturingSink capturing = new CapturingSink(sink);
+		if (!next.deliver(fingerprint, capturing)) {
+			return false;
+		}
+		if (capturing.isComplete()) {
+			admit(fingerprint, capturing.document, capturing.length);
+		}
+		return true;
+	}
+
+	public EntryWriter stage(RequestFingerprint fingerprint) throws IOException {
+		return new MemoryEntryWriter(fingerprint, next != null ? next.stage(fingerprint) : null);
+	}
+
+	/**
+	 * Drops all entries held in memory. The next tier is not affected.
+	 */
+	public synchronized void clear() {
+		window.clear();
+		main.clear();
+		windowSize = 0;
+		mainSize = 0;
+	}
+
+	private synchronized ByteBuffer lookup(RequestFingerprint fingerprint) {
+		sketch.increment(fingerprint);
+		ByteBuffer buffer = main.get(fingerprint);
+		if (buffer == null) {
+			buffer = window.get(fingerprint);
+		}
+		if (buffer != null) {
+			hitCount.incrementAndGet();
+		} else {
+			missCount.incrementAndGet();
+		}
+		return buffer;
+	}
+
+	private void admit(RequestFingerprint fingerprint, byte[] document, int length) {
+		if (length > maxEntrySize) {
+			return;
+		}
+		ByteBuffer buffer;
+		if (storage == Storage.DIRECT) {
+			buffer = ByteBuffer.allocateDirect(length);
+			buffer.put(document, 0, length);
+			buffer.flip();
+		} else {
+			buffer = ByteBuffer.wrap(length == document.length ? document : Arrays.copyOf(document, length));
+		}
+		synchronized (this) {
+			ByteBuffer previous = window.remove(fingerprint);
+			if (previous != null) {
+				windowSize -= previous.capacity();
+			}
+			previous = main.remove(fingerprint);
+			if (previous != null) {
+				mainSize -= previous.capacity();
+			}
+			window.put(fingerprint, buffer);
+			windowSize += length;
+			while (windowSize > maxWindowSize) {
+				Iterator<Map.Entry<RequestFingerprint, ByteBuffer>> it = window.entrySet().iterator();
+				Map.Entry<RequestFingerprint, ByteBuffer> candidate = it.next();
+				it.remove();
+				windowSize -= candidate.getValue().capacity();
+				offer(candidate.getKey(), candidate.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Moves an entry leaving the window into the main area if it is requested
+	 * more often than each of the entries it would displace. The victims are
+	 * only evicted once the candidate won against all of them, a rejected
+	 * candidate leaves the main area untouched. The caller must hold the lock
+	 * of this cache.
+	 */
+	private void offer(RequestFingerprint candidate, ByteBuffer buffer) {
+		int weight = buffer.capacity();
+		if (weight > maxMainSize) {
+			rejectionCount.incrementAndGet();
+			return;
+		}
+		int frequency = sketch.frequency(candidate);
+		int victims = 0;
+		long freed = 0;
+		// iterating does not count as an access
+		Iterator<Map.Entry<RequestFingerprint, ByteBuffer>> it = main.entrySet().iterator();
+		while (mainSize - freed + weight > maxMainSize) {
+			Map.Entry<RequestFingerprint, ByteBuffer> victim = it.next();
+			if (frequency <= sketch.frequency(victim.getKey())) {
+				rejectionCount.incrementAndGet();
+				return;
+			}
+			victims++;
+			freed += victim.getValue().capacity();
+		}
+		it = main.entrySet().iterator();
+		for (int i = 0; i < victims; i++) {
+			it.next();
+			it.remove();
+		}
+		mainSize -= freed;
+		evictionCount.addAndGet(victims);
+		main.put(candidate, buffer);
+		mainSize += weight;
+	}
+
+	/**
+	 * @return The next tier or <code>null</code> if there is none.
+	 */
+	public RenderCache getNext() {
+		return next;
+	}
+
+	/**
+	 * @return The maximum total size of the entries in bytes.
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return The maximum size of a single entry in bytes.
+	 */
+	public int getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * @return Where the documents are stored.
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * @return The total size of the entries in bytes.
+	 */
+	public synchronized long getSize() {
+		return windowSize + mainSize;
+	}
+
+	/**
+	 * @return The number of entries.
+	 */
+	public synchronized int getEntryCount() {
+		return window.size() + main.size();
+	}
+
+	/**
+	 * @return The number of lookups served from memory.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return The number of lookups not served from memory.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return The number of entries displaced by more frequently requested ones.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @return The number of entries that left the window without being admitted.
+	 */
+	public long getRejectionCount() {
+		return rejectionCount.get();
+	}
+
+	/**
+	 * Sink passing a document delivered by the next tier on to the sink of the
+	 * request while keeping a copy, as long as it fits into an entry.
+	 */
+	private final class CapturingSink extends OutputSink {
+
+		private final OutputSink delegate;
+
+		private byte[] document = new byte[8192];
+
+		private int length;
+
+		private boolean overflow;
+
+		private boolean complete;
+
+		CapturingSink(OutputSink delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public String getArgument() {
+			return delegate.getArgument();
+		}
+
+		public long consume(InputStream in) throws IOException {
+			long count = delegate.consume(new FilterInputStream(in) {
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b != -1) {
+						capture(new byte[] { (byte) b }, 0, 1);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						capture(b, off, n);
+					}
+					return n;
+				}
+
+			});
+			complete = !overflow;
+			return count;
+		}
+
+		private void capture(byte[] b, int off, int len) {
+			if (overflow) {
+				return;
+			}
+			if (length + len > maxEntrySize) {
+				overflow = true;
+				document = null;
+				return;
+			}
+			if (length + len > document.length) {
+				document = Arrays.copyOf(document, Math.min(maxEntrySize, Math.max(length + len, document.length * 2)));
+			}
+			System.arraycopy(b, off, document, length, len);
+			length += len;
+		}
+
+		boolean isComplete() {
+			return complete;
+		}
+
+	}
+
+	private final class MemoryEntryWriter extends EntryWriter {
+
+		private final RequestFingerprint fingerprint;
+
+		private final EntryWriter next;
+
+		private byte[] document = new byte[8192];
+
+		private int length;
+
+		private boolean overflow;
+
+		MemoryEntryWriter(RequestFingerprint fingerprint, EntryWriter next) {
+			this.fingerprint = fingerprint;
+			this.next = next;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (next != null) {
+				next.write(b, off, len);
+			}
+			if (overflow) {
+				return;
+			}
+			if (length + len > maxEntrySize) {
+				if (next == null) {
+					throw new IOException("Document exceeds the maximum entry size of " + maxEntrySize + " bytes.");
+				}
+				overflow = true;
+				document = null;
+				return;
+			}
+			if (length + len > document.length) {
+				document = Arrays.copyOf(document, Math.min(maxEntrySize, Math.max(length + len, document.length * 2)));
+			}
+			System.arraycopy(b, off, document, length, len);
+			length += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (next != null) {
+				next.flush();
+			}
+		}
+
+		@Override
+		public void commit() throws IOException {
+			if (next != null) {
+				next.commit();
+			}
+			if (!overflow) {
+				admit(fingerprint, document, length);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			document = null;
+			if (next != null) {
+				next.close();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+/**
+ * A store of rendered documents keyed by the {@link RequestFingerprint} of
+ * the request that rendered them. The invoker looks a request up before it
+ * starts wkhtmltopdf and, on a miss, stages the document while it is rendered
+ * and publishes it once the render succeeded. Implementations must be
+ * thread-safe.
+ */
+public interface RenderCache {
+
+	/**
+	 * Writes the cached document of the given fingerprint to the given sink.
+	 * 
+	 * @param fingerprint The fingerprint of the request, must not be <code>null</code>.
+	 * @param sink The output of the request, must not be <code>null</code>.
+	 * @return <code>true</code> if the document was cached and written, <code>false</code> on a miss.
+	 * @throws IOException If the cached document could not be written to the sink.
+	 */
+	boolean deliver(RequestFingerprint fingerprint, OutputSink sink) throws IOException;
+
+	/**
+	 * Opens a writer staging the document of the given fingerprint. The
+	 * document becomes visible to {@link #deliver} only once the writer is
+	 * committed.
+	 * 
+	 * @param fingerprint The fingerprint of the request, must not be <code>null</code>.
+	 * @return The writer, never <code>null</code>. It must be closed by the caller.
+	 * @throws IOException If the entry could not be staged.
+	 */
+	EntryWriter stage(RequestFingerprint fingerprint) throws IOException;
+
+	/**
+	 * The stream a new entry is written to. Closing a writer that was not
+	 * committed discards the entry.
+	 */
+	abstract class EntryWriter extends OutputStream {
+
+		/**
+		 * Publishes the written document atomically, replacing an entry of the
+		 * same fingerprint published in the meantime.
+		 * 
+		 * @throws IOException If the entry could not be published.
+		 */
+		public abstract void commit() throws IOException;
+
+	}
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * A stable SHA-256 fingerprint of everything that determines the document
+ * wkhtmltopdf renders for a request: the version of the binary, the options of
+ * the request as normalized by its {@link CompiledInvocationTemplate}, the
+ * environment of the process, i.e. the base environment of the invoker with the
+ * variables of the request laid over it, and the content of its page, hashed
+ * while it is streamed. Where the document is written to is not part of the
+ * fingerprint.
+ * <p>
+ * Resources the page refers to, e.g. stylesheets and images, are not hashed.
+ * Caching by fingerprint assumes they do not change under the same URL.
+ */
+public final class RequestFingerprint {
+
+	private static final String FORMAT = "wkhtmltopdf-render/1";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final byte[] digest;
+
+	private final String hex;
+
+	RequestFingerprint(byte[] digest) {
+		this.digest = digest;
+		char[] chars = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		this.hex = new String(chars);
+	}
+
+	/**
+	 * Parses a fingerprint from its {@link #toString()} form, e.g. the name of
+	 * a cache entry.
+	 * 
+	 * @param hex The digest as 64 hex digits, must not be <code>null</code>.
+	 * @return The fingerprint, never <code>null</code>.
+	 * @throws IllegalArgumentException If the string is not a SHA-256 digest in hex.
+	 */
+	public static RequestFingerprint valueOf(String hex) {
+		if (hex.length() != 64) {
+			throw new IllegalArgumentException("Not a fingerprint: " + hex);
+		}
+		byte[] digest = new byte[32];
+		for (int i = 0; i < digest.length; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("Not a fingerprint: " + hex);
+			}
+			digest[i] = (byte) (high << 4 | low);
+		}
+		return new RequestFingerprint(digest);
+	}
+
+	/**
+	 * Whether the document of the given request can be fingerprinted: it is
+	 * written to an output, and its page is either read from the standard input
+	 * or a local file. Pages fetched from a remote URL are not known up front.
+	 * 
+	 * @param request The request, must not be <code>null</code>.
+	 * @return <code>true</code> if {@link #compute} may be called for the request.
+	 */
+	public static boolean isCacheable(WkhtmlToPdfInvocationRequest request) {
+		if (request.getOutputSink() == null) {
+			return false;
+		}
+		String url = request.getURL();
+		if (StringUtils.isNotEmpty(url)) {
+			return toLocalFile(url) != null;
+		}
+		return request.getInputSource() != null;
+	}
+
+	/**
+	 * Computes the fingerprint of the given request. The page of the request is
+	 * read once; if it comes from an {@link InputSource} it is produced into the
+	 * given copy while it is hashed, so that a source that is not repeatable can
+	 * still be rendered afterwards.
+	 * 
+	 * @param binaryVersion The version reported by the wkhtmltopdf binary, must not be <code>null</code>.
+	 * @param template The options of the request, must not be <code>null</code>.
+	 * @param request The cacheable request, must not be <code>null</code>.
+	 * @param inputCopy The stream receiving the page of the input source, may be <code>null</code>.
+	 * @return The fingerprint, never <code>null</code>.
+	 * @throws IOException If the page could not be read.
+	 */
+	public static RequestFingerprint compute(String binaryVersion, CompiledInvocationTemplate template,
+			WkhtmlToPdfInvocationRequest request, OutputStream inputCopy) throws IOException {
+		
+		MessageDigest digest = newDigest();
+		update(digest, FORMAT);
+		update(digest, binaryVersion);
+		
+		List<String> options = template.getOptions();
+		update(digest, options.size());
+		for (String option : options) {
+			update(digest, option);
+		}
+		
+		// the effective environment, invokers with different base environments render differently
+		Map<String, String> environment = new TreeMap<String, String>(template.getEnvironment().asMap());
+		update(digest, environment.size());
+		for (Map.Entry<String, String> entry : environment.entrySet()) {
+			update(digest, entry.getKey());
+			update(digest, entry.getValue());
+		}
+		
+		String url = request.getURL();
+		if (StringUtils.isNotEmpty(url)) {
+			File file = toLocalFile(url);
+			if (file == null) {
+				throw new IllegalArgumentException("Page is not a local file: " + url);
+			}
+			update(digest, "file");
+			digest.update(hashFile(file));
+		}
+		
+		InputSource inputSource = request.getInputSource();
+		if (inputSource != null) {
+			update(digest, "stdin");
+			MessageDigest content = newDigest();
+			OutputStream out = new DigestOutputStream(inputCopy != null ? inputCopy : new NullOutputStream(), content);
+			inputSource.produce(out);
+			out.flush();
+			digest.update(content.digest());
+		}
+		
+		return new RequestFingerprint(digest.digest());
+	}
+
+	/**
+	 * Only <code>file:</code> URLs and absolute paths of existing files are
+	 * local: wkhtmltopdf guesses the scheme of anything else, e.g. it fetches
+	 * <code>www.example.com</code> over http.
+	 * 
+	 * @param url The page argument of a request.
+	 * @return The local file the page refers to or <code>null</code> if it may refer to a remote resource.
+	 */
+	static File toLocalFile(String url) {
+		if (url.startsWith("file:")) {
+			try {
+				return new File(URI.create(url));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		File file = new File(url);
+		return file.isAbsolute() && file.isFile() ? file : null;
+	}
+
+	private static byte[] hashFile(File file) throws IOException {
+		MessageDigest content = newDigest();
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				content.update(buffer, 0, n);
+			}
+		}
+		return content.digest();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, int value) {
+		digest.update((byte) (value >>> 24));
+		digest.update((byte) (value >>> 16));
+		digest.update((byte) (value >>> 8));
+		digest.update((byte) value);
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		update(digest, bytes.length);
+		digest.update(bytes);
+	}
+
+	/**
+	 * @return A copy of the SHA-256 digest.
+	 */
+	public byte[] getDigest() {
+		return digest.clone();
+	}
+
+	@Override
+	public int hashCode() {
+		return hex.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof RequestFingerprint && Arrays.equals(digest, ((RequestFingerprint) obj).digest);
+	}
+
+	/**
+	 * @return The digest as 64 lower case hex digits.
+	 */
+	@Override
+	public String toString() {
+		return hex;
+	}
+
+	private static final class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+			// discard
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// discard
+		}
+
+	}
+
+}
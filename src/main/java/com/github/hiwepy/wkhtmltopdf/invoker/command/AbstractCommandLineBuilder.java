@@ -18,6 +18,7 @@ package com.github.hiwepy.wkhtmltopdf.invoker.command;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -30,6 +31,7 @@ import org.codehaus.plexus.util.cli.Commandline;
 import com.github.hiwepy.wkhtmltopdf.invoker.InvokerLogger;
 import com.github.hiwepy.wkhtmltopdf.invoker.SystemOutLogger;
 import com.github.hiwepy.wkhtmltopdf.invoker.exception.CommandLineConfigurationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessEnvironment;
 import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
 
 public abstract class AbstractCommandLineBuilder {
@@ -48,22 +50,15 @@ public abstract class AbstractCommandLineBuilder {
 
 	protected Properties systemEnvVars;
 
+	protected ExecutableResolver executableResolver = ExecutableResolver.getSharedResolver();
+
+	protected ProcessEnvironment environment = ProcessEnvironment.inherited();
+
 	public Commandline build(InvocationRequest request) throws CommandLineConfigurationException {
 		
-		try {
-			checkRequiredState();
-		} catch (IOException e) {
-			throw new CommandLineConfigurationException(e.getMessage(), e);
-		}
-		
-		File executable = null;
-		try {
-			executable = findWkhtmltopdfExecutable();
-		} catch (IOException e) {
-			throw new CommandLineConfigurationException(e.getMessage(), e);
-		}
+		File executable = resolveExecutable();
 		
-		Commandline cli = new Commandline();
+		Commandline cli = new EnvironmentCommandline();
 		
 		cli.setExecutable(executable.getAbsolutePath());
 
@@ -80,9 +75,60 @@ public abstract class AbstractCommandLineBuilder {
 
 		return cli;
 	}
+
+	/**
+	 * Freezes the options of the given request into a template. The pages and
+	 * the output of the request are not part of the template.
+	 * 
+	 * @param request The request providing the options, must not be <code>null</code>.
+	 * @return The template, never <code>null</code>.
+	 * @throws CommandLineConfigurationException If the command line could not be built.
+	 */
+	public CompiledInvocationTemplate compile(InvocationRequest request) throws CommandLineConfigurationException {
+		
+		File executable = resolveExecutable();
+		
+		Commandline cli = new Commandline();
+		
+		this.doOptionsInternal(request, cli);
+		
+		setProperties(request, cli);
+
+		setGoals(request, cli);
+		
+		setVerbose(request, cli);
+		
+		Map<String, String> delta = new LinkedHashMap<String, String>();
+		if (request.getWkhtmltopdfHome() != null) {
+			delta.put("CALIBRE_HOME", request.getWkhtmltopdfHome().getAbsolutePath());
+		}
+		delta.putAll(request.getShellEnvironments());
+		ProcessEnvironment base = request.isShellEnvironmentInherited() ? environment : ProcessEnvironment.empty();
+
+		return new CompiledInvocationTemplate(executable.getAbsolutePath(), cli.getArguments(), base.with(delta),
+				workingDirectory);
+	}
+
+	private File resolveExecutable() throws CommandLineConfigurationException {
+		try {
+			checkRequiredState();
+			return findWkhtmltopdfExecutable();
+		} catch (IOException e) {
+			throw new CommandLineConfigurationException(e.getMessage(), e);
+		}
+	}
 	
 	protected abstract void doCommandInternal(InvocationRequest request,Commandline cli) throws CommandLineConfigurationException;
 	
+	/**
+	 * Adds the options of the given request, but not its pages and output, to
+	 * the given command line. Builders that do not support templates keep this
+	 * default implementation.
+	 */
+	protected void doOptionsInternal(InvocationRequest request, Commandline cli) throws CommandLineConfigurationException {
+		throw new CommandLineConfigurationException(getClass().getSimpleName() + " does not support compiled templates.");
+	}
+	
 	protected abstract File findWkhtmltopdfExecutable() throws CommandLineConfigurationException, IOException;
 	
 	
@@ -94,7 +140,11 @@ public abstract class AbstractCommandLineBuilder {
  
 	protected void setShellEnvironment(InvocationRequest request, Commandline cli)
 			throws CommandLineConfigurationException {
-		if (request.isShellEnvironmentInherited()) {
+		if (cli instanceof EnvironmentCommandline) {
+			// the snapshot replaces the copy of the JVM environment made per invocation
+			((EnvironmentCommandline) cli).setEnvironment(
+					request.isShellEnvironmentInherited() ? environment : ProcessEnvironment.empty());
+		} else if (request.isShellEnvironmentInherited()) {
 			try {
 				cli.addSystemEnvironment();
 			} catch (IOException e) {
@@ -206,6 +256,28 @@ public abstract class AbstractCommandLineBuilder {
 		this.wkhtmltopdfExecutable = wkhtmltopdfExecutable;
 	}
 
+	public ExecutableResolver getExecutableResolver() {
+		return executableResolver;
+	}
+
+	/**
+	 * @param executableResolver The resolver locating the executable, may be <code>null</code> to use the shared resolver.
+	 */
+	public void setExecutableResolver(ExecutableResolver executableResolver) {
+		this.executableResolver = (executableResolver != null) ? executableResolver : ExecutableResolver.getSharedResolver();
+	}
+
+	public ProcessEnvironment getEnvironment() {
+		return environment;
+	}
+
+	/**
+	 * @param environment The environment inherited by the process, may be <code>null</code> to use the environment of this JVM.
+	 */
+	public void setEnvironment(ProcessEnvironment environment) {
+		this.environment = (environment != null) ? environment : ProcessEnvironment.inherited();
+	}
+
 	public File getWorkingDirectory() {
 		return workingDirectory;
 	}
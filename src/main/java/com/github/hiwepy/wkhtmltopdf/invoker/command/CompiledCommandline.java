@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.command;
+
+import java.io.File;
+
+import org.codehaus.plexus.util.cli.Arg;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ArgvCommandline;
+
+/**
+ * Command line of a {@link CompiledInvocationTemplate}. The options of the
+ * template are held as one argument sharing the array of the template, so no
+ * argument is created per option; arguments added before or after it keep
+ * their place.
+ */
+final class CompiledCommandline extends EnvironmentCommandline implements ArgvCommandline {
+
+	CompiledCommandline(String[] options) {
+		addArg(new Options(options));
+	}
+
+	public String[] toArgv() {
+		int length = 1;
+		for (Arg argument : arguments) {
+			String[] parts = argument.getParts();
+			length += (parts != null) ? parts.length : 0;
+		}
+		String[] argv = new String[length];
+		argv[0] = getLiteralExecutable();
+		int index = 1;
+		for (Arg argument : arguments) {
+			String[] parts = argument.getParts();
+			if (parts != null) {
+				System.arraycopy(parts, 0, argv, index, parts.length);
+				index += parts.length;
+			}
+		}
+		return argv;
+	}
+
+	/**
+	 * The options of the template, they can not be changed.
+	 */
+	private static final class Options implements Arg {
+
+		private final String[] parts;
+
+		Options(String[] parts) {
+			this.parts = parts;
+		}
+
+		public void setValue(String value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void setLine(String line) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void setFile(File value) {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * @return The options of the template, shared and not to be modified.
+		 */
+		public String[] getParts() {
+			return parts;
+		}
+
+	}
+
+}
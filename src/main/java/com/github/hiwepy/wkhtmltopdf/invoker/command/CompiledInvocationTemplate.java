@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.command;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.codehaus.plexus.util.cli.Commandline;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessEnvironment;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * The command line of a request frozen into an immutable argument prefix:
+ * the resolved executable, every option and the environment. Executing a
+ * request that refers to a template only appends the request's pages and
+ * output to the prefix, none of the options of the request are evaluated.
+ * Templates are thread-safe and meant to be built once per report layout with
+ * <code>DefaultInvoker#compile</code> and kept for the lifetime of the
+ * application.
+ */
+public final class CompiledInvocationTemplate {
+
+	private final String executable;
+
+	private final String[] options;
+
+	private final List<String> optionList;
+
+	private final ProcessEnvironment environment;
+
+	private final File workingDirectory;
+
+	CompiledInvocationTemplate(String executable, String[] options, ProcessEnvironment environment, File workingDirectory) {
+		this.executable = executable;
+		this.options = options.clone();
+		this.optionList = Collections.unmodifiableList(Arrays.asList(this.options));
+		this.environment = environment;
+		this.workingDirectory = workingDirectory;
+	}
+
+	/**
+	 * Creates the command line of the given request from this template.
+	 * 
+	 * @param request The request supplying the pages and the output, must not be <code>null</code>.
+	 * @return A new command line, never <code>null</code>.
+	 */
+	public Commandline newCommandline(WkhtmlToPdfInvocationRequest request) {
+		return newCommandline(request, request.getInputSource(), request.getOutputSink());
+	}
+
+	/**
+	 * Creates the command line of the given request from this template, reading
+	 * the page from and writing the document to the given source and sink
+	 * instead of the ones of the request.
+	 * 
+	 * @param request The request supplying the pages, must not be <code>null</code>.
+	 * @param inputSource The source of the page, may be <code>null</code>.
+	 * @param outputSink The sink of the document, may be <code>null</code>.
+	 * @return A new command line, never <code>null</code>.
+	 */
+	public Commandline newCommandline(WkhtmlToPdfInvocationRequest request, InputSource inputSource, OutputSink outputSink) {
+		EnvironmentCommandline cli = new CompiledCommandline(options);
+		cli.setExecutable(executable);
+		cli.setEnvironment(environment);
+		if (workingDirectory != null) {
+			cli.setWorkingDirectory(workingDirectory);
+		}
+		for (String input : WkhtmlToPdfCommandLineBuilder.getInputArguments(request.getURL(), inputSource)) {
+			cli.createArg().setValue(input);
+		}
+		String output = WkhtmlToPdfCommandLineBuilder.getOutputArgument(outputSink);
+		if (output != null) {
+			cli.createArg().setValue(output);
+		}
+		return cli;
+	}
+
+	/**
+	 * Creates the literal argument vector of an execution, the executable and
+	 * the options of this template followed by the given operands.
+	 * 
+	 * @param operands The pages and the output of the execution.
+	 * @return A new argument vector, never <code>null</code>.
+	 */
+	public String[] toArgv(String... operands) {
+		String[] argv = new String[1 + options.length + operands.length];
+		argv[0] = executable;
+		System.arraycopy(options, 0, argv, 1, options.length);
+		System.arraycopy(operands, 0, argv, 1 + options.length, operands.length);
+		return argv;
+	}
+
+	/**
+	 * @return The absolute path of the executable.
+	 */
+	public String getExecutable() {
+		return executable;
+	}
+
+	/**
+	 * @return The options passed before the operands, never <code>null</code>.
+	 */
+	public List<String> getOptions() {
+		return optionList;
+	}
+
+	/**
+	 * @return The environment of the process, never <code>null</code>.
+	 */
+	public ProcessEnvironment getEnvironment() {
+		return environment;
+	}
+
+	/**
+	 * @return The working directory of the process or <code>null</code> to use the one of this JVM.
+	 */
+	public File getWorkingDirectory() {
+		return workingDirectory;
+	}
+
+	@Override
+	public String toString() {
+		return "CompiledInvocationTemplate[" + executable + " " + optionList + "]";
+	}
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.command;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.Commandline;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessEnvironment;
+
+/**
+ * Command line that hands a prebuilt {@link ProcessEnvironment} to the process.
+ * {@link Commandline#getEnvironmentVariables()} copies the whole JVM
+ * environment into the command line on every call, even if it was not asked
+ * to inherit it; this class skips that and only renders the variables added
+ * with {@link #addEnvironment(String, String)} on top of the snapshot.
+ */
+public class EnvironmentCommandline extends Commandline {
+
+	private ProcessEnvironment environment = ProcessEnvironment.inherited();
+
+	public ProcessEnvironment getEnvironment() {
+		return environment;
+	}
+
+	/**
+	 * @param environment The base environment of the process, must not be <code>null</code>.
+	 */
+	public void setEnvironment(ProcessEnvironment environment) {
+		if (environment == null) {
+			throw new NullPointerException("missing environment");
+		}
+		this.environment = environment;
+	}
+
+	@Override
+	public String[] getEnvironmentVariables() throws CommandLineException {
+		return environment.with(envVars).toEnvp();
+	}
+
+}
@@ -0,0 +1,384 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.InvokerLogger;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.CommandLineConfigurationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessThreads;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.Processes;
+
+/**
+ * Resolves and caches the location of the wkhtmltopdf executables. The
+ * <code>wkhtmltopdf.home</code> system property, the
+ * <code>WKHTMLTOPDF_HOME</code> environment variable and the
+ * <code>PATH</code> are only looked up the first time an executable is resolved.
+ * Afterwards the cached file is returned without touching the file system
+ * until the time-to-live expires. After that, the file's modification time and
+ * file key (the inode on Unix) are compared with the ones seen when it was
+ * resolved, and the file is only resolved again if they changed.
+ * <p>
+ * Command line builders are created per invocation, so they all share one
+ * resolver, by default {@link #getSharedResolver()}. The resolver also caches
+ * the version each executable reports, see {@link #getVersion(File)}.
+ */
+public class ExecutableResolver {
+
+	public static final long DEFAULT_TTL = 60000;
+
+	private static final ExecutableResolver SHARED_RESOLVER = new ExecutableResolver(DEFAULT_TTL);
+
+	private static final long VERSION_PROBE_TIMEOUT = 10000;
+
+	private final ConcurrentMap<Key, Entry> cache = new ConcurrentHashMap<Key, Entry>();
+
+	private final ConcurrentMap<File, Version> versions = new ConcurrentHashMap<File, Version>();
+
+	/**
+	 * The time in milliseconds a resolved executable is trusted without checking the file system.
+	 */
+	private volatile long ttl;
+
+	/**
+	 * Creates a new resolver.
+	 * 
+	 * @param ttl The time in milliseconds a resolved executable is trusted without checking the file system.
+	 */
+	public ExecutableResolver(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return The resolver shared by all invokers that do not configure their own one.
+	 */
+	public static ExecutableResolver getSharedResolver() {
+		return SHARED_RESOLVER;
+	}
+
+	/**
+	 * Resolves the given executable.
+	 * 
+	 * @param home The installation directory, may be <code>null</code> to use
+	 *            <code>${wkhtmltopdf.home}</code>, <code>${WKHTMLTOPDF_HOME}</code>
+	 *            or the <code>PATH</code>.
+	 * @param executable The name or path of the executable, relative paths are resolved against the installation directory.
+	 * @param logger The logger, must not be <code>null</code>.
+	 * @return The canonical executable file, never <code>null</code>.
+	 * @throws CommandLineConfigurationException If the executable does not exist.
+	 */
+	public File resolve(File home, String executable, InvokerLogger logger) throws CommandLineConfigurationException {
+		
+		Key key = new Key(home, executable);
+		Entry entry = cache.get(key);
+		long now = System.nanoTime();
+		
+		if (entry != null) {
+			if (now - entry.checkedAt < TimeUnit.MILLISECONDS.toNanos(ttl)) {
+				return entry.file;
+			}
+			Entry current = Entry.of(entry.file, now);
+			if (current != null && current.isSameFile(entry)) {
+				cache.put(key, current);
+				return entry.file;
+			}
+			logger.debug("wkhtmltopdf executable changed: \'" + entry.file + "\', resolving again.");
+		}
+		
+		File file = locate(home, executable, logger);
+		entry = Entry.of(file, now);
+		if (entry == null) {
+			throw new CommandLineConfigurationException("wkhtmltopdf executable not found at: " + file);
+		}
+		cache.put(key, entry);
+		return file;
+	}
+
+	/**
+	 * Discards all resolved executables, e.g. after wkhtmltopdf was reinstalled
+	 * elsewhere or <code>${wkhtmltopdf.home}</code> was changed.
+	 */
+	public void invalidate() {
+		cache.clear();
+		versions.clear();
+	}
+
+	/**
+	 * Gets the version reported by <code>--version</code> of the given
+	 * executable. The executable is only run the first time, afterwards the
+	 * reported version is returned until the file changes, checked no more
+	 * often than the time-to-live allows. A failed probe is remembered the same
+	 * way, so a broken executable is not run on every call.
+	 * 
+	 * @param executable The executable, as returned by {@link #resolve(File, String, InvokerLogger)}.
+	 * @return The trimmed output of <code>--version</code>, never <code>null</code>.
+	 * @throws IOException If the executable could not be run or did not report a version.
+	 */
+	public String getVersion(File executable) throws IOException {
+		
+		Version version = versions.get(executable);
+		long now = System.nanoTime();
+		if (version != null && now - version.entry.checkedAt < TimeUnit.MILLISECONDS.toNanos(ttl)) {
+			return version.getText();
+		}
+		
+		Entry current = Entry.of(executable, now);
+		if (current == null) {
+			throw new FileNotFoundException("wkhtmltopdf executable not found at: " + executable);
+		}
+		if (version != null && current.isSameFile(version.entry)) {
+			versions.put(executable, new Version(current, version.text, version.failure));
+			return version.getText();
+		}
+		
+		String text;
+		try {
+			text = probeVersion(executable);
+		} catch (IOException e) {
+			if (!Thread.currentThread().isInterrupted()) {
+				versions.put(executable, new Version(current, null, e.getMessage()));
+			}
+			throw e;
+		}
+		versions.put(executable, new Version(current, text, null));
+		return text;
+	}
+
+	private static String probeVersion(File executable) throws IOException {
+		Process process = new ProcessBuilder(executable.getPath(), "--version").redirectErrorStream(true).start();
+		try {
+			process.getOutputStream().close();
+			final InputStream in = process.getInputStream();
+			// drained aside, so a binary that hangs with its output open can not block the caller
+			FutureTask<byte[]> output = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+				public byte[] call() throws IOException {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buffer = new byte[1024];
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						out.write(buffer, 0, n);
+					}
+					return out.toByteArray();
+				}
+
+			});
+			try {
+				ProcessThreads.getPumpExecutor().execute(output);
+			} catch (RejectedExecutionException e) {
+				throw new IOException("Error scheduling '" + executable + " --version'. Reason: " + e.getMessage(), e);
+			}
+			
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(VERSION_PROBE_TIMEOUT);
+			if (!process.waitFor(VERSION_PROBE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new IOException("'" + executable + " --version' did not exit within " + VERSION_PROBE_TIMEOUT + " ms.");
+			}
+			byte[] bytes;
+			try {
+				// a descendant may still hold the output open
+				bytes = output.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (ExecutionException e) {
+				throw new IOException("Error reading the output of '" + executable + " --version'. Reason: " + e.getCause().getMessage(), e.getCause());
+			} catch (TimeoutException e) {
+				throw new IOException("'" + executable + " --version' did not close its output within " + VERSION_PROBE_TIMEOUT + " ms.");
+			}
+			String text = new String(bytes, StandardCharsets.UTF_8).trim();
+			if (process.exitValue() != 0 || text.isEmpty()) {
+				throw new IOException("'" + executable + " --version' failed with exit code " + process.exitValue() + ": " + text);
+			}
+			return text;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while probing the version of " + executable + ".", e);
+		} finally {
+			// kills a hung probe and unblocks the drain
+			Processes.destroyTree(process);
+			Processes.closeStreams(process);
+		}
+	}
+
+	private File locate(File home, String executable, InvokerLogger logger) throws CommandLineConfigurationException {
+		
+		File file = new File(executable);
+		if (!file.isAbsolute()) {
+			if (home == null) {
+				home = findHome();
+			}
+			if (home != null) {
+				logger.debug("Using ${wkhtmltopdf.home} of: \'" + home + "\'.");
+				file = new File(home, executable);
+			} else {
+				file = findOnPath(executable);
+			}
+		}
+		
+		try {
+			file = file.getCanonicalFile();
+		} catch (IOException e) {
+			logger.debug("Failed to canonicalize wkhtmltopdf executable: " + file + ". Using as-is.", e);
+		}
+		return file;
+	}
+
+	private static File findHome() {
+		String homeProperty = System.getProperty("wkhtmltopdf.home");
+		if (homeProperty != null) {
+			File home = new File(homeProperty);
+			if (!home.isDirectory()) {
+				throw new IllegalStateException(
+						"${wkhtmltopdf.home} is not specified as a directory: \'" + homeProperty + "\'.");
+			}
+			return home;
+		}
+		String homeVariable = System.getenv("WKHTMLTOPDF_HOME");
+		return homeVariable != null ? new File(homeVariable) : null;
+	}
+
+	private static File findOnPath(String executable) throws CommandLineConfigurationException {
+		String path = System.getenv("PATH");
+		if (path != null) {
+			for (String directory : StringUtils.split(path, File.pathSeparator)) {
+				File file = new File(directory, executable);
+				if (file.isFile()) {
+					return file;
+				}
+			}
+		}
+		throw new CommandLineConfigurationException("wkhtmltopdf executable \'" + executable
+				+ "\' not found, neither ${wkhtmltopdf.home} nor ${WKHTMLTOPDF_HOME} is set and it is not on the PATH.");
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @param ttl The time in milliseconds a resolved executable is trusted without checking the file system.
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	private static final class Key {
+
+		private final File home;
+
+		private final String executable;
+
+		Key(File home, String executable) {
+			this.home = home;
+			this.executable = executable;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (home != null ? home.hashCode() : 0) + executable.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return (home == null ? other.home == null : home.equals(other.home)) && executable.equals(other.executable);
+		}
+
+	}
+
+	private static final class Version {
+
+		final Entry entry;
+
+		final String text;
+
+		/**
+		 * The reason the probe failed, <code>null</code> if it succeeded.
+		 */
+		final String failure;
+
+		Version(Entry entry, String text, String failure) {
+			this.entry = entry;
+			this.text = text;
+			this.failure = failure;
+		}
+
+		String getText() throws IOException {
+			if (failure != null) {
+				throw new IOException(failure);
+			}
+			return text;
+		}
+
+	}
+
+	private static final class Entry {
+
+		final File file;
+
+		final long lastModified;
+
+		final Object fileKey;
+
+		final long checkedAt;
+
+		private Entry(File file, long lastModified, Object fileKey, long checkedAt) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+			this.checkedAt = checkedAt;
+		}
+
+		/**
+		 * @return The entry or <code>null</code> if the file is not a regular file.
+		 */
+		static Entry of(File file, long checkedAt) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				if (!attributes.isRegularFile()) {
+					return null;
+				}
+				return new Entry(file, attributes.lastModifiedTime().toMillis(), attributes.fileKey(), checkedAt);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		boolean isSameFile(Entry other) {
+			return lastModified == other.lastModified
+					&& (fileKey == null ? other.fileKey == null : fileKey.equals(other.fileKey));
+		}
+
+	}
+
+}
@@ -48,39 +48,18 @@ public class WkhtmlToImageCommandLineBuilder extends AbstractCommandLineBuilder
 	}
 
 	@Override
-	protected File findCalibreExecutable() throws CommandLineConfigurationException, IOException {
+	protected File findWkhtmltopdfExecutable() throws CommandLineConfigurationException, IOException {
 		
-		if (calibreHome == null) {
-			findCalibreHome();
+		String executable;
+		if (wkhtmltopdfExecutable != null) {
+			executable = wkhtmltopdfExecutable.getPath();
+		} else if (Os.isFamily("windows")) {
+			executable = "wkhtmltoimage.exe";
+		} else {
+			executable = "wkhtmltoimage";
 		}
 
-		logger.debug("Using ${calibre.home} of: \'" + calibreHome + "\'.");
-
-		if (calibreExecutable == null || !calibreExecutable.isAbsolute()) {
-			String executable;
-			if (calibreExecutable != null) {
-				executable = calibreExecutable.getPath();
-			} else if (Os.isFamily("windows")) {
-				executable = "lrs2lrf.exe";
-			} else {
-				executable = "lrs2lrf";
-			}
-
-			calibreExecutable = new File(calibreHome, executable);
-
-			try {
-				File canonicalMvn = calibreExecutable.getCanonicalFile();
-				calibreExecutable = canonicalMvn;
-			} catch (IOException e) {
-				logger.debug("Failed to canonicalize maven executable: " + calibreExecutable + ". Using as-is.", e);
-			}
-
-			if (!calibreExecutable.isFile()) {
-				throw new CommandLineConfigurationException("Calibre executable not found at: " + calibreExecutable);
-			}
-		}
-
-		return calibreExecutable;
+		return getExecutableResolver().resolve(wkhtmltopdfHome, executable, logger);
 	}
 	
 	protected void setLrs(WkhtmlToImageInvocationRequest request, Commandline cli) {
@@ -17,14 +17,18 @@ package com.github.hiwepy.wkhtmltopdf.invoker.command;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 import org.codehaus.plexus.util.Os;
 import org.codehaus.plexus.util.cli.Commandline;
 
-import com.github.hiwepy.calibre.invoker.exception.CommandLineConfigurationException;
-import com.github.hiwepy.calibre.invoker.request.InvocationRequest;
-import com.github.hiwepy.calibre.invoker.request.Web2diskInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.CommandLineConfigurationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
 
 /**
  */
@@ -38,56 +42,48 @@ public class WkhtmlToPdfCommandLineBuilder extends AbstractCommandLineBuilder {
 
 			WkhtmlToPdfInvocationRequest web2diskRequest = ( WkhtmlToPdfInvocationRequest) request;
 			
-			setBaseDirectory(web2diskRequest, cli);
-			setDelay(web2diskRequest, cli);
-			setDontDownloadStylesheets(web2diskRequest, cli);
-			setEncoding(web2diskRequest, cli);
-			setFilterRegexp(web2diskRequest, cli);
-			setMatchRegexp(web2diskRequest, cli);
-			setMaxFiles(web2diskRequest, cli);
-			setMaxRecursions(web2diskRequest, cli);
-			setTimeout(web2diskRequest, cli);
-			// Where URL is for example https://google.com
-			cli.createArg().setValue(web2diskRequest.getURL());
+			setOptions(web2diskRequest, cli);
+			setInput(web2diskRequest, cli);
+			setOutput(web2diskRequest, cli);
 			
 		}
 		
 	}
 
 	@Override
-	protected File findCalibreExecutable() throws CommandLineConfigurationException, IOException {
+	protected void doOptionsInternal(InvocationRequest request, Commandline cli)
+			throws CommandLineConfigurationException {
 		
-		if (calibreHome == null) {
-			findCalibreHome();
+		if(request instanceof WkhtmlToPdfInvocationRequest) {
+			setOptions((WkhtmlToPdfInvocationRequest) request, cli);
 		}
+		
+	}
 
-		logger.debug("Using ${calibre.home} of: \'" + calibreHome + "\'.");
-
-		if (calibreExecutable == null || !calibreExecutable.isAbsolute()) {
-			String executable;
-			if (calibreExecutable != null) {
-				executable = calibreExecutable.getPath();
-			} else if (Os.isFamily("windows")) {
-				executable = "web2disk.exe";
-			} else {
-				executable = "web2disk";
-			}
-
-			calibreExecutable = new File(calibreHome, executable);
-
-			try {
-				File canonicalMvn = calibreExecutable.getCanonicalFile();
-				calibreExecutable = canonicalMvn;
-			} catch (IOException e) {
-				logger.debug("Failed to canonicalize maven executable: " + calibreExecutable + ". Using as-is.", e);
-			}
+	protected void setOptions(WkhtmlToPdfInvocationRequest request, Commandline cli) {
+		setBaseDirectory(request, cli);
+		setDelay(request, cli);
+		setDontDownloadStylesheets(request, cli);
+		setEncoding(request, cli);
+		setFilterRegexp(request, cli);
+		setMatchRegexp(request, cli);
+		setMaxFiles(request, cli);
+		setMaxRecursions(request, cli);
+	}
 
-			if (!calibreExecutable.isFile()) {
-				throw new CommandLineConfigurationException("Calibre executable not found at: " + calibreExecutable);
-			}
+	@Override
+	protected File findWkhtmltopdfExecutable() throws CommandLineConfigurationException, IOException {
+		
+		String executable;
+		if (wkhtmltopdfExecutable != null) {
+			executable = wkhtmltopdfExecutable.getPath();
+		} else if (Os.isFamily("windows")) {
+			executable = "wkhtmltopdf.exe";
+		} else {
+			executable = "wkhtmltopdf";
 		}
 
-		return calibreExecutable;
+		return getExecutableResolver().resolve(wkhtmltopdfHome, executable, logger);
 	}
 	
 
@@ -158,12 +154,41 @@ public class WkhtmlToPdfCommandLineBuilder extends AbstractCommandLineBuilder {
 		}
 	}
 	
-	protected void setTimeout(WkhtmlToPdfInvocationRequest request, Commandline cli) {
-		long timeout = request.getTimeout();
-		if (timeout > 0) {
-			cli.createArg().setValue("-t");
-			cli.createArg().setValue(String.valueOf(timeout));
+	protected void setInput(WkhtmlToPdfInvocationRequest request, Commandline cli) {
+		for (String input : getInputArguments(request)) {
+			cli.createArg().setValue(input);
+		}
+	}
+	
+	protected void setOutput(WkhtmlToPdfInvocationRequest request, Commandline cli) {
+		String output = getOutputArgument(request);
+		if (output != null) {
+			cli.createArg().setValue(output);
+		}
+	}
+
+	static List<String> getInputArguments(WkhtmlToPdfInvocationRequest request) {
+		return getInputArguments(request.getURL(), request.getInputSource());
+	}
+
+	static List<String> getInputArguments(String url, InputSource inputSource) {
+		List<String> inputs = new ArrayList<String>(2);
+		// Where URL is for example https://google.com
+		if (StringUtils.isNotEmpty(url)) {
+			inputs.add(url);
 		}
+		if (inputSource != null) {
+			inputs.add(inputSource.getArgument());
+		}
+		return inputs;
+	}
+
+	static String getOutputArgument(WkhtmlToPdfInvocationRequest request) {
+		return getOutputArgument(request.getOutputSink());
+	}
+
+	static String getOutputArgument(OutputSink outputSink) {
+		return outputSink != null ? outputSink.getArgument() : null;
 	}
 
 }
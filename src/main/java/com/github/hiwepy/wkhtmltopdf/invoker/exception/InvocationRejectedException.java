@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.exception;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.PooledInvoker;
+
+/**
+ * Signals that an invocation was not admitted for execution because the
+ * invoker is saturated, i.e. its wait queue is full or no process slot became
+ * free within the configured queue timeout. Callers may retry later or shed the
+ * request.
+ * 
+ * @see PooledInvoker
+ */
+public class InvocationRejectedException extends WkhtmlToPdfInvocationException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates a new exception using the specified detail message.
+	 * 
+	 * @param message
+	 *            The detail message for this exception, may be <code>null</code>.
+	 */
+	public InvocationRejectedException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Publishes the measurements of an invoker to a Dropwizard {@link MetricRegistry}.
+ * The metrics are named <code>&lt;prefix&gt;.&lt;type&gt;.&lt;metric&gt;</code>,
+ * e.g. <code>wkhtmltopdf.invoker.pdf.render</code>:
+ * <ul>
+ * <li>timers <code>queue</code>, <code>build</code>, <code>spawn</code>,
+ * <code>render</code> and <code>drain</code>,</li>
+ * <li>histograms <code>output.bytes</code> and <code>stderr.lines</code>,</li>
+ * <li>counters <code>exit.&lt;code&gt;</code>, <code>timeouts</code> and
+ * <code>kills</code>,</li>
+ * <li>the gauge <code>inflight</code> of running processes.</li>
+ * </ul>
+ * metrics-core is an optional dependency, this class is the only one that
+ * refers to it.
+ */
+public class DropwizardInvokerMetrics implements InvokerMetrics {
+
+	public static final String DEFAULT_PREFIX = "wkhtmltopdf.invoker";
+
+	private static final int MAX_CACHED_EXIT_CODE = 255;
+
+	private final Meters pdf;
+
+	private final Meters image;
+
+	private final Meters other;
+
+	/**
+	 * Creates new metrics named with the {@link #DEFAULT_PREFIX}.
+	 * 
+	 * @param registry The registry to publish to, must not be <code>null</code>.
+	 */
+	public DropwizardInvokerMetrics(MetricRegistry registry) {
+		this(registry, DEFAULT_PREFIX);
+	}
+
+	/**
+	 * Creates new metrics. The gauges are registered right away, so there must
+	 * be only one instance per registry and prefix.
+	 * 
+	 * @param registry The registry to publish to, must not be <code>null</code>.
+	 * @param prefix The prefix of the metric names, must not be <code>null</code>.
+	 */
+	public DropwizardInvokerMetrics(MetricRegistry registry, String prefix) {
+		if (registry == null) {
+			throw new NullPointerException("missing registry");
+		}
+		this.pdf = new Meters(registry, MetricRegistry.name(prefix, PDF));
+		this.image = new Meters(registry, MetricRegistry.name(prefix, IMAGE));
+		this.other = new Meters(registry, MetricRegistry.name(prefix, OTHER));
+	}
+
+	private Meters meters(String type) {
+		if (PDF.equals(type)) {
+			return pdf;
+		}
+		if (IMAGE.equals(type)) {
+			return image;
+		}
+		return other;
+	}
+
+	public void queued(String type, long duration) {
+		meters(type).queue.update(duration, TimeUnit.NANOSECONDS);
+	}
+
+	public void commandBuilt(String type, long duration) {
+		meters(type).build.update(duration, TimeUnit.NANOSECONDS);
+	}
+
+	public void processSpawned(String type, long duration) {
+		Meters meters = meters(type);
+		meters.spawn.update(duration, TimeUnit.NANOSECONDS);
+		meters.inflight.incrementAndGet();
+	}
+
+	public void processExited(String type, long duration, int exitCode) {
+		Meters meters = meters(type);
+		meters.inflight.decrementAndGet();
+		meters.render.update(duration, TimeUnit.NANOSECONDS);
+		meters.exitCode(exitCode).inc();
+	}
+
+	public void outputDrained(String type, long duration, long bytes) {
+		Meters meters = meters(type);
+		meters.drain.update(duration, TimeUnit.NANOSECONDS);
+		meters.outputBytes.update(bytes);
+	}
+
+	public void errorOutputDrained(String type, long lines) {
+		meters(type).stderrLines.update(lines);
+	}
+
+	public void timedOut(String type) {
+		meters(type).timeouts.inc();
+	}
+
+	public void killed(String type) {
+		Meters meters = meters(type);
+		meters.inflight.decrementAndGet();
+		meters.kills.inc();
+	}
+
+	/**
+	 * The metrics of one request type, looked up once.
+	 */
+	private static class Meters {
+
+		private final MetricRegistry registry;
+
+		private final String prefix;
+
+		private final Timer queue;
+
+		private final Timer build;
+
+		private final Timer spawn;
+
+		private final Timer render;
+
+		private final Timer drain;
+
+		private final Histogram outputBytes;
+
+		private final Histogram stderrLines;
+
+		private final Counter timeouts;
+
+		private final Counter kills;
+
+		private final Counter[] exitCodes = new Counter[MAX_CACHED_EXIT_CODE + 1];
+
+		private final AtomicInteger inflight = new AtomicInteger();
+
+		Meters(MetricRegistry registry, String prefix) {
+			this.registry = registry;
+			this.prefix = prefix;
+			this.queue = registry.timer(MetricRegistry.name(prefix, "queue"));
+			this.build = registry.timer(MetricRegistry.name(prefix, "build"));
+			this.spawn = registry.timer(MetricRegistry.name(prefix, "spawn"));
+			this.render = registry.timer(MetricRegistry.name(prefix, "render"));
+			this.drain = registry.timer(MetricRegistry.name(prefix, "drain"));
+			this.outputBytes = registry.histogram(MetricRegistry.name(prefix, "output", "bytes"));
+			this.stderrLines = registry.histogram(MetricRegistry.name(prefix, "stderr", "lines"));
+			this.timeouts = registry.counter(MetricRegistry.name(prefix, "timeouts"));
+			this.kills = registry.counter(MetricRegistry.name(prefix, "kills"));
+			registry.register(MetricRegistry.name(prefix, "inflight"), new Gauge<Integer>() {
+
+				public Integer getValue() {
+					return inflight.get();
+				}
+
+			});
+		}
+
+		Counter exitCode(int exitCode) {
+			if (exitCode < 0 || exitCode > MAX_CACHED_EXIT_CODE) {
+				return registry.counter(MetricRegistry.name(prefix, "exit", String.valueOf(exitCode)));
+			}
+			Counter counter = exitCodes[exitCode];
+			if (counter == null) {
+				// racing threads get the same counter from the registry
+				counter = registry.counter(MetricRegistry.name(prefix, "exit", String.valueOf(exitCode)));
+				exitCodes[exitCode] = counter;
+			}
+			return counter;
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.metrics;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToImageInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * Receives measurements of the stages of an invocation. All durations are in
+ * nanoseconds, the type is one of {@link #PDF}, {@link #IMAGE} or
+ * {@link #OTHER}. Implementations must be thread-safe and cheap, they are
+ * called on the invocation path.
+ */
+public interface InvokerMetrics {
+
+	String PDF = "pdf";
+
+	String IMAGE = "image";
+
+	String OTHER = "other";
+
+	/**
+	 * Records nothing, used when no metrics are configured.
+	 */
+	InvokerMetrics NONE = new InvokerMetrics() {
+
+		public void queued(String type, long duration) {
+		}
+
+		public void commandBuilt(String type, long duration) {
+		}
+
+		public void processSpawned(String type, long duration) {
+		}
+
+		public void processExited(String type, long duration, int exitCode) {
+		}
+
+		public void outputDrained(String type, long duration, long bytes) {
+		}
+
+		public void errorOutputDrained(String type, long lines) {
+		}
+
+		public void timedOut(String type) {
+		}
+
+		public void killed(String type) {
+		}
+
+	};
+
+	/**
+	 * Records the time between the invocation being submitted and its command
+	 * line being built, e.g. waiting for a thread or for a slot of a pooled invoker.
+	 */
+	void queued(String type, long duration);
+
+	/**
+	 * Records the time spent building the command line.
+	 */
+	void commandBuilt(String type, long duration);
+
+	/**
+	 * Records the time spent starting the process. The process counts as in
+	 * flight until {@link #processExited(String, long, int)} or
+	 * {@link #killed(String)} is called for it.
+	 */
+	void processSpawned(String type, long duration);
+
+	/**
+	 * Records the wall time of the render, from the start of the process until
+	 * it exited and its output was drained.
+	 */
+	void processExited(String type, long duration, int exitCode);
+
+	/**
+	 * Records the time spent handing the standard output to its consumer, e.g.
+	 * writing the streamed document, and the number of bytes.
+	 */
+	void outputDrained(String type, long duration, long bytes);
+
+	/**
+	 * Records the number of lines of error output.
+	 */
+	void errorOutputDrained(String type, long lines);
+
+	/**
+	 * Records an invocation that ran out of time, whether or not its process was
+	 * started.
+	 */
+	void timedOut(String type);
+
+	/**
+	 * Records a process killed by the invoker because it ran out of time or was
+	 * cancelled.
+	 */
+	void killed(String type);
+
+	/**
+	 * Gets the type of the given request used to tag its measurements.
+	 * 
+	 * @param request The invocation request, must not be <code>null</code>.
+	 * @return The type, never <code>null</code>.
+	 */
+	static String typeOf(InvocationRequest request) {
+		if (request instanceof WkhtmlToPdfInvocationRequest) {
+			return PDF;
+		}
+		if (request instanceof WkhtmlToImageInvocationRequest) {
+			return IMAGE;
+		}
+		return OTHER;
+	}
+
+}
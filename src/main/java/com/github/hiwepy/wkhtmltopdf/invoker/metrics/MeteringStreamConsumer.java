@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamConsumer;
+
+/**
+ * Measures a process stream on its way to a consumer: the number of bytes and
+ * lines, and the drain time, i.e. the time the consumer spent between reads
+ * handling what it read. Time spent blocked in a read waiting for the process
+ * is not included, so the drain time shows how much a slow consumer holds up
+ * the process.
+ */
+public class MeteringStreamConsumer implements ByteStreamConsumer {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final ByteStreamConsumer delegate;
+
+	private volatile long bytes;
+
+	private volatile long lines;
+
+	private volatile long drainTime;
+
+	/**
+	 * Creates a new consumer.
+	 * 
+	 * @param delegate The consumer to measure, may be <code>null</code> to discard the stream.
+	 */
+	public MeteringStreamConsumer(ByteStreamConsumer delegate) {
+		this.delegate = delegate;
+	}
+
+	public long consume(InputStream in) throws IOException {
+		MeteringInputStream metering = new MeteringInputStream(in);
+		try {
+			if (delegate != null) {
+				delegate.consume(metering);
+			} else {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while (metering.read(buffer) != -1) {
+					// discard
+				}
+			}
+		} finally {
+			metering.finish();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The number of bytes read by the consumer.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The number of line feeds read by the consumer.
+	 */
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return The drain time in nanoseconds.
+	 */
+	public long getDrainTime() {
+		return drainTime;
+	}
+
+	/**
+	 * Counts within one consume call, publishing the totals when done.
+	 */
+	private class MeteringInputStream extends FilterInputStream {
+
+		private long count;
+
+		private long lineCount;
+
+		private long outside;
+
+		private long returned = -1;
+
+		MeteringInputStream(InputStream in) {
+			super(in);
+		}
+
+		private void enter() {
+			if (returned >= 0) {
+				outside += System.nanoTime() - returned;
+			}
+		}
+
+		private void leave() {
+			returned = System.nanoTime();
+		}
+
+		@Override
+		public int read() throws IOException {
+			enter();
+			try {
+				int b = super.read();
+				if (b >= 0) {
+					count++;
+					if (b == '\n') {
+						lineCount++;
+					}
+				}
+				return b;
+			} finally {
+				leave();
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			enter();
+			try {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					count += n;
+					for (int i = off; i < off + n; i++) {
+						if (b[i] == '\n') {
+							lineCount++;
+						}
+					}
+				}
+				return n;
+			} finally {
+				leave();
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			enter();
+			try {
+				long skipped = super.skip(n);
+				count += skipped;
+				return skipped;
+			} finally {
+				leave();
+			}
+		}
+
+		void finish() {
+			enter();
+			bytes = count;
+			lines = lineCount;
+			drainTime = outside;
+		}
+
+	}
+
+}
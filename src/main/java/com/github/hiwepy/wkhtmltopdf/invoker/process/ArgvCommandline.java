@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+/**
+ * Implemented by command lines that keep their arguments precompiled. A
+ * launcher takes the argument vector of such a command line as is, instead of
+ * collecting the parts of every argument of the command line one by one.
+ * 
+ * @see DirectProcessLauncher
+ */
+public interface ArgvCommandline {
+
+	/**
+	 * Creates the literal argument vector of the process, the executable
+	 * followed by the arguments.
+	 * 
+	 * @return A new argument vector, never <code>null</code>.
+	 */
+	String[] toArgv();
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Consumes a stream of a forked process as raw bytes, e.g. to forward the
+ * rendered document or to keep a bounded amount of diagnostics, without
+ * decoding it line by line.
+ */
+public interface ByteStreamConsumer {
+
+	/**
+	 * Reads the stream until its end.
+	 * 
+	 * @param in The process stream, must not be <code>null</code>. It is closed by the caller.
+	 * @return The number of bytes read from the stream.
+	 * @throws IOException If the stream could not be read or its content could not be stored.
+	 */
+	long consume(InputStream in) throws IOException;
+
+}
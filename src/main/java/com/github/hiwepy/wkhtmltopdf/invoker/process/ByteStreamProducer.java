@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the standard input of a forked process. The producer runs while
+ * the process is already starting and writes directly into the pipe, so a
+ * slow consumer throttles the producer instead of the input being buffered.
+ */
+public interface ByteStreamProducer {
+
+	/**
+	 * Writes the input into the process.
+	 * 
+	 * @param out The standard input of the process, must not be <code>null</code>. It is closed by the caller.
+	 * @throws IOException If the input could not be read or written.
+	 */
+	void produce(OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.Map;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Launcher starting the executable directly with the literal argument vector
+ * of the command line. Unlike {@link Commandline#execute()} no shell is forked
+ * in between and no argument is quoted, so long option lists are passed as they
+ * are. The process is started through
+ * {@link Runtime#exec(String[], String[], File)}, which is a thin wrapper of
+ * {@link ProcessBuilder} that takes the rendered environment block as is.
+ * <p>
+ * How the JDK forks the process can be chosen with
+ * {@link #setLaunchMechanism(LaunchMechanism)}.
+ */
+public class DirectProcessLauncher implements ProcessLauncher {
+
+	/**
+	 * The system property the JDK reads the launch mechanism from on Unix.
+	 */
+	public static final String LAUNCH_MECHANISM_PROPERTY = "jdk.lang.Process.launchMechanism";
+
+	/**
+	 * The ways the JDK can fork a process on Unix. Not every JDK supports every
+	 * mechanism, e.g. <code>VFORK</code> was removed in JDK 21.
+	 */
+	public enum LaunchMechanism {
+		POSIX_SPAWN, VFORK, FORK
+	}
+
+	public Process launch(Commandline cli) throws CommandLineException {
+		
+		String[] argv = toArgv(cli);
+		File workingDirectory = getWorkingDirectory(cli);
+		
+		try {
+			return Runtime.getRuntime().exec(argv, cli.getEnvironmentVariables(), workingDirectory);
+		} catch (IOException e) {
+			throw new CommandLineException("Error while executing process.", e);
+		}
+	}
+
+	public Process launch(Commandline cli, Redirect stdout, Redirect stderr) throws CommandLineException {
+		
+		if (stdout == Redirect.PIPE && stderr == Redirect.PIPE) {
+			return launch(cli);
+		}
+		
+		ProcessBuilder builder = new ProcessBuilder(toArgv(cli));
+		builder.directory(getWorkingDirectory(cli));
+		Map<String, String> environment = builder.environment();
+		environment.clear();
+		for (String variable : cli.getEnvironmentVariables()) {
+			int separator = variable.indexOf('=');
+			environment.put(variable.substring(0, separator), variable.substring(separator + 1));
+		}
+		builder.redirectOutput(stdout);
+		builder.redirectError(stderr);
+		
+		try {
+			return builder.start();
+		} catch (IOException e) {
+			throw new CommandLineException("Error while executing process.", e);
+		}
+	}
+
+	private static String[] toArgv(Commandline cli) {
+		if (cli instanceof ArgvCommandline) {
+			return ((ArgvCommandline) cli).toArgv();
+		}
+		String[] arguments = cli.getArguments();
+		String[] argv = new String[arguments.length + 1];
+		argv[0] = cli.getLiteralExecutable();
+		System.arraycopy(arguments, 0, argv, 1, arguments.length);
+		return argv;
+	}
+
+	private static File getWorkingDirectory(Commandline cli) throws CommandLineException {
+		File workingDirectory = cli.getWorkingDirectory();
+		if (workingDirectory != null && !workingDirectory.isDirectory()) {
+			throw new CommandLineException("Working directory \"" + workingDirectory.getPath() + "\" does not exist!");
+		}
+		return workingDirectory;
+	}
+
+	/**
+	 * Selects how the JDK forks processes on Unix. The JDK reads the setting once,
+	 * when the first process of the JVM is started, so it has to be selected
+	 * before that, e.g. during application startup. The setting applies to all
+	 * processes started by this JVM, not only the ones of this launcher.
+	 * 
+	 * @param mechanism The launch mechanism, <code>null</code> to use the default of the JDK.
+	 */
+	public static void setLaunchMechanism(LaunchMechanism mechanism) {
+		if (mechanism != null) {
+			System.setProperty(LAUNCH_MECHANISM_PROPERTY, mechanism.name());
+		} else {
+			System.clearProperty(LAUNCH_MECHANISM_PROPERTY);
+		}
+	}
+
+}
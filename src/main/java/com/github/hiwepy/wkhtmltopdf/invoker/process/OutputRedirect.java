@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+
+import org.codehaus.plexus.util.Os;
+
+/**
+ * Where the diagnostic output of a process goes when it is not pumped through
+ * the JVM: to a log file or nowhere. The operating system writes it directly,
+ * so no pump thread runs and no line is decoded unless the log is read.
+ */
+public final class OutputRedirect {
+
+	/**
+	 * Discards the output.
+	 */
+	public static final OutputRedirect DISCARD = new OutputRedirect(null);
+
+	private static final File NULL_FILE = new File(Os.isFamily("windows") ? "NUL" : "/dev/null");
+
+	private final File file;
+
+	private OutputRedirect(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Creates a redirect to the given log file. The file is truncated when the
+	 * process starts.
+	 * 
+	 * @param file The log file, must not be <code>null</code>.
+	 * @return The redirect, never <code>null</code>.
+	 */
+	public static OutputRedirect toFile(File file) {
+		if (file == null) {
+			throw new NullPointerException("missing log file");
+		}
+		return new OutputRedirect(file);
+	}
+
+	/**
+	 * @return The log file or <code>null</code> if the output is discarded.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Prepares the target and creates the JDK redirect. The log file is
+	 * truncated and opened for appending, so standard output and error output
+	 * can share it without overwriting each other.
+	 * 
+	 * @return The JDK redirect, never <code>null</code>.
+	 * @throws IOException If the log file could not be truncated.
+	 */
+	public Redirect open() throws IOException {
+		if (file == null) {
+			return Redirect.to(NULL_FILE);
+		}
+		new FileOutputStream(file).close();
+		return Redirect.appendTo(file);
+	}
+
+	@Override
+	public String toString() {
+		return file == null ? "OutputRedirect[DISCARD]" : "OutputRedirect[" + file + "]";
+	}
+
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable set of environment variables for forked processes. A base
+ * environment is built once and renders its <code>KEY=value</code> block once;
+ * a per-request delta is laid over it with {@link #with(Map)} as a view, so
+ * the base is never copied into a mutable map per invocation.
+ */
+public final class ProcessEnvironment {
+
+	/**
+	 * The variables kept by the {@link #minimal()} profile: the search path, the
+	 * locale, fontconfig and Qt settings that affect rendering, and what
+	 * Windows needs to start a process at all.
+	 */
+	private static final Set<String> MINIMAL_NAMES = new HashSet<String>(Arrays.asList(
+			"PATH", "HOME", "TMPDIR", "TZ", "LANG", "LANGUAGE",
+			"FONTCONFIG_FILE", "FONTCONFIG_PATH", "FONTCONFIG_SYSROOT",
+			"DISPLAY", "XDG_RUNTIME_DIR", "LD_LIBRARY_PATH",
+			"SystemRoot", "windir", "TEMP", "TMP", "PATHEXT", "COMSPEC"));
+
+	private static final String[] MINIMAL_PREFIXES = { "LC_", "QT_", "FC_" };
+
+	private static final ProcessEnvironment EMPTY = new ProcessEnvironment(Collections.<String, String>emptyMap());
+
+	private final Map<String, String> variables;
+
+	/**
+	 * The rendered <code>KEY=value</code> block, created on first use.
+	 */
+	private volatile String[] envp;
+
+	private ProcessEnvironment(Map<String, String> variables) {
+		this.variables = variables;
+	}
+
+	/**
+	 * @return An environment without any variables.
+	 */
+	public static ProcessEnvironment empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * @return The environment of this JVM, taken when this method is first called.
+	 */
+	public static ProcessEnvironment inherited() {
+		return Snapshots.INHERITED;
+	}
+
+	/**
+	 * @return The variables of the environment of this JVM that matter to
+	 *         wkhtmltopdf, taken when this method is first called.
+	 */
+	public static ProcessEnvironment minimal() {
+		return Snapshots.MINIMAL;
+	}
+
+	/**
+	 * Creates an environment holding a copy of the given variables.
+	 * 
+	 * @param variables The variables, must not be <code>null</code>.
+	 * @return The environment, never <code>null</code>.
+	 */
+	public static ProcessEnvironment of(Map<String, String> variables) {
+		return new ProcessEnvironment(Collections.unmodifiableMap(new LinkedHashMap<String, String>(variables)));
+	}
+
+	/**
+	 * Lays the given variables over this environment. The result is a view, only
+	 * the delta is copied.
+	 * 
+	 * @param delta The variables to add or replace, must not be <code>null</code>.
+	 * @return The combined environment, this environment if the delta is empty.
+	 */
+	public ProcessEnvironment with(Map<String, String> delta) {
+		if (delta.isEmpty()) {
+			return this;
+		}
+		return new ProcessEnvironment(new Overlay(this, new LinkedHashMap<String, String>(delta)));
+	}
+
+	/**
+	 * @return The variables as an unmodifiable map, never <code>null</code>.
+	 */
+	public Map<String, String> asMap() {
+		return variables;
+	}
+
+	/**
+	 * @param name The name of the variable, must not be <code>null</code>.
+	 * @return The value of the variable or <code>null</code> if it is not set.
+	 */
+	public String get(String name) {
+		return variables.get(name);
+	}
+
+	/**
+	 * Gets the variables in the <code>KEY=value</code> form expected by
+	 * {@link Runtime#exec(String[], String[])}. The returned array is shared and
+	 * must not be modified.
+	 * 
+	 * @return The variables, never <code>null</code>.
+	 */
+	public String[] toEnvp() {
+		String[] result = envp;
+		if (result == null) {
+			if (variables instanceof Overlay) {
+				result = ((Overlay) variables).toEnvp();
+			} else {
+				result = new String[variables.size()];
+				int i = 0;
+				for (Map.Entry<String, String> entry : variables.entrySet()) {
+					result[i++] = entry.getKey() + '=' + entry.getValue();
+				}
+			}
+			envp = result;
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "ProcessEnvironment" + variables.keySet();
+	}
+
+	private static boolean isMinimal(String name) {
+		if (MINIMAL_NAMES.contains(name)) {
+			return true;
+		}
+		for (String prefix : MINIMAL_PREFIXES) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Lazily taken snapshots of the JVM environment.
+	 */
+	private static final class Snapshots {
+
+		static final ProcessEnvironment INHERITED = of(System.getenv());
+
+		static final ProcessEnvironment MINIMAL;
+
+		static {
+			Map<String, String> minimal = new LinkedHashMap<String, String>();
+			for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
+				if (isMinimal(entry.getKey())) {
+					minimal.put(entry.getKey(), entry.getValue());
+				}
+			}
+			MINIMAL = of(minimal);
+		}
+
+	}
+
+	/**
+	 * Read-only view of a delta laid over a base map.
+	 */
+	private static final class Overlay extends AbstractMap<String, String> {
+
+		private final ProcessEnvironment parent;
+
+		private final Map<String, String> base;
+
+		private final Map<String, String> delta;
+
+		Overlay(ProcessEnvironment parent, Map<String, String> delta) {
+			this.parent = parent;
+			this.base = parent.variables;
+			this.delta = delta;
+		}
+
+		@Override
+		public String get(Object key) {
+			String value = delta.get(key);
+			return value != null ? value : base.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return delta.containsKey(key) || base.containsKey(key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new Iterator<Map.Entry<String, String>>() {
+
+						private final Iterator<Map.Entry<String, String>> deltaEntries = delta.entrySet().iterator();
+
+						private final Iterator<Map.Entry<String, String>> baseEntries = base.entrySet().iterator();
+
+						private Map.Entry<String, String> next;
+
+						public boolean hasNext() {
+							if (next == null) {
+								if (deltaEntries.hasNext()) {
+									next = deltaEntries.next();
+								} else {
+									while (baseEntries.hasNext()) {
+										Map.Entry<String, String> entry = baseEntries.next();
+										if (!delta.containsKey(entry.getKey())) {
+											next = entry;
+											break;
+										}
+									}
+								}
+							}
+							return next != null;
+						}
+
+						public Map.Entry<String, String> next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, String> entry = next;
+							next = null;
+							return new SimpleImmutableEntry<String, String>(entry);
+						}
+
+					};
+				}
+
+				@Override
+				public int size() {
+					int size = base.size();
+					for (String name : delta.keySet()) {
+						if (!base.containsKey(name)) {
+							size++;
+						}
+					}
+					return size;
+				}
+
+			};
+		}
+
+		/**
+		 * Renders the delta and reuses the rendered entries of the base.
+		 */
+		String[] toEnvp() {
+			String[] baseEnvp = parent.toEnvp();
+			List<String> result = new ArrayList<String>(baseEnvp.length + delta.size());
+			for (Map.Entry<String, String> entry : delta.entrySet()) {
+				result.add(entry.getKey() + '=' + entry.getValue());
+			}
+			for (String variable : baseEnvp) {
+				if (!isOverridden(variable)) {
+					result.add(variable);
+				}
+			}
+			return result.toArray(new String[result.size()]);
+		}
+
+		private boolean isOverridden(String variable) {
+			for (String name : delta.keySet()) {
+				if (variable.length() > name.length() && variable.charAt(name.length()) == '='
+						&& variable.startsWith(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.lang.ProcessBuilder.Redirect;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Starts the process described by a command line. Implementations decide how
+ * the executable, its arguments and its environment reach the operating
+ * system.
+ * 
+ * @see DirectProcessLauncher
+ * @see ShellProcessLauncher
+ */
+public interface ProcessLauncher {
+
+	/**
+	 * Starts the given command line.
+	 * 
+	 * @param cli The command line, must not be <code>null</code>.
+	 * @return The started process, never <code>null</code>.
+	 * @throws CommandLineException If the process could not be started.
+	 */
+	Process launch(Commandline cli) throws CommandLineException;
+
+	/**
+	 * Starts the given command line, letting the operating system write its
+	 * output streams to the given targets. A stream sent anywhere but to
+	 * {@link Redirect#PIPE} must not be pumped, it reads as empty.
+	 * 
+	 * @param cli The command line, must not be <code>null</code>.
+	 * @param stdout The target of the standard output, must not be <code>null</code>.
+	 * @param stderr The target of the error output, must not be <code>null</code>.
+	 * @return The started process, never <code>null</code>.
+	 * @throws CommandLineException If the process could not be started or the launcher can not redirect.
+	 */
+	default Process launch(Commandline cli, Redirect stdout, Redirect stderr) throws CommandLineException {
+		if (stdout != Redirect.PIPE || stderr != Redirect.PIPE) {
+			throw new CommandLineException(getClass().getSimpleName() + " does not support redirecting output.");
+		}
+		return launch(cli);
+	}
+
+}
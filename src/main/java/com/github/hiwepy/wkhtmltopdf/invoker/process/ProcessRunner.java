@@ -0,0 +1,325 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineTimeOutException;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * Drives a forked process to completion: feeds its standard input, drains its
+ * standard output and error output and waits for it to exit. Standard output is
+ * drained on the calling thread, the other streams on the given executor, so a
+ * single invocation needs at most two extra tasks instead of the dedicated
+ * pumper threads started by <code>CommandLineUtils</code>.
+ */
+public class ProcessRunner {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Marks a stream the process writes to a file or discards by itself, see
+	 * {@link ProcessLauncher#launch(org.codehaus.plexus.util.cli.Commandline, ProcessBuilder.Redirect, ProcessBuilder.Redirect)}.
+	 * It is neither pumped nor drained.
+	 */
+	public static final ByteStreamConsumer REDIRECTED = new ByteStreamConsumer() {
+
+		public long consume(InputStream in) throws IOException {
+			return 0;
+		}
+
+	};
+
+	private final Executor executor;
+
+	/**
+	 * Creates a new runner pumping streams on the shared pump executor.
+	 */
+	public ProcessRunner() {
+		this(ProcessThreads.getPumpExecutor());
+	}
+
+	/**
+	 * Creates a new runner.
+	 * 
+	 * @param executor The executor used to pump the standard input and error output, must not be <code>null</code>.
+	 */
+	public ProcessRunner(Executor executor) {
+		if (executor == null) {
+			throw new NullPointerException("missing executor");
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs the given process to completion.
+	 * 
+	 * @param process The started process, must not be <code>null</code>.
+	 * @param stdin The input to feed into the process, may be <code>null</code> to close the standard input right away.
+	 * @param stdout The consumer for the lines of standard output, may be <code>null</code> if the output is not of interest.
+	 * @param stderr The consumer for the lines of error output, may be <code>null</code> if the output is not of interest.
+	 * @return The exit code of the process.
+	 * @throws CommandLineException If a stream could not be pumped or the calling thread was interrupted.
+	 */
+	public int run(Process process, InputStream stdin, StreamConsumer stdout, StreamConsumer stderr)
+			throws CommandLineException {
+		return run(process, stdin != null ? copyOf(stdin) : null, lines(stdout), lines(stderr));
+	}
+
+	/**
+	 * Runs the given process to completion, handing its output streams to the
+	 * given consumers as raw bytes. A failure to write the standard input is only
+	 * reported if the process exits successfully; otherwise the exit code is the
+	 * more meaningful outcome.
+	 * 
+	 * @param process The started process, must not be <code>null</code>.
+	 * @param stdin The producer of the standard input, may be <code>null</code> to close the standard input right away.
+	 * @param stdout The consumer of the standard output, may be <code>null</code> if the output is not of interest.
+	 * @param stderr The consumer of the error output, may be <code>null</code> if the output is not of interest.
+	 * @return The exit code of the process.
+	 * @throws CommandLineException If a stream could not be pumped or the calling thread was interrupted.
+	 */
+	public int run(Process process, ByteStreamProducer stdin, ByteStreamConsumer stdout, ByteStreamConsumer stderr)
+			throws CommandLineException {
+		return run(process, stdin, stdout, stderr, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the given process to completion within the given time. When the time
+	 * is up the process and all of its descendants are killed.
+	 * 
+	 * @param process The started process, must not be <code>null</code>.
+	 * @param stdin The producer of the standard input, may be <code>null</code> to close the standard input right away.
+	 * @param stdout The consumer of the standard output, may be <code>null</code> if the output is not of interest.
+	 * @param stderr The consumer of the error output, may be <code>null</code> if the output is not of interest.
+	 * @param timeout The maximum time to wait for the process, <code>0</code> or less to wait forever.
+	 * @param unit The unit of the timeout, must not be <code>null</code>.
+	 * @return The exit code of the process.
+	 * @throws CommandLineTimeOutException If the process was killed because the time was up.
+	 * @throws CommandLineException If a stream could not be pumped or the calling thread was interrupted.
+	 */
+	public int run(final Process process, ByteStreamProducer stdin, ByteStreamConsumer stdout, ByteStreamConsumer stderr,
+			long timeout, TimeUnit unit) throws CommandLineException {
+
+		final AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> watchdog = null;
+		if (timeout > 0) {
+			watchdog = ProcessThreads.getScheduler().schedule(new Runnable() {
+
+				public void run() {
+					expired.set(true);
+					Processes.destroyTree(process);
+				}
+
+			}, timeout, unit);
+		}
+
+		FutureTask<Void> inputPump = null;
+		FutureTask<Void> errorPump = null;
+		try {
+			if (stdin != null) {
+				inputPump = submit(produce(stdin, process.getOutputStream()));
+			} else {
+				closeQuietly(process.getOutputStream());
+			}
+			if (stderr != REDIRECTED) {
+				errorPump = submit(consume(process.getErrorStream(), stderr));
+			}
+		} catch (RejectedExecutionException e) {
+			// the process would block on a pipe nobody reads
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			Processes.destroyTree(process);
+			closeQuietly(process.getInputStream());
+			closeQuietly(process.getErrorStream());
+			throw new CommandLineException("No thread available to pump process streams. Reason: " + e.getMessage(), e);
+		}
+
+		try {
+			try {
+				if (stdout != REDIRECTED) {
+					drain(process.getInputStream(), stdout);
+				}
+			} catch (IOException e) {
+				if (!expired.get()) {
+					throw e;
+				}
+			}
+			int exitCode = process.waitFor();
+			if (expired.get()) {
+				throw new CommandLineTimeOutException("Process killed after " + unit.toMillis(timeout) + " ms.", null);
+			}
+			await(errorPump);
+			if (exitCode == 0) {
+				await(inputPump);
+			}
+			return exitCode;
+		} catch (InterruptedException e) {
+			Processes.destroyTree(process);
+			Thread.currentThread().interrupt();
+			throw new CommandLineException("Interrupted while waiting for the process to exit.", e);
+		} catch (IOException e) {
+			Processes.destroyTree(process);
+			throw new CommandLineException("Error reading process output. Reason: " + e.getMessage(), e);
+		} finally {
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			closeQuietly(process.getInputStream());
+			closeQuietly(process.getErrorStream());
+		}
+	}
+
+	private FutureTask<Void> submit(Callable<Void> pump) {
+		FutureTask<Void> task = new FutureTask<Void>(pump);
+		executor.execute(task);
+		return task;
+	}
+
+	private void await(FutureTask<Void> pump) throws InterruptedException, CommandLineException {
+		if (pump == null) {
+			return;
+		}
+		try {
+			pump.get();
+		} catch (ExecutionException e) {
+			throw new CommandLineException("Error pumping process stream. Reason: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Creates a task that writes the input into the standard input of the
+	 * process and closes it afterwards so the process sees the end of input.
+	 */
+	protected Callable<Void> produce(final ByteStreamProducer producer, final OutputStream out) {
+		return new Callable<Void>() {
+
+			public Void call() throws IOException {
+				try {
+					producer.produce(out);
+					out.flush();
+				} finally {
+					closeQuietly(out);
+				}
+				return null;
+			}
+
+		};
+	}
+
+	/**
+	 * Adapts an input stream to a producer copying it into the process.
+	 * 
+	 * @param in The input stream, must not be <code>null</code>.
+	 * @return The producer, never <code>null</code>.
+	 */
+	public static ByteStreamProducer copyOf(final InputStream in) {
+		return new ByteStreamProducer() {
+
+			public void produce(OutputStream out) throws IOException {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					out.write(buffer, 0, n);
+				}
+			}
+
+		};
+	}
+
+	/**
+	 * Creates a task that drains the stream into the consumer.
+	 */
+	protected Callable<Void> consume(final InputStream in, final ByteStreamConsumer consumer) {
+		return new Callable<Void>() {
+
+			public Void call() throws IOException {
+				drain(in, consumer);
+				return null;
+			}
+
+		};
+	}
+
+	/**
+	 * Hands the stream to the consumer, or simply discards it if there is no
+	 * consumer.
+	 */
+	protected void drain(InputStream in, ByteStreamConsumer consumer) throws IOException {
+		if (consumer == null) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (in.read(buffer) != -1) {
+				// discard
+			}
+			return;
+		}
+		consumer.consume(in);
+	}
+
+	/**
+	 * Adapts a line based consumer. Consumers that also implement
+	 * {@link ByteStreamConsumer} are given the raw stream instead.
+	 * 
+	 * @param consumer The line based consumer, may be <code>null</code>.
+	 * @return The byte stream consumer or <code>null</code> if the given consumer is <code>null</code>.
+	 */
+	public static ByteStreamConsumer lines(final StreamConsumer consumer) {
+		if (consumer == null || consumer instanceof ByteStreamConsumer) {
+			return (ByteStreamConsumer) consumer;
+		}
+		return new ByteStreamConsumer() {
+
+			public long consume(InputStream in) throws IOException {
+				CountingInputStream counting = new CountingInputStream(in);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(counting));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					consumer.consumeLine(line);
+				}
+				return counting.getByteCount();
+			}
+
+		};
+	}
+
+	protected static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null) {
+				closeable.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+}
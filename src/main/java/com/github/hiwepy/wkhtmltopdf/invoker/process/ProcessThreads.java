@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the threads that run asynchronous invocations, wait for
+ * wkhtmltopdf processes and drain their standard streams. On a JDK with
+ * virtual threads every task gets its own virtual thread, so an idle pipe
+ * costs no OS thread; on older JDKs the tasks run on pools of daemon threads
+ * that are reused across invocations.
+ * <p>
+ * The two kinds of tasks are kept apart. Asynchronous invocations run on a
+ * bounded pool and queue once all its threads are busy; the cap defaults to
+ * {@link #DEFAULT_MAX_THREADS} and can be set with the system property
+ * <code>wkhtmltopdf.invoker.maxThreads</code>. The tasks a running invocation
+ * waits for, i.e. the pumps of the standard input and error output, version
+ * probes, asset downloads and cache eviction, run on a pool that grows on
+ * demand: such a task queued or rejected behind the very invocations waiting
+ * for it would stall or kill a render that is already running. Its threads
+ * are bounded by the number of processes, which the invoker caps.
+ */
+public final class ProcessThreads {
+
+	public static final int DEFAULT_MAX_THREADS = Math.max(64, 8 * Runtime.getRuntime().availableProcessors());
+
+	private static final String MAX_THREADS_PROPERTY = "wkhtmltopdf.invoker.maxThreads";
+
+	private static final Executor SHARED_EXECUTOR = createSharedExecutor();
+
+	private static final Executor PUMP_EXECUTOR = createPumpExecutor();
+
+	private static final ScheduledExecutorService SCHEDULER = Executors
+			.newSingleThreadScheduledExecutor(newDaemonThreadFactory("wkhtmltopdf-invoker-watchdog-"));
+
+	private ProcessThreads() {
+		// hide constructor
+	}
+
+	/**
+	 * @return <code>true</code> if the shared executors run their tasks on virtual threads.
+	 */
+	public static boolean isVirtualThreadsEnabled() {
+		return VirtualThreads.FACTORY != null;
+	}
+
+	/**
+	 * Gets the executor shared by all invokers to run asynchronous invocations.
+	 * It queues invocations once all its threads are busy.
+	 * 
+	 * @return The shared executor, never <code>null</code>.
+	 */
+	public static Executor getSharedExecutor() {
+		return SHARED_EXECUTOR;
+	}
+
+	/**
+	 * Gets the executor shared by all invokers to pump process streams and to
+	 * run other short tasks that invocations wait for. It never queues nor
+	 * rejects a task, it starts a new thread if none is idle.
+	 * 
+	 * @return The shared pump executor, never <code>null</code>.
+	 */
+	public static Executor getPumpExecutor() {
+		return PUMP_EXECUTOR;
+	}
+
+	/**
+	 * Gets the scheduler used to enforce timeouts. Scheduled tasks must be short,
+	 * they all run on a single thread.
+	 * 
+	 * @return The shared scheduler, never <code>null</code>.
+	 */
+	public static ScheduledExecutorService getScheduler() {
+		return SCHEDULER;
+	}
+
+	/**
+	 * Creates a factory for daemon platform threads.
+	 * 
+	 * @param prefix The prefix of the thread names, must not be <code>null</code>.
+	 * @return The thread factory, never <code>null</code>.
+	 */
+	public static ThreadFactory newDaemonThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+	private static Executor createSharedExecutor() {
+		if (VirtualThreads.FACTORY != null) {
+			return newVirtualThreadExecutor();
+		}
+		int maxThreads = Integer.getInteger(MAX_THREADS_PROPERTY, DEFAULT_MAX_THREADS);
+		// a pool queues only once it runs its core threads, so all threads are core threads
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), newDaemonThreadFactory("wkhtmltopdf-invoker-"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static Executor createPumpExecutor() {
+		if (VirtualThreads.FACTORY != null) {
+			return newVirtualThreadExecutor();
+		}
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				newDaemonThreadFactory("wkhtmltopdf-invoker-pump-"));
+	}
+
+	private static Executor newVirtualThreadExecutor() {
+		return new Executor() {
+
+			public void execute(Runnable command) {
+				VirtualThreads.FACTORY.newThread(command).start();
+			}
+
+		};
+	}
+
+	/**
+	 * Looks up the virtual thread builder reflectively so that the invoker still
+	 * runs on JDKs without virtual threads.
+	 */
+	private static class VirtualThreads {
+
+		static final ThreadFactory FACTORY = lookupFactory();
+
+		private static ThreadFactory lookupFactory() {
+			try {
+				Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Method name = builderType.getMethod("name", String.class, long.class);
+				builder = name.invoke(builder, "wkhtmltopdf-invoker-", 1L);
+				return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			} catch (Exception e) {
+				// virtual threads are not available (JDK < 21) or disabled
+				return null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.stream.Stream;
+
+import org.codehaus.plexus.util.Os;
+
+/**
+ * Utility methods for inspecting forked processes. Methods that depend on a
+ * newer JDK or on the <code>/proc</code> file system degrade gracefully and
+ * report <code>-1</code> when the information is not available.
+ */
+public final class Processes {
+
+	private Processes() {
+		// hide constructor
+	}
+
+	/**
+	 * Gets the native process id of the given process.
+	 * 
+	 * @param process The process, must not be <code>null</code>.
+	 * @return The process id or <code>-1</code> if it can not be determined.
+	 */
+	public static long getPid(Process process) {
+		try {
+			// JDK 9+
+			Method pid = Process.class.getMethod("pid");
+			return ((Number) pid.invoke(process)).longValue();
+		} catch (Exception e) {
+			// fall through
+		}
+		try {
+			// JDK 8 on Unix
+			Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return pid.getLong(process);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the resident set size of the process with the given id from
+	 * <code>/proc/&lt;pid&gt;/status</code>.
+	 * 
+	 * @param pid The process id.
+	 * @return The resident set size in bytes or <code>-1</code> if it can not be determined.
+	 */
+	public static long getResidentSetSize(long pid) {
+		if (pid < 0) {
+			return -1;
+		}
+		File status = new File("/proc/" + pid + "/status");
+		if (!status.isFile()) {
+			return -1;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(status));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					// e.g. "VmRSS:	  123456 kB"
+					String value = line.substring(6).trim();
+					int space = value.indexOf(' ');
+					long kiloBytes = Long.parseLong(space > 0 ? value.substring(0, space) : value);
+					return kiloBytes * 1024;
+				}
+			}
+			return -1;
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		} finally {
+			ProcessRunner.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Forcibly kills the given process together with all of its descendants,
+	 * e.g. the wkhtmltopdf process started by a wrapping shell or
+	 * <code>xvfb-run</code>. On JDK 8 only the direct children can be found,
+	 * using <code>pkill</code>.
+	 * 
+	 * @param process The process, must not be <code>null</code>.
+	 */
+	public static void destroyTree(Process process) {
+		Object[] descendants;
+		Method destroyForcibly;
+		try {
+			// JDK 9+, take the snapshot before the parent dies and the children are reparented
+			descendants = ((Stream<?>) Process.class.getMethod("descendants").invoke(process)).toArray();
+			destroyForcibly = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+		} catch (Exception e) {
+			destroyChildren(getPid(process));
+			process.destroyForcibly();
+			return;
+		}
+		process.destroyForcibly();
+		for (Object descendant : descendants) {
+			try {
+				destroyForcibly.invoke(descendant);
+			} catch (Exception e) {
+				// already gone
+			}
+		}
+	}
+
+	/**
+	 * Closes the pipes to and from the given process, unblocking the threads
+	 * pumping them.
+	 * 
+	 * @param process The process, must not be <code>null</code>.
+	 */
+	public static void closeStreams(Process process) {
+		closeQuietly(process.getOutputStream());
+		closeQuietly(process.getInputStream());
+		closeQuietly(process.getErrorStream());
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private static void destroyChildren(long pid) {
+		if (pid < 0 || Os.isFamily("windows")) {
+			return;
+		}
+		try {
+			new ProcessBuilder("pkill", "-KILL", "-P", String.valueOf(pid)).start().waitFor();
+		} catch (IOException e) {
+			// pkill is not available
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
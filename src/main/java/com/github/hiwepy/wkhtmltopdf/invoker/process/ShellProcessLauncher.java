@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.process;
+
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Launcher delegating to {@link Commandline#execute()}, which runs the
+ * executable through the shell of the command line, i.e. <code>/bin/sh -c</code>
+ * on Unix and <code>cmd.exe /X /C</code> on Windows. Only needed if a command
+ * line relies on shell features.
+ */
+public class ShellProcessLauncher implements ProcessLauncher {
+
+	public Process launch(Commandline cli) throws CommandLineException {
+		return cli.execute();
+	}
+
+}
@@ -21,8 +21,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
+import com.github.hiwepy.wkhtmltopdf.invoker.Deadline;
 import com.github.hiwepy.wkhtmltopdf.invoker.InvocationOutputHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.ProgressListener;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.OutputRedirect;
 
 /**
  * Specifies the parameters used to control a wkhtmltopdf invocation.
@@ -53,6 +57,22 @@ public abstract class AbstractInvocationRequest implements InvocationRequest {
 	 * Show detailed output information. Useful for debugging
 	 */
 	private boolean verbose;
+	/**
+	 * Wall-clock timeout in milliseconds enforced by the invoker, 0 for none
+	 */
+	private long timeoutMillis;
+	/**
+	 * Deadline shared with other invocations
+	 */
+	private Deadline deadline;
+	/**
+	 * Where the output goes instead of the handlers, null to pump it
+	 */
+	private OutputRedirect outputRedirect;
+	/**
+	 * Listener of the progress reported on the error output
+	 */
+	private ProgressListener progressListener;
 
 	public InvocationOutputHandler getErrorHandler(InvocationOutputHandler defaultHandler) {
 		return errorHandler == null ? defaultHandler : errorHandler;
@@ -133,6 +153,52 @@ public abstract class AbstractInvocationRequest implements InvocationRequest {
 		return this;
 	}
 
+	public long getTimeout(TimeUnit unit) {
+		return unit.convert(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public InvocationRequest setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutMillis = unit.toMillis(timeout);
+		return this;
+	}
+
+	@Deprecated
+	public long getTimeout() {
+		return (timeoutMillis + 999) / 1000;
+	}
+
+	@Deprecated
+	public InvocationRequest setTimeout(long timeout) {
+		return setTimeout(timeout, TimeUnit.SECONDS);
+	}
+
+	public Deadline getDeadline() {
+		return deadline;
+	}
+
+	public InvocationRequest setDeadline(Deadline deadline) {
+		this.deadline = deadline;
+		return this;
+	}
+
+	public OutputRedirect getOutputRedirect() {
+		return outputRedirect;
+	}
+
+	public InvocationRequest setOutputRedirect(OutputRedirect outputRedirect) {
+		this.outputRedirect = outputRedirect;
+		return this;
+	}
+
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	public InvocationRequest setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+		return this;
+	}
+
 	public InvocationRequest addShellEnvironment(String name, String value) {
 		if (this.shellEnvironments == null) {
 			this.shellEnvironments = new HashMap<String, String>();
@@ -17,6 +17,8 @@ package com.github.hiwepy.wkhtmltopdf.invoker.request;
 
 import java.io.File;
 
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+
 /**
  * @author ： <a href="https://github.com/hiwepy">hiwepy</a>
  */
@@ -61,14 +63,22 @@ public class DefaultWkhtmlToPdfInvocationRequest extends AbstractInvocationReque
 	 * Maximum number of levels to recurse i.e. depth of links to follow. Default 1
 	 */
 	private int maxRecursions = 1;
-	/**
-	 * Timeout in seconds to wait for a response from the server. Default: 10.0 s
-	 */
-	private long timeout = 10;
 	/**
 	 * Where URL is for example https://google.com
 	 */
 	private String url;
+	/**
+	 * The page read from standard input
+	 */
+	private InputSource inputSource;
+	/**
+	 * Where the rendered document is written to
+	 */
+	private OutputSink outputSink;
+	/**
+	 * The template providing the command line
+	 */
+	private CompiledInvocationTemplate compiledTemplate;
 
 	@Override
 	public boolean isDontDownloadStylesheets() {
@@ -110,16 +120,26 @@ public class DefaultWkhtmlToPdfInvocationRequest extends AbstractInvocationReque
 		return maxRecursions;
 	}
 	
-	@Override
-	public long getTimeout() {
-		return timeout;
-	}
-	
 	@Override
 	public String getURL() {
 		return url;
 	}
 
+	@Override
+	public InputSource getInputSource() {
+		return inputSource;
+	}
+
+	@Override
+	public OutputSink getOutputSink() {
+		return outputSink;
+	}
+
+	@Override
+	public CompiledInvocationTemplate getCompiledTemplate() {
+		return compiledTemplate;
+	}
+
 	@Override
 	public InvocationRequest setBaseDirectory(File baseDir) {
 		this.baseDir = baseDir;
@@ -169,14 +189,32 @@ public class DefaultWkhtmlToPdfInvocationRequest extends AbstractInvocationReque
 	}
 
 	@Override
-	public InvocationRequest setTimeout(long timeout) {
-		this.timeout = timeout;
+	public InvocationRequest setURL(String url) {
+		this.url = url;
 		return this;
 	}
 
 	@Override
-	public InvocationRequest setURL(String url) {
-		this.url = url;
+	public InvocationRequest setInputSource(InputSource inputSource) {
+		this.inputSource = inputSource;
+		return this;
+	}
+
+	@Override
+	public InvocationRequest setOutputSink(OutputSink outputSink) {
+		this.outputSink = outputSink;
+		return this;
+	}
+
+	@Override
+	public InvocationRequest setCompiledTemplate(CompiledInvocationTemplate compiledTemplate) {
+		this.compiledTemplate = compiledTemplate;
+		return this;
+	}
+
+	@Override
+	public InvocationRequest setOutputFile(File outputFile) {
+		this.outputSink = outputFile != null ? OutputSink.toFile(outputFile) : null;
 		return this;
 	}
 
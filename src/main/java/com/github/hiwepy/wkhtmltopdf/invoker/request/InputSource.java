@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.request;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+import org.jsoup.nodes.Document;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamProducer;
+
+/**
+ * An HTML page read by wkhtmltopdf from its standard input (<code>-</code>).
+ * The source is pumped into the pipe while the process is starting, with the
+ * pipe providing backpressure, so the page is never copied into a byte array
+ * or a temporary file first.
+ */
+public abstract class InputSource implements ByteStreamProducer {
+
+	/**
+	 * The page argument that makes wkhtmltopdf read from its standard input.
+	 */
+	public static final String STDIN = "-";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Creates a source reading the given stream. The stream is closed once it
+	 * has been pumped into the process.
+	 * 
+	 * @param in The stream, must not be <code>null</code>.
+	 * @return The source, never <code>null</code>.
+	 */
+	public static InputSource fromStream(final InputStream in) {
+		if (in == null) {
+			throw new NullPointerException("missing input stream");
+		}
+		return new InputSource() {
+
+			public void produce(OutputStream out) throws IOException {
+				try {
+					copy(in, out);
+				} finally {
+					in.close();
+				}
+			}
+
+			@Override
+			public InputStream openStream() {
+				return in;
+			}
+
+		};
+	}
+
+	/**
+	 * Creates a source reading a fresh stream from the supplier for every
+	 * invocation, which makes the request reusable.
+	 * 
+	 * @param supplier The supplier of the stream, must not be <code>null</code>.
+	 * @return The source, never <code>null</code>.
+	 */
+	public static InputSource fromSupplier(final Supplier<? extends InputStream> supplier) {
+		if (supplier == null) {
+			throw new NullPointerException("missing input supplier");
+		}
+		return new InputSource() {
+
+			public void produce(OutputStream out) throws IOException {
+				InputStream in = supplier.get();
+				try {
+					copy(in, out);
+				} finally {
+					in.close();
+				}
+			}
+
+			@Override
+			public InputStream openStream() {
+				return supplier.get();
+			}
+
+			@Override
+			public boolean isRepeatable() {
+				return true;
+			}
+
+		};
+	}
+
+	/**
+	 * Creates a source reading the given channel. The channel is closed once it
+	 * has been pumped into the process.
+	 * 
+	 * @param channel The channel, must not be <code>null</code>.
+	 * @return The source, never <code>null</code>.
+	 */
+	public static InputSource fromChannel(final ReadableByteChannel channel) {
+		if (channel == null) {
+			throw new NullPointerException("missing input channel");
+		}
+		return new InputSource() {
+
+			public void produce(OutputStream out) throws IOException {
+				try {
+					WritableByteChannel target = Channels.newChannel(out);
+					ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+					while (channel.read(buffer) != -1) {
+						buffer.flip();
+						while (buffer.hasRemaining()) {
+							target.write(buffer);
+						}
+						buffer.clear();
+					}
+				} finally {
+					channel.close();
+				}
+			}
+
+			@Override
+			public InputStream openStream() {
+				return Channels.newInputStream(channel);
+			}
+
+		};
+	}
+
+	/**
+	 * Creates a source reading the given file for every invocation.
+	 * 
+	 * @param path The HTML file, must not be <code>null</code>.
+	 * @return The source, never <code>null</code>.
+	 */
+	public static InputSource fromPath(final Path path) {
+		if (path == null) {
+			throw new NullPointerException("missing input path");
+		}
+		return new InputSource() {
+
+			public void produce(OutputStream out) throws IOException {
+				Files.copy(path, out);
+			}
+
+			@Override
+			public InputStream openStream() throws IOException {
+				return Files.newInputStream(path);
+			}
+
+			@Override
+			public boolean isRepeatable() {
+				return true;
+			}
+
+		};
+	}
+
+	/**
+	 * Creates a source serializing the given jsoup document straight into the
+	 * process, using the charset of the document.
+	 * 
+	 * @param document The document, must not be <code>null</code>.
+	 * @return The source, never <code>null</code>.
+	 */
+	public static InputSource fromDocument(final Document document) {
+		if (document == null) {
+			throw new NullPointerException("missing document");
+		}
+		return new InputSource() {
+
+			public void produce(OutputStream out) throws IOException {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, document.charset()), BUFFER_SIZE);
+				document.html(writer);
+				writer.flush();
+			}
+
+			@Override
+			public boolean isRepeatable() {
+				return true;
+			}
+
+		};
+	}
+
+	/**
+	 * @return The page argument passed to wkhtmltopdf, never <code>null</code>.
+	 */
+	public String getArgument() {
+		return STDIN;
+	}
+
+	/**
+	 * Opens a stream reading the page, for consumers that parse the page in
+	 * the JVM rather than pumping it into a process. The built-in sources
+	 * stream the page; a source only implementing
+	 * {@link #produce(OutputStream)} is produced into memory first.
+	 * 
+	 * @return The stream, to be closed by the caller, never <code>null</code>.
+	 * @throws IOException If the stream could not be opened.
+	 */
+	public InputStream openStream() throws IOException {
+		ByteArrayOutputStream page = new ByteArrayOutputStream();
+		produce(page);
+		return new ByteArrayInputStream(page.toByteArray());
+	}
+
+	/**
+	 * Whether the source produces the same page every time it is pumped, e.g. a
+	 * file or a supplier, as opposed to a stream or channel that can only be
+	 * read once.
+	 * 
+	 * @return <code>true</code> if {@link #produce(OutputStream)} may be called more than once.
+	 */
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+	}
+
+}
@@ -20,8 +20,12 @@ import java.io.File;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
+import com.github.hiwepy.wkhtmltopdf.invoker.Deadline;
 import com.github.hiwepy.wkhtmltopdf.invoker.InvocationOutputHandler;
+import com.github.hiwepy.wkhtmltopdf.invoker.ProgressListener;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.OutputRedirect;
 
 /**
  * Specifies the parameters used to control a wkhtmltopdf invocation.
@@ -82,6 +86,49 @@ public interface InvocationRequest {
 	 */
 	Map<String, String> getShellEnvironments();
 	
+	/**
+	 * Gets the wall-clock timeout of the wkhtmltopdf invocation, enforced by the
+	 * invoker by killing the wkhtmltopdf process tree.
+	 * 
+	 * @param unit The unit of the returned value, must not be <code>null</code>.
+	 * @return The timeout or <code>0</code> if the invocation is not time limited.
+	 */
+	long getTimeout(TimeUnit unit);
+
+	/**
+	 * Gets the wall-clock timeout of the wkhtmltopdf invocation in seconds,
+	 * rounded up.
+	 * 
+	 * @return The timeout in seconds or <code>0</code> if the invocation is not time limited.
+	 * @deprecated Use {@link #getTimeout(TimeUnit)}.
+	 */
+	@Deprecated
+	long getTimeout();
+
+	/**
+	 * Gets the deadline shared with other invocations, e.g. the chunks of one
+	 * document, by which the wkhtmltopdf invocation has to be finished.
+	 * 
+	 * @return The deadline or <code>null</code> if not set.
+	 */
+	Deadline getDeadline();
+
+	/**
+	 * Gets where the standard output and error output of wkhtmltopdf are written
+	 * instead of being pumped into the output handlers.
+	 * 
+	 * @return The redirect or <code>null</code> if the output is pumped into the handlers.
+	 */
+	OutputRedirect getOutputRedirect();
+
+	/**
+	 * Gets the listener notified of the progress wkhtmltopdf reports on its
+	 * error output.
+	 * 
+	 * @return The progress listener or <code>null</code> if not set.
+	 */
+	ProgressListener getProgressListener();
+	
 	/**
 	 * Indicates whether Collate when printing multiple copies, Default true
 	 */
@@ -176,6 +223,59 @@ public interface InvocationRequest {
 	InvocationRequest addShellEnvironment(String name, String value);
 	
 	
+	/**
+	 * Sets the wall-clock timeout of the wkhtmltopdf invocation. The time spent
+	 * waiting for a process slot counts against it.
+	 * 
+	 * @param timeout The timeout, <code>0</code> if the invocation is not time limited.
+	 * @param unit The unit of the timeout, must not be <code>null</code>.
+	 * @return This invocation request.
+	 */
+	InvocationRequest setTimeout(long timeout, TimeUnit unit);
+
+	/**
+	 * Sets the wall-clock timeout of the wkhtmltopdf invocation in seconds. It
+	 * used to be passed to wkhtmltopdf, which did not enforce it, and defaulted
+	 * to 10 seconds; the invoker now enforces it and there is no default.
+	 * 
+	 * @param timeout The timeout in seconds, <code>0</code> if the invocation is not time limited.
+	 * @return This invocation request.
+	 * @deprecated Use {@link #setTimeout(long, TimeUnit)}, which states the unit.
+	 */
+	@Deprecated
+	InvocationRequest setTimeout(long timeout);
+
+	/**
+	 * Sets the deadline by which the wkhtmltopdf invocation has to be finished.
+	 * If a timeout is set as well, the earlier of both applies.
+	 * 
+	 * @param deadline The deadline, may be <code>null</code>.
+	 * @return This invocation request.
+	 */
+	InvocationRequest setDeadline(Deadline deadline);
+
+	/**
+	 * Sets where the standard output and error output of wkhtmltopdf are
+	 * written by the operating system, bypassing the output handlers. If a log
+	 * file is used and the invocation fails, the log is replayed into the error
+	 * handler afterwards. A document streamed to standard output is not
+	 * affected.
+	 * 
+	 * @param outputRedirect The redirect, may be <code>null</code> to pump the output into the handlers.
+	 * @return This invocation request.
+	 */
+	InvocationRequest setOutputRedirect(OutputRedirect outputRedirect);
+
+	/**
+	 * Sets the listener notified of the progress wkhtmltopdf reports on its
+	 * error output. The remaining error output still reaches the error
+	 * handler. No progress is reported if the output is redirected.
+	 * 
+	 * @param progressListener The progress listener, may be <code>null</code> if the progress is not of interest.
+	 * @return This invocation request.
+	 */
+	InvocationRequest setProgressListener(ProgressListener progressListener);
+	
 	/**
 	 * Set the value of the {@code collate}; {@code true} if the
 	 * argument {@code --collate} was specified, otherwise
@@ -0,0 +1,311 @@
+/**
+ * Copyright (c) 2018, hiwepy (https://github.com/hiwepy).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.hiwepy.wkhtmltopdf.invoker.request;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ByteStreamConsumer;
+
+/**
+ * Specifies where wkhtmltopdf writes the rendered document: either to a file
+ * it writes itself, or to its standard output (<code>-</code>) which the
+ * invoker streams straight into a caller-supplied stream or channel without
+ * buffering the document on the heap or on disk.
+ */
+public abstract class OutputSink implements ByteStreamConsumer {
+
+	/**
+	 * The output argument that makes wkhtmltopdf write to its standard output.
+	 */
+	public static final String STDOUT = "-";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Creates a sink for a file written by wkhtmltopdf.
+	 * 
+	 * @param file The output file, must not be <code>null</code>.
+	 * @return The sink, never <code>null</code>.
+	 */
+	public static OutputSink toFile(File file) {
+		return new FileSink(file);
+	}
+
+	/**
+	 * Creates a sink streaming the standard output into the given stream. The
+	 * stream is flushed but not closed.
+	 * 
+	 * @param out The target stream, must not be <code>null</code>.
+	 * @return The sink, never <code>null</code>.
+	 */
+	public static OutputSink toStream(OutputStream out) {
+		return new OutputStreamSink(out);
+	}
+
+	/**
+	 * Creates a sink streaming the standard output into the given channel. The
+	 * channel is not closed.
+	 * 
+	 * @param channel The target channel, must not be <code>null</code>.
+	 * @return The sink, never <code>null</code>.
+	 */
+	public static OutputSink toChannel(WritableByteChannel channel) {
+		return new ChannelSink(channel);
+	}
+
+	/**
+	 * @return The output argument passed to wkhtmltopdf, never <code>null</code>.
+	 */
+	public abstract String getArgument();
+
+	/**
+	 * @return The file written by wkhtmltopdf or <code>null</code> if the document is streamed.
+	 */
+	public File getFile() {
+		return null;
+	}
+
+	/**
+	 * @return <code>true</code> if the document is read from the standard output of wkhtmltopdf.
+	 */
+	public boolean isStreaming() {
+		return STDOUT.equals(getArgument());
+	}
+
+	/**
+	 * Writes a document that is already in memory, e.g. one served from a
+	 * cache, instead of one read from the process. The built-in sinks write
+	 * the buffer without copying it first where the target allows it.
+	 * 
+	 * @param document The document from its position to its limit, must not be <code>null</code>.
+	 * @return The number of bytes written.
+	 * @throws IOException If the document could not be written.
+	 */
+	public long write(ByteBuffer document) throws IOException {
+		return consume(new ByteBufferInputStream(document));
+	}
+
+	/**
+	 * Writes a document that is already in memory from the given array, e.g.
+	 * the backing array of a cache entry. The built-in sinks write the array
+	 * as it is, without copying it first; other sinks get a read-only view of
+	 * it by way of {@link #write(ByteBuffer)}, so they can not change it.
+	 * 
+	 * @param document The array holding the document, must not be <code>null</code>.
+	 * @param offset The offset of the document in the array.
+	 * @param length The length of the document.
+	 * @return The number of bytes written.
+	 * @throws IOException If the document could not be written.
+	 */
+	public long write(byte[] document, int offset, int length) throws IOException {
+		return write(ByteBuffer.wrap(document, offset, length).asReadOnlyBuffer());
+	}
+
+	static class FileSink extends OutputSink {
+
+		private final File file;
+
+		FileSink(File file) {
+			if (file == null) {
+				throw new NullPointerException("missing output file");
+			}
+			this.file = file;
+		}
+
+		@Override
+		public File getFile() {
+			return file;
+		}
+
+		@Override
+		public String getArgument() {
+			return file.getAbsolutePath();
+		}
+
+		@Override
+		public long write(ByteBuffer document) throws IOException {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				return writeFully(document, channel);
+			}
+		}
+
+		@Override
+		public long write(byte[] document, int offset, int length) throws IOException {
+			return write(ByteBuffer.wrap(document, offset, length));
+		}
+
+		public long consume(InputStream in) throws IOException {
+			// wkhtmltopdf writes the file itself, drain whatever it prints
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long count = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				count += n;
+			}
+			return count;
+		}
+
+	}
+
+	static class OutputStreamSink extends OutputSink {
+
+		private final OutputStream out;
+
+		OutputStreamSink(OutputStream out) {
+			if (out == null) {
+				throw new NullPointerException("missing output stream");
+			}
+			this.out = out;
+		}
+
+		@Override
+		public String getArgument() {
+			return STDOUT;
+		}
+
+		public long consume(InputStream in) throws IOException {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long count = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+				count += n;
+			}
+			out.flush();
+			return count;
+		}
+
+		@Override
+		public long write(ByteBuffer document) throws IOException {
+			int count = document.remaining();
+			if (document.hasArray()) {
+				out.write(document.array(), document.arrayOffset() + document.position(), count);
+				document.position(document.limit());
+			} else {
+				byte[] buffer = new byte[Math.min(count, BUFFER_SIZE)];
+				while (document.hasRemaining()) {
+					int n = Math.min(document.remaining(), buffer.length);
+					document.get(buffer, 0, n);
+					out.write(buffer, 0, n);
+				}
+			}
+			out.flush();
+			return count;
+		}
+
+		@Override
+		public long write(byte[] document, int offset, int length) throws IOException {
+			out.write(document, offset, length);
+			out.flush();
+			return length;
+		}
+
+	}
+
+	static class ChannelSink extends OutputSink {
+
+		private final WritableByteChannel channel;
+
+		ChannelSink(WritableByteChannel channel) {
+			if (channel == null) {
+				throw new NullPointerException("missing output channel");
+			}
+			this.channel = channel;
+		}
+
+		@Override
+		public String getArgument() {
+			return STDOUT;
+		}
+
+		public long consume(InputStream in) throws IOException {
+			ReadableByteChannel source = Channels.newChannel(in);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			long count = 0;
+			int n;
+			while ((n = source.read(buffer)) != -1) {
+				count += n;
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				buffer.clear();
+			}
+			return count;
+		}
+
+		@Override
+		public long write(ByteBuffer document) throws IOException {
+			return writeFully(document, channel);
+		}
+
+	}
+
+	static long writeFully(ByteBuffer document, WritableByteChannel channel) throws IOException {
+		long count = document.remaining();
+		while (document.hasRemaining()) {
+			channel.write(document);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a buffer as a stream, for sinks that only know how to consume one.
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+	}
+
+}
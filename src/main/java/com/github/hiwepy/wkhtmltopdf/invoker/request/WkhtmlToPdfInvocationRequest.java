@@ -17,6 +17,8 @@ package com.github.hiwepy.wkhtmltopdf.invoker.request;
 
 import java.io.File;
 
+import com.github.hiwepy.wkhtmltopdf.invoker.command.CompiledInvocationTemplate;
+
 public interface WkhtmlToPdfInvocationRequest extends InvocationRequest {
 
 	public boolean isDontDownloadStylesheets();
@@ -35,10 +37,14 @@ public interface WkhtmlToPdfInvocationRequest extends InvocationRequest {
 
 	public int getMaxRecursions();
 
-	public long getTimeout();
-
 	public String getURL();
 
+	public InputSource getInputSource();
+
+	public OutputSink getOutputSink();
+
+	public CompiledInvocationTemplate getCompiledTemplate();
+
 	/**
 	 * Set the value of the {@code base-dir} {@code true} if the argument
 	 * {@code --base-dir} was specified, otherwise {@code false}
@@ -88,14 +94,29 @@ public interface WkhtmlToPdfInvocationRequest extends InvocationRequest {
 	 */
 	InvocationRequest setMaxRecursions(int maxRecursions);
 
-	/**
-	 * Set the value of the {@code timeout} {@code true} if the argument
-	 * {@code --timeout} was specified, otherwise {@code false}
-	 */
-	InvocationRequest setTimeout(long timeout);
 	/**
 	 * Where URL is for example https://google.com
 	 */
 	InvocationRequest setURL(String url);
 
+	/**
+	 * Set the page read from standard input; it is passed as {@code -} after
+	 * the URL, if any, and pumped into the process while it starts.
+	 */
+	InvocationRequest setInputSource(InputSource inputSource);
+
+	/**
+	 * Set where the rendered document is written to; a streaming sink passes
+	 * {@code -} as the output argument and receives the standard output of
+	 * wkhtmltopdf.
+	 */
+	InvocationRequest setOutputSink(OutputSink outputSink);
+
+	/**
+	 * Set the template providing the command line of this request; only the
+	 * URL, the input source and the output sink of this request are appended
+	 * to it, its other options are ignored.
+	 */
+	InvocationRequest setCompiledTemplate(CompiledInvocationTemplate compiledTemplate);
+
 }
@@ -0,0 +1,179 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.plexus.util.Os;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * Coalesces renders of the wkhtmltopdf simulator of the benchmarks module. It
+ * is skipped unless the benchmarks jar is built or
+ * <code>FAKE_WKHTMLTOPDF_JAR</code> points to the simulator.
+ */
+public class CoalescingTest {
+
+	private static final File SCRIPTS = new File("benchmarks/src/main/scripts").getAbsoluteFile();
+
+	private static final String LATENCY_MS = "1500";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File processes;
+
+	private DefaultInvoker invoker;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue(!Os.isFamily("windows"));
+		assumeTrue(new File(SCRIPTS, "../../../target/benchmarks.jar").isFile() || System.getenv("FAKE_WKHTMLTOPDF_JAR") != null);
+
+		// counts the renders, not the version probes
+		File home = folder.newFolder("home");
+		processes = new File(folder.getRoot(), "processes.log");
+		File executable = new File(home, "wkhtmltopdf");
+		Files.write(executable.toPath(), ("#!/bin/sh\ncase \"$*\" in *--version*) ;; *) echo x >> '" + processes + "';; esac\n"
+				+ "exec '" + new File(SCRIPTS, "wkhtmltopdf") + "' \"$@\"\n").getBytes(StandardCharsets.UTF_8));
+		assertTrue(executable.setExecutable(true));
+
+		invoker = new DefaultInvoker();
+		invoker.setWkhtmltopdfHome(home);
+		invoker.setCoalescing(true);
+	}
+
+	@Test
+	public void testIdenticalRequestsShareOneProcess() throws Exception {
+		List<ByteArrayOutputStream> outs = new ArrayList<ByteArrayOutputStream>();
+		List<InvocationHandle> handles = new ArrayList<InvocationHandle>();
+		for (int i = 0; i < 4; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			outs.add(out);
+			handles.add(invoker.submit(request(OutputSink.toStream(out))));
+		}
+
+		for (int i = 0; i < 4; i++) {
+			InvocationResult result = handles.get(i).getResult();
+			assertNull(result.getExecutionException());
+			assertEquals(0, result.getExitCode());
+			assertTrue(new String(outs.get(i).toByteArray(), StandardCharsets.US_ASCII).startsWith("%PDF"));
+			assertArrayEquals(outs.get(0).toByteArray(), outs.get(i).toByteArray());
+		}
+		assertEquals(1, renders());
+	}
+
+	@Test
+	public void testCancelledLeaderStillRendersForFollower() throws Exception {
+		// probe the version up front, so the leader is rendering when the follower arrives
+		invoker.execute(request(OutputSink.toFile(new File(folder.getRoot(), "warmup.pdf"))));
+		int before = renders();
+
+		InvocationHandle leader = invoker.submit(request(OutputSink.toStream(new ByteArrayOutputStream())));
+		Thread.sleep(300);
+		File output = new File(folder.getRoot(), "follower.pdf");
+		InvocationHandle follower = invoker.submit(request(OutputSink.toFile(output)));
+		Thread.sleep(300);
+		leader.cancel();
+
+		assertTrue(leader.getResult().isCancelled());
+		InvocationResult result = follower.getResult();
+		assertNull(result.getExecutionException());
+		assertEquals(0, result.getExitCode());
+		assertTrue(new String(Files.readAllBytes(output.toPath()), StandardCharsets.US_ASCII).startsWith("%PDF"));
+		assertEquals(before + 1, renders());
+	}
+
+	@Test
+	public void testLeaderErrorFailsTheFollower() throws Exception {
+		DefaultInvoker failing = new DefaultInvoker() {
+
+			@Override
+			protected InvocationResult execute(InvocationRequest request, DefaultInvocationHandle handle) throws WkhtmlToPdfInvocationException {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new AssertionError("render crashed");
+			}
+
+		};
+		failing.setWkhtmltopdfHome(invoker.getWkhtmltopdfHome());
+		failing.setCoalescing(true);
+
+		InvocationHandle leader = failing.submit(request(OutputSink.toStream(new ByteArrayOutputStream())));
+		Thread.sleep(200);
+		InvocationHandle follower = failing.submit(request(OutputSink.toStream(new ByteArrayOutputStream())));
+
+		try {
+			follower.getResult();
+			fail("The render of the leader crashed.");
+		} catch (WkhtmlToPdfInvocationException e) {
+			assertTrue(e.getMessage(), e.getCause() instanceof AssertionError);
+		}
+		try {
+			leader.getResult();
+			fail("The render of the leader crashed.");
+		} catch (WkhtmlToPdfInvocationException e) {
+			assertTrue(e.getCause() instanceof AssertionError);
+		}
+	}
+
+	@Test
+	public void testLeaderAloneTakesOverTheRenderedFile() throws Exception {
+		File output = new File(folder.getRoot(), "out.pdf");
+
+		InvocationResult result = invoker.execute(request(OutputSink.toFile(output)));
+
+		assertEquals(0, result.getExitCode());
+		assertTrue(new String(Files.readAllBytes(output.toPath()), StandardCharsets.US_ASCII).startsWith("%PDF"));
+		// the file rendered next to the output was renamed, not copied
+		assertEquals(0, folder.getRoot().list(new FilenameFilter() {
+
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".tmp");
+			}
+
+		}).length);
+	}
+
+	private WkhtmlToPdfInvocationRequest request(OutputSink outputSink) {
+		WkhtmlToPdfInvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		// -n and -r are no wkhtmltopdf switches
+		request.setMaxFiles(0);
+		request.setMaxRecursions(0);
+		request.addShellEnvironment("FAKE_WKHTMLTOPDF_LATENCY_MS", LATENCY_MS);
+		request.setInputSource(InputSource.fromStream(new ByteArrayInputStream("<html>coalesced</html>".getBytes(StandardCharsets.UTF_8))));
+		request.setOutputSink(outputSink);
+		return request;
+	}
+
+	private int renders() throws IOException {
+		return processes.exists() ? Files.readAllLines(processes.toPath()).size() : 0;
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InvocationRequest;
+
+public class DeadlineTest {
+
+	@Test
+	public void testNoTimeoutByDefault() {
+		assertNull(Deadline.of(new DefaultWkhtmlToPdfInvocationRequest()));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testLegacyTimeoutIsInSeconds() {
+		InvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		request.setTimeout(30);
+
+		assertEquals(30000, request.getTimeout(TimeUnit.MILLISECONDS));
+		long remaining = Deadline.of(request).timeRemaining(TimeUnit.SECONDS);
+		assertTrue("remaining " + remaining, remaining > 20 && remaining <= 30);
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testTimeoutWithUnit() {
+		InvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		request.setTimeout(1500, TimeUnit.MILLISECONDS);
+
+		assertEquals(1500, request.getTimeout(TimeUnit.MILLISECONDS));
+		// the legacy getter rounds up, a short timeout does not read as none
+		assertEquals(2, request.getTimeout());
+		assertTrue(Deadline.of(request).timeRemaining(TimeUnit.MILLISECONDS) <= 1500);
+	}
+
+	@Test
+	public void testEarlierOfDeadlineAndTimeout() {
+		InvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		request.setTimeout(1, TimeUnit.HOURS);
+		request.setDeadline(Deadline.after(1, TimeUnit.MINUTES));
+
+		assertTrue(Deadline.of(request).timeRemaining(TimeUnit.SECONDS) <= 60);
+	}
+
+}
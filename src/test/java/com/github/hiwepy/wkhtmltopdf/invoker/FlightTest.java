@@ -0,0 +1,176 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.cache.RequestFingerprint;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+public class FlightTest {
+
+	private static final byte[] DOCUMENT = "%PDF-1.4 document".getBytes(StandardCharsets.US_ASCII);
+
+	private final ConcurrentMap<RequestFingerprint, Flight> flights = new ConcurrentHashMap<RequestFingerprint, Flight>();
+
+	private final RequestFingerprint fingerprint = RequestFingerprint
+			.valueOf("0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+
+	@Test
+	public void testRenderIsCancelledWhenTheLastWaiterLeaves() throws Exception {
+		Flight.Waiter leader = join();
+		Flight.Waiter follower = join();
+		Flight flight = leader.getFlight();
+		assertTrue(leader.isLeader());
+		assertFalse(follower.isLeader());
+		assertSame(flight, follower.getFlight());
+		final AtomicBoolean killed = new AtomicBoolean();
+		assertTrue(flight.getHandle().attach(new Runnable() {
+
+			public void run() {
+				killed.set(true);
+			}
+
+		}));
+
+		leader.leave();
+		assertFalse("The follower still waits for the render.", killed.get());
+		// leaving twice does not count twice
+		leader.leave();
+		assertFalse(killed.get());
+
+		follower.leave();
+		assertTrue(killed.get());
+		assertTrue(flight.getHandle().isCancelled());
+		assertTrue(flights.isEmpty());
+		assertNotSame(flight, join().getFlight());
+	}
+
+	@Test
+	public void testCompletedFlightTakesNoWaiters() throws Exception {
+		Flight.Waiter leader = join();
+		Flight flight = leader.getFlight();
+		Path output = flight.createOutput(null);
+		InvocationResult result = new DefaultInvocationResult();
+
+		flight.complete(result, null);
+
+		assertTrue(flight.await(Deadline.after(1, TimeUnit.SECONDS)));
+		assertSame(result, flight.getResult());
+		Flight.Waiter late = join();
+		assertTrue(late.isLeader());
+		assertNotSame(flight, late.getFlight());
+		assertTrue(Files.exists(output));
+		// the last waiter of the finished flight deletes its output
+		leader.leave();
+		assertFalse(Files.exists(output));
+		assertFalse(flight.getHandle().isCancelled());
+	}
+
+	@Test
+	public void testLeaderErrorReachesTheFollowers() throws Exception {
+		Flight.Waiter leader = join();
+		Flight.Waiter follower = join();
+		Flight flight = leader.getFlight();
+		Error error = new OutOfMemoryError("rendering");
+
+		flight.complete(null, error);
+
+		assertTrue(follower.getFlight().await(Deadline.after(1, TimeUnit.SECONDS)));
+		assertSame(error, flight.getFailure());
+		assertNull(flight.getResult());
+		leader.leave();
+		follower.leave();
+	}
+
+	@Test
+	public void testFlightWithoutResultFails() throws Exception {
+		Flight.Waiter leader = join();
+		Flight flight = leader.getFlight();
+
+		flight.complete(null, null);
+
+		assertNotNull(flight.getFailure());
+		leader.leave();
+	}
+
+	@Test
+	public void testAwaitUntilDeadline() throws Exception {
+		join();
+		Flight.Waiter follower = join();
+
+		assertFalse(follower.getFlight().await(Deadline.after(50, TimeUnit.MILLISECONDS)));
+	}
+
+	@Test
+	public void testDocumentStreamsToALeaderAloneWithoutSpool() throws Exception {
+		Flight.Waiter leader = join();
+		Flight flight = leader.getFlight();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		flight.newStreamSink(OutputSink.toStream(out)).consume(new ByteArrayInputStream(DOCUMENT));
+
+		assertArrayEquals(DOCUMENT, out.toByteArray());
+		assertNull(flight.getOutput());
+		// nobody can join anymore, the document is not kept
+		assertNotSame(flight, join().getFlight());
+		assertTrue(flight.isLeaderAlone());
+	}
+
+	@Test
+	public void testDocumentIsSpooledForFollowers() throws Exception {
+		Flight.Waiter leader = join();
+		Flight.Waiter follower = join();
+		Flight flight = leader.getFlight();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		flight.newStreamSink(OutputSink.toStream(out)).consume(new ByteArrayInputStream(DOCUMENT));
+
+		assertArrayEquals(DOCUMENT, out.toByteArray());
+		assertArrayEquals(DOCUMENT, Files.readAllBytes(flight.getOutput()));
+		assertFalse(flight.isLeaderAlone());
+		flight.complete(new DefaultInvocationResult(), null);
+		leader.leave();
+		follower.leave();
+		assertFalse(Files.exists(flight.getOutput()));
+	}
+
+	@Test
+	public void testDocumentIsSpooledAfterTheLeaderLeft() throws Exception {
+		Flight.Waiter leader = join();
+		Flight.Waiter follower = join();
+		Flight flight = leader.getFlight();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		leader.leave();
+
+		flight.newStreamSink(OutputSink.toStream(out)).consume(new ByteArrayInputStream(DOCUMENT));
+
+		assertEquals(0, out.size());
+		assertArrayEquals(DOCUMENT, Files.readAllBytes(flight.getOutput()));
+		flight.complete(new DefaultInvocationResult(), null);
+		follower.leave();
+		assertFalse(Files.exists(flight.getOutput()));
+	}
+
+	private Flight.Waiter join() {
+		return Flight.join(flights, fingerprint, null);
+	}
+
+}
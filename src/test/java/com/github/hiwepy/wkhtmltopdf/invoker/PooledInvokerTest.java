@@ -0,0 +1,251 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.InvocationRejectedException;
+import com.github.hiwepy.wkhtmltopdf.invoker.exception.WkhtmlToPdfInvocationException;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+
+public class PooledInvokerTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testAdmitsUpToMaxProcesses() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(2, 0, 1000);
+
+		assertTrue(invoker.acquireSlot(null));
+		assertTrue(invoker.acquireSlot(null));
+		assertEquals(2, invoker.getActiveCount());
+		try {
+			invoker.acquireSlot(null);
+			fail("Without a queue the third invocation is shed at once.");
+		} catch (InvocationRejectedException e) {
+			// expected
+		}
+		assertEquals(2, invoker.getAdmittedCount());
+		assertEquals(1, invoker.getRejectedCount());
+		assertEquals(0, invoker.getQueueDepth());
+
+		invoker.releaseSlot();
+		assertEquals(1, invoker.getActiveCount());
+	}
+
+	@Test
+	public void testQueuedInvocationIsAdmittedWhenASlotFrees() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 5000);
+		assertTrue(invoker.acquireSlot(null));
+
+		Future<Boolean> queued = acquireAsync(invoker, null);
+		awaitQueueDepth(invoker, 1);
+		invoker.releaseSlot();
+
+		assertTrue(queued.get(5, TimeUnit.SECONDS));
+		assertEquals(0, invoker.getQueueDepth());
+		assertEquals(2, invoker.getAdmittedCount());
+		assertEquals(1, invoker.getActiveCount());
+	}
+
+	@Test
+	public void testFullQueueRejects() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 5000);
+		assertTrue(invoker.acquireSlot(null));
+		Future<Boolean> queued = acquireAsync(invoker, null);
+		awaitQueueDepth(invoker, 1);
+
+		long start = System.nanoTime();
+		try {
+			invoker.acquireSlot(null);
+			fail("The queue is full.");
+		} catch (InvocationRejectedException e) {
+			// rejected without waiting for the queue timeout
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		}
+		assertEquals(1, invoker.getRejectedCount());
+
+		invoker.releaseSlot();
+		assertTrue(queued.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testQueueTimeoutRejects() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 100);
+		assertTrue(invoker.acquireSlot(null));
+
+		try {
+			invoker.acquireSlot(null);
+			fail("No slot became free within the queue timeout.");
+		} catch (InvocationRejectedException e) {
+			// expected
+		}
+		assertEquals(1, invoker.getRejectedCount());
+		assertEquals(0, invoker.getQueueDepth());
+		assertTrue(invoker.getMaxQueueWaitTime(TimeUnit.MILLISECONDS) >= 90);
+	}
+
+	@Test
+	public void testDeadlineShorterThanQueueTimeout() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 5000);
+		assertTrue(invoker.acquireSlot(null));
+
+		long start = System.nanoTime();
+		// the invocation runs out of time, it is not rejected for saturation
+		assertFalse(invoker.acquireSlot(Deadline.after(100, TimeUnit.MILLISECONDS)));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+		assertEquals(0, invoker.getRejectedCount());
+		assertEquals(0, invoker.getQueueDepth());
+	}
+
+	@Test
+	public void testInterruptWhileQueued() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 5000);
+		assertTrue(invoker.acquireSlot(null));
+
+		Future<Boolean> queued = acquireAsync(invoker, null);
+		awaitQueueDepth(invoker, 1);
+		queued.cancel(true);
+		awaitQueueDepth(invoker, 0);
+
+		assertEquals(1, invoker.getAdmittedCount());
+		assertEquals(0, invoker.getRejectedCount());
+	}
+
+	@Test
+	public void testQueuedSubmissionHoldsNoThread() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 5000);
+		List<Runnable> dispatched = recordDispatches(invoker);
+		assertTrue(invoker.acquireSlot(null));
+
+		InvocationHandle handle = invoker.submit(new DefaultWkhtmlToPdfInvocationRequest());
+		assertTrue(dispatched.isEmpty());
+		assertEquals(1, invoker.getQueueDepth());
+
+		// the slot is handed over and the invocation is dispatched with it
+		invoker.releaseSlot();
+		assertEquals(1, dispatched.size());
+		assertEquals(0, invoker.getQueueDepth());
+		assertEquals(1, invoker.getActiveCount());
+		assertEquals(2, invoker.getAdmittedCount());
+
+		// an invocation that ends before it reaches the process frees its slot
+		handle.cancel();
+		dispatched.get(0).run();
+		assertEquals(0, invoker.getActiveCount());
+	}
+
+	@Test
+	public void testCancelledSubmissionLeavesTheQueue() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 5000);
+		List<Runnable> dispatched = recordDispatches(invoker);
+		assertTrue(invoker.acquireSlot(null));
+
+		InvocationHandle handle = invoker.submit(new DefaultWkhtmlToPdfInvocationRequest());
+		assertTrue(handle.cancel());
+		assertTrue(handle.getResult().isCancelled());
+		assertEquals(0, invoker.getQueueDepth());
+
+		invoker.releaseSlot();
+		assertTrue(dispatched.isEmpty());
+		assertEquals(0, invoker.getActiveCount());
+	}
+
+	@Test
+	public void testQueuedSubmissionTimesOut() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 1, 100);
+		List<Runnable> dispatched = recordDispatches(invoker);
+		assertTrue(invoker.acquireSlot(null));
+
+		InvocationHandle handle = invoker.submit(new DefaultWkhtmlToPdfInvocationRequest());
+		try {
+			handle.toCompletableFuture().get(5, TimeUnit.SECONDS);
+			fail("No slot became free within the queue timeout.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof InvocationRejectedException);
+		}
+		assertEquals(1, invoker.getRejectedCount());
+		assertEquals(0, invoker.getQueueDepth());
+
+		invoker.releaseSlot();
+		assertTrue(dispatched.isEmpty());
+		assertEquals(0, invoker.getActiveCount());
+	}
+
+	@Test
+	public void testFullQueueRejectsSubmission() throws Exception {
+		PooledInvoker invoker = new PooledInvoker(1, 0, 5000);
+		List<Runnable> dispatched = recordDispatches(invoker);
+		assertTrue(invoker.acquireSlot(null));
+
+		InvocationHandle handle = invoker.submit(new DefaultWkhtmlToPdfInvocationRequest());
+		try {
+			handle.getResult(0, TimeUnit.SECONDS);
+			fail("Without a queue the invocation is shed at once.");
+		} catch (InvocationRejectedException e) {
+			// expected
+		}
+		assertEquals(1, invoker.getRejectedCount());
+		assertTrue(dispatched.isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaxProcessesMustBePositive() {
+		new PooledInvoker(0);
+	}
+
+	private Future<Boolean> acquireAsync(final PooledInvoker invoker, final Deadline deadline) {
+		return executor.submit(new Callable<Boolean>() {
+
+			public Boolean call() throws WkhtmlToPdfInvocationException {
+				return invoker.acquireSlot(deadline);
+			}
+
+		});
+	}
+
+	/**
+	 * Makes the invoker record the tasks it dispatches instead of running them.
+	 */
+	private static List<Runnable> recordDispatches(PooledInvoker invoker) {
+		final List<Runnable> dispatched = new ArrayList<Runnable>();
+		invoker.setExecutor(new Executor() {
+
+			public void execute(Runnable command) {
+				dispatched.add(command);
+			}
+
+		});
+		return dispatched;
+	}
+
+	private static void awaitQueueDepth(PooledInvoker invoker, int depth) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (invoker.getQueueDepth() != depth) {
+			if (System.nanoTime() > deadline) {
+				fail("Queue depth did not reach " + depth + ", it is " + invoker.getQueueDepth());
+			}
+			Thread.sleep(5);
+		}
+	}
+
+}
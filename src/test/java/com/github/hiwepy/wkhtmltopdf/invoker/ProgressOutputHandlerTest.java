@@ -0,0 +1,112 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProgressOutputHandlerTest {
+
+	private final List<ProgressEvent> events = new ArrayList<ProgressEvent>();
+
+	private final List<String> forwarded = new ArrayList<String>();
+
+	private final ProgressOutputHandler handler = new ProgressOutputHandler(new ProgressListener() {
+
+		public void progressChanged(ProgressEvent event) {
+			events.add(event);
+		}
+
+	}, new InvocationOutputHandler() {
+
+		public void consumeLine(String line) {
+			forwarded.add(line);
+		}
+
+	});
+
+	@Test
+	public void testPhase() throws Exception {
+		handler.consumeLine("Loading pages (1/6)");
+
+		assertEquals(1, events.size());
+		ProgressEvent event = events.get(0);
+		assertEquals("Loading pages", event.getPhase());
+		assertEquals(1, event.getPhaseIndex());
+		assertEquals(6, event.getPhaseCount());
+		assertEquals(-1, event.getPercent());
+		assertFalse(event.isDone());
+		assertTrue(forwarded.isEmpty());
+	}
+
+	@Test
+	public void testPercentBarRedrawnWithCarriageReturns() throws Exception {
+		handler.consumeLine("Loading pages (1/6)");
+		handler.consumeLine("[>           ] 0%\r[=====>      ] 40%\r[=====>      ] 40%\r[============] 100%");
+
+		// the repeated redraw does not change the progress
+		assertEquals(4, events.size());
+		assertEquals(0, events.get(1).getPercent());
+		assertEquals(40, events.get(2).getPercent());
+		assertEquals(100, events.get(3).getPercent());
+		assertEquals("Loading pages", events.get(3).getPhase());
+	}
+
+	@Test
+	public void testPageCount() throws Exception {
+		byte[] output = ("Printing pages (6/6)\n[>      ] Preparing\r[===>   ] Page 1 of 2\r[=======] Page 2 of 2\nDone\n")
+				.getBytes(StandardCharsets.US_ASCII);
+
+		assertEquals(output.length, handler.consume(new ByteArrayInputStream(output)));
+
+		assertEquals(4, events.size());
+		assertEquals("Printing pages", events.get(1).getPhase());
+		assertEquals(1, events.get(1).getCurrent());
+		assertEquals(2, events.get(1).getTotal());
+		assertEquals(2, events.get(2).getCurrent());
+		ProgressEvent done = events.get(3);
+		assertTrue(done.isDone());
+		assertEquals(100, done.getPercent());
+		assertEquals(6, done.getPhaseIndex());
+		assertTrue(forwarded.isEmpty());
+	}
+
+	@Test
+	public void testObjectCount() throws Exception {
+		handler.consumeLine("Counting pages (2/6)");
+		handler.consumeLine("[=======] Object 3 of 4");
+
+		assertEquals(3, events.get(1).getCurrent());
+		assertEquals(4, events.get(1).getTotal());
+	}
+
+	@Test
+	public void testOtherLinesAreForwarded() throws Exception {
+		handler.consumeLine("Warning: Failed to load file:///missing.css (ignore)");
+		handler.consumeLine("Error: Failed loading page http://example.com (sometimes it will work)");
+		handler.consumeLine("Exit with code 1 due to network error: HostNotFoundError");
+
+		assertTrue(events.isEmpty());
+		assertEquals(Arrays.asList("Warning: Failed to load file:///missing.css (ignore)",
+				"Error: Failed loading page http://example.com (sometimes it will work)",
+				"Exit with code 1 due to network error: HostNotFoundError"), forwarded);
+	}
+
+	@Test
+	public void testMalformedProgressIsForwarded() throws Exception {
+		handler.consumeLine("Loading pages (x/6)");
+		handler.consumeLine("Loading pages (1/)");
+		handler.consumeLine("[=====");
+
+		assertTrue(events.isEmpty());
+		assertEquals(3, forwarded.size());
+	}
+
+}
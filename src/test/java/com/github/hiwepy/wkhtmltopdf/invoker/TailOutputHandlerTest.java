@@ -0,0 +1,72 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TailOutputHandlerTest {
+
+	@Test
+	public void testKeepsEverythingBelowCapacity() {
+		TailOutputHandler handler = new TailOutputHandler(64, StandardCharsets.UTF_8);
+		handler.consumeLine("Loading pages (1/6)");
+		handler.consumeLine("Done");
+
+		assertEquals("Loading pages (1/6)\nDone\n", handler.getTail());
+		assertEquals(Arrays.asList("Loading pages (1/6)", "Done"), handler.getTailLines());
+		assertEquals(25, handler.getTotalBytes());
+		assertFalse(handler.isTruncated());
+	}
+
+	@Test
+	public void testWrapsAroundAndDropsThePartialLine() {
+		TailOutputHandler handler = new TailOutputHandler(16, StandardCharsets.UTF_8);
+		handler.consumeLine("0123456789");
+		handler.consumeLine("abcdef");
+		handler.consumeLine("Error: x");
+
+		// 27 bytes written, the last 16 survive in write order
+		assertArrayEquals("abcdef\nError: x\n".getBytes(StandardCharsets.UTF_8), handler.getTailBytes());
+		assertTrue(handler.isTruncated());
+		assertEquals(27, handler.getTotalBytes());
+		assertEquals("Error: x\n", handler.getTail());
+	}
+
+	@Test
+	public void testChunkLargerThanTheRing() throws Exception {
+		TailOutputHandler handler = new TailOutputHandler(8, StandardCharsets.UTF_8);
+		byte[] output = "[=====>   ] 50%\r[=========] 100%\nDone\n".getBytes(StandardCharsets.UTF_8);
+
+		assertEquals(output.length, handler.consume(new ByteArrayInputStream(output)));
+
+		assertArrayEquals(Arrays.copyOfRange(output, output.length - 8, output.length), handler.getTailBytes());
+		assertEquals(Arrays.asList("Done"), handler.getTailLines());
+	}
+
+	@Test
+	public void testCarriageReturnsSplitLines() {
+		TailOutputHandler handler = new TailOutputHandler(128, StandardCharsets.UTF_8);
+		handler.consumeLine("[==>  ] Page 1 of 2\r[=====] Page 2 of 2");
+
+		assertEquals(Arrays.asList("[==>  ] Page 1 of 2", "[=====] Page 2 of 2"), handler.getTailLines());
+	}
+
+	@Test
+	public void testClear() {
+		TailOutputHandler handler = new TailOutputHandler(4, StandardCharsets.UTF_8);
+		handler.consumeLine("overflow");
+		handler.clear();
+
+		assertEquals("", handler.getTail());
+		assertEquals(0, handler.getTotalBytes());
+		assertFalse(handler.isInterestedInProgress());
+	}
+
+}
@@ -0,0 +1,358 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WkhtmlToPdfSessionTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testArgumentLineQuoting() {
+		String line = WkhtmlToPdfSession.toArgumentLine(Arrays.asList("page one.html", "say \"hi\"", "C:\\tmp\\out.pdf"));
+
+		assertEquals("\"page one.html\" \"say \\\"hi\\\"\" \"C:\\\\tmp\\\\out.pdf\"", line);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testArgumentLineRejectsLineBreaks() {
+		WkhtmlToPdfSession.toArgumentLine(Arrays.asList("page\n.html", "out.pdf"));
+	}
+
+	@Test
+	public void testArgumentLineLength() {
+		char[] path = new char[WkhtmlToPdfSession.MAX_LINE_LENGTH - 2];
+		Arrays.fill(path, 'a');
+		// two quotes and the line break fill the buffer exactly
+		WkhtmlToPdfSession.toArgumentLine(Collections.singletonList(new String(path, 0, path.length - 1)));
+		try {
+			WkhtmlToPdfSession.toArgumentLine(Collections.singletonList(new String(path)));
+			fail("The line does not fit into the buffer of wkhtmltopdf.");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains(String.valueOf(WkhtmlToPdfSession.MAX_LINE_LENGTH)));
+		}
+	}
+
+	@Test
+	public void testSessionArguments() {
+		WkhtmlToPdfSession.checkSessionArguments(new String[] { "--log-level", "info", "--zoom", "1.5" });
+		for (String[] arguments : Arrays.asList(new String[] { "--quiet" }, new String[] { "-q" },
+				new String[] { "--log-level", "none" }, new String[] { "--log-level", "warn" })) {
+			try {
+				WkhtmlToPdfSession.checkSessionArguments(arguments);
+				fail("The jobs of a session with " + Arrays.toString(arguments) + " can not be told apart.");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testJobsCompleteInSubmissionOrder() throws Exception {
+		FakeProcess process = new FakeProcess();
+		WkhtmlToPdfSession session = new WkhtmlToPdfSession(process, 3, null, null, new SystemOutLogger(), null);
+
+		File first = folder.newFile("first.pdf");
+		File second = new File(folder.getRoot(), "second.pdf");
+		File third = new File(folder.getRoot(), "third.pdf");
+		CompletableFuture<InvocationResult> f1 = session.submit(first, "a.html");
+		CompletableFuture<InvocationResult> f2 = session.submit(second, "b.html");
+		CompletableFuture<InvocationResult> f3 = session.submit(third, "c.html");
+		// the stale output file was removed before the job was written
+		assertFalse(first.exists());
+		assertTrue(first.createNewFile());
+
+		process.error("Loading pages (1/6)", "Printing pages (6/6)", "Done",
+				"Loading pages (1/6)", "Error: Failed loading page b.html", "Exit with code 1 due to network error: HostNotFoundError", "Done",
+				"Loading pages (1/6)", "Done");
+
+		InvocationResult done = f1.get(5, TimeUnit.SECONDS);
+		assertEquals(0, done.getExitCode());
+		assertNull(done.getExecutionException());
+		InvocationResult failed = f2.get(5, TimeUnit.SECONDS);
+		assertEquals(1, failed.getExitCode());
+		assertTrue(failed.getExecutionException().getMessage().contains("Failed loading page b.html"));
+		// wkhtmltopdf reported the job as done without writing the output
+		assertTrue(f3.get(5, TimeUnit.SECONDS).getExecutionException().getMessage().contains(third.getPath()));
+
+		assertEquals(1, session.getCompletedJobs());
+		assertEquals(2, session.getFailedJobs());
+		assertEquals("\"a.html\" \"" + first.getAbsolutePath() + "\"\n\"b.html\" \"" + second.getAbsolutePath()
+				+ "\"\n\"c.html\" \"" + third.getAbsolutePath() + "\"\n", process.input());
+
+		process.exit(0);
+	}
+
+	@Test
+	public void testJobWithoutDoneFailsWhenTheNextStarts() throws Exception {
+		FakeProcess process = new FakeProcess();
+		WkhtmlToPdfSession session = new WkhtmlToPdfSession(process, 3, null, null, new SystemOutLogger(), null);
+
+		File first = new File(folder.getRoot(), "first.pdf");
+		File second = new File(folder.getRoot(), "second.pdf");
+		CompletableFuture<InvocationResult> f1 = session.submit(first, "a.html");
+		CompletableFuture<InvocationResult> f2 = session.submit(second, "b.html");
+		assertTrue(second.createNewFile());
+
+		process.error("Loading pages (1/6)", "Error: Unable to write to destination", "Loading pages (1/6)", "Done");
+
+		assertTrue(f1.get(5, TimeUnit.SECONDS).getExecutionException().getMessage().contains("Unable to write to destination"));
+		assertEquals(0, f2.get(5, TimeUnit.SECONDS).getExitCode());
+
+		process.exit(0);
+	}
+
+	@Test
+	public void testExitFailsOutstandingJobs() throws Exception {
+		FakeProcess process = new FakeProcess();
+		WkhtmlToPdfSession session = new WkhtmlToPdfSession(process, 3, null, null, new SystemOutLogger(), null);
+
+		CompletableFuture<InvocationResult> f1 = session.submit(new File(folder.getRoot(), "first.pdf"), "a.html");
+		CompletableFuture<InvocationResult> f2 = session.submit(new File(folder.getRoot(), "second.pdf"), "b.html");
+
+		process.error("Loading pages (1/6)");
+		process.exit(139);
+
+		assertEquals(139, f1.get(5, TimeUnit.SECONDS).getExitCode());
+		assertEquals(139, f2.get(5, TimeUnit.SECONDS).getExitCode());
+		assertFalse(session.isOpen());
+		assertTrue(session.submit(new File(folder.getRoot(), "third.pdf"), "c.html").get().getExecutionException() != null);
+	}
+
+	@Test
+	public void testTooManyArguments() throws Exception {
+		FakeProcess process = new FakeProcess();
+		WkhtmlToPdfSession session = new WkhtmlToPdfSession(process, WkhtmlToPdfSession.MAX_ARGUMENTS - 2, null, null,
+				new SystemOutLogger(), null);
+
+		try {
+			session.submit(new File(folder.getRoot(), "out.pdf"), "a.html").get();
+			fail("The job does not fit into the argument array of wkhtmltopdf.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertEquals("", process.input());
+
+		process.exit(0);
+	}
+
+	@Test
+	public void testBacklogLargerThanThePipe() throws Exception {
+		final PipeProcess process = new PipeProcess();
+		final WkhtmlToPdfSession session = new WkhtmlToPdfSession(process, 3, null, null, new SystemOutLogger(), null);
+
+		// the lines of the backlog overflow the standard input while the progress overflows the error output
+		ExecutorService submitter = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<CompletableFuture<InvocationResult>>> submitted = submitter.submit(new Callable<List<CompletableFuture<InvocationResult>>>() {
+
+				public List<CompletableFuture<InvocationResult>> call() {
+					List<CompletableFuture<InvocationResult>> jobs = new ArrayList<CompletableFuture<InvocationResult>>();
+					for (int i = 0; i < 200; i++) {
+						jobs.add(session.submit(new File(folder.getRoot(), "page-" + i + ".pdf"), "page-" + i + ".html"));
+					}
+					return jobs;
+				}
+
+			});
+			for (CompletableFuture<InvocationResult> job : submitted.get(10, TimeUnit.SECONDS)) {
+				assertEquals(0, job.get(10, TimeUnit.SECONDS).getExitCode());
+			}
+			assertEquals(200, session.getCompletedJobs());
+		} finally {
+			submitter.shutdownNow();
+			process.destroy();
+		}
+	}
+
+	/**
+	 * A process whose error output is written by the test.
+	 */
+	static class FakeProcess extends Process {
+
+		private final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+
+		private final PipedOutputStream stdoutWriter = new PipedOutputStream();
+
+		private final PipedOutputStream stderrWriter = new PipedOutputStream();
+
+		private final PipedInputStream stdout;
+
+		private final PipedInputStream stderr;
+
+		private final CountDownLatch exited = new CountDownLatch(1);
+
+		private volatile int exitCode;
+
+		FakeProcess() throws IOException {
+			stdout = new PipedInputStream(stdoutWriter);
+			stderr = new PipedInputStream(stderrWriter);
+		}
+
+		void error(String... lines) throws IOException {
+			for (String line : lines) {
+				stderrWriter.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			stderrWriter.flush();
+		}
+
+		void exit(int exitCode) throws IOException {
+			this.exitCode = exitCode;
+			exited.countDown();
+			stdoutWriter.close();
+			stderrWriter.close();
+		}
+
+		String input() {
+			synchronized (stdin) {
+				return new String(stdin.toByteArray(), StandardCharsets.UTF_8);
+			}
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return new OutputStream() {
+
+				@Override
+				public void write(int b) {
+					synchronized (stdin) {
+						stdin.write(b);
+					}
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					synchronized (stdin) {
+						stdin.write(b, off, len);
+					}
+				}
+
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return stdout;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return stderr;
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			exited.await();
+			return exitCode;
+		}
+
+		@Override
+		public int exitValue() {
+			if (exited.getCount() > 0) {
+				throw new IllegalThreadStateException();
+			}
+			return exitCode;
+		}
+
+		@Override
+		public void destroy() {
+			exitCode = 143;
+			exited.countDown();
+		}
+
+	}
+
+	/**
+	 * A process converting the jobs it reads like wkhtmltopdf, with pipes much
+	 * smaller than the ones of the operating system.
+	 */
+	static class PipeProcess extends FakeProcess {
+
+		private final PipedOutputStream stdinWriter = new PipedOutputStream();
+
+		private final PipedInputStream stdinReader = new PipedInputStream(stdinWriter, 256);
+
+		private final PipedOutputStream errorWriter = new PipedOutputStream();
+
+		private final PipedInputStream errorReader = new PipedInputStream(errorWriter, 64);
+
+		private final Thread converter = new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					BufferedReader jobs = new BufferedReader(new InputStreamReader(stdinReader, StandardCharsets.UTF_8));
+					String line;
+					while ((line = jobs.readLine()) != null) {
+						String output = line.substring(line.lastIndexOf('"', line.length() - 2) + 1, line.length() - 1);
+						new File(output).createNewFile();
+						errorWriter.write("Loading pages (1/6)\nPrinting pages (6/6)\nDone\n".getBytes(StandardCharsets.UTF_8));
+						errorWriter.flush();
+					}
+					errorWriter.close();
+				} catch (IOException e) {
+					// destroyed
+				}
+			}
+
+		});
+
+		PipeProcess() throws IOException {
+			converter.setDaemon(true);
+			converter.start();
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return stdinWriter;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return errorReader;
+		}
+
+		@Override
+		public boolean isAlive() {
+			return converter.isAlive();
+		}
+
+		@Override
+		public void destroy() {
+			super.destroy();
+			converter.interrupt();
+		}
+
+	}
+
+}
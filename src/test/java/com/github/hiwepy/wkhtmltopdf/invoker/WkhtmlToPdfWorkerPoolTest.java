@@ -0,0 +1,85 @@
+package com.github.hiwepy.wkhtmltopdf.invoker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.Os;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+/**
+ * Runs jobs on workers of the wkhtmltopdf simulator of the benchmarks module.
+ * It is skipped unless the benchmarks jar is built or
+ * <code>FAKE_WKHTMLTOPDF_JAR</code> points to the simulator.
+ */
+public class WkhtmlToPdfWorkerPoolTest {
+
+	private static final File SCRIPTS = new File("benchmarks/src/main/scripts").getAbsoluteFile();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private WkhtmlToPdfWorkerPool pool;
+
+	private File page;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue(!Os.isFamily("windows"));
+		assumeTrue(new File(SCRIPTS, "../../../target/benchmarks.jar").isFile() || System.getenv("FAKE_WKHTMLTOPDF_JAR") != null);
+
+		DefaultInvoker invoker = new DefaultInvoker();
+		invoker.setWkhtmltopdfHome(SCRIPTS);
+		WkhtmlToPdfInvocationRequest template = new DefaultWkhtmlToPdfInvocationRequest();
+		// -n and -r are no wkhtmltopdf switches
+		template.setMaxFiles(0);
+		template.setMaxRecursions(0);
+		template.addShellEnvironment("FAKE_WKHTMLTOPDF_LATENCY_MS", "1000");
+		pool = new WkhtmlToPdfWorkerPool(invoker, template, 1);
+
+		page = folder.newFile("page.html");
+		Files.write(page.toPath(), "<html>pooled</html>".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@After
+	public void tearDown() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testTimedOutWorkerIsNoCrash() throws Exception {
+		File out = new File(folder.getRoot(), "timed-out.pdf");
+		InvocationResult result = pool.execute(Arrays.asList(page.getPath(), out.getPath()), Deadline.after(200, TimeUnit.MILLISECONDS));
+
+		assertTrue(result.isTimedOut());
+		assertEquals(1, pool.getTimedOutWorkers());
+		assertEquals(0, pool.getCrashedWorkers());
+		assertEquals(0, pool.getIdleWorkers());
+
+		// the next job starts a new worker
+		out = new File(folder.getRoot(), "rendered.pdf");
+		result = pool.execute(Arrays.asList(page.getPath(), out.getPath()));
+
+		assertEquals(0, result.getExitCode());
+		assertTrue(out.length() > 0);
+		assertEquals(2, pool.getStartedWorkers());
+		assertEquals(1, pool.getTimedOutWorkers());
+		assertEquals(0, pool.getCrashedWorkers());
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.github.hiwepy.wkhtmltopdf.invoker.asset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AssetLocalizerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private HttpServer server;
+
+	private String base;
+
+	private AssetLocalizer localizer;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				byte[] body = "PNG".getBytes(StandardCharsets.US_ASCII);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				exchange.close();
+			}
+
+		});
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+		localizer = new AssetLocalizer(new AssetFetcher(new AssetStore(folder.newFolder("store"))));
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testRelativeReferencesResolvedAgainstBaseUri() throws Exception {
+		String page = localize("<img src=\"logo.png\">", base);
+
+		assertTrue(page, page.contains("file:"));
+		assertFalse(page.contains("logo.png"));
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testRelativeReferencesResolvedAgainstBaseHref() throws Exception {
+		String page = localize("<html><head><base href=\"" + base + "\"></head><body><img src=\"logo.png\"></body></html>", null);
+
+		assertTrue(page, page.contains("file:"));
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testRelativeReferencesOfStdinPageAreSkipped() throws Exception {
+		String page = localize("<img src=\"logo.png\"><img src=\"" + base + "logo.png\">", null);
+
+		// the absolute reference is localized, the relative one is left as it is
+		assertTrue(page, page.contains("src=\"logo.png\""));
+		assertFalse(page.contains(base));
+		assertEquals(1, requests.get());
+	}
+
+	private String localize(String html, String baseUri) throws Exception {
+		InputSource page = InputSource.fromStream(new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)));
+		InputSource localized = baseUri == null ? localizer.localize(page, 5, TimeUnit.SECONDS)
+				: localizer.localize(page, baseUri, 5, TimeUnit.SECONDS);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		localized.produce(out);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+public class DiskRenderCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testCommittedEntryIsDelivered() throws Exception {
+		DiskRenderCache cache = new DiskRenderCache(folder.getRoot());
+
+		assertFalse(deliver(cache, "a", new ByteArrayOutputStream()));
+		put(cache, "a", "%PDF-a");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(deliver(cache, "a", out));
+		assertEquals("%PDF-a", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+		File file = folder.newFile("a.pdf");
+		assertTrue(cache.deliver(fingerprint("a"), OutputSink.toFile(file)));
+		assertEquals("%PDF-a", new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testUncommittedEntryIsDiscarded() throws Exception {
+		DiskRenderCache cache = new DiskRenderCache(folder.getRoot());
+
+		RenderCache.EntryWriter writer = cache.stage(fingerprint("a"));
+		writer.write("%PDF-partial".getBytes(StandardCharsets.US_ASCII));
+		writer.close();
+
+		assertFalse(deliver(cache, "a", new ByteArrayOutputStream()));
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, folder.getRoot().toPath().resolve(".staging").toFile().list().length);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+		DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 10);
+		put(cache, "a", "1234");
+		put(cache, "b", "1234");
+		// a is used more recently than b now
+		assertTrue(deliver(cache, "a", new ByteArrayOutputStream()));
+		put(cache, "c", "1234");
+
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(8, cache.getSize());
+		assertEquals(1, cache.getEvictionCount());
+		assertFalse(Files.exists(path("b")));
+		assertFalse(deliver(cache, "b", new ByteArrayOutputStream()));
+		assertTrue(deliver(cache, "a", new ByteArrayOutputStream()));
+		assertTrue(deliver(cache, "c", new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void testDocumentLargerThanTheCacheIsNotStaged() throws Exception {
+		DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 4);
+
+		RenderCache.EntryWriter writer = cache.stage(fingerprint("a"));
+		try {
+			writer.write("12345".getBytes(StandardCharsets.US_ASCII));
+			fail("The document does not fit into the cache.");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			writer.close();
+		}
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void testIndexIsRebuiltInUseOrder() throws Exception {
+		DiskRenderCache cache = new DiskRenderCache(folder.getRoot());
+		put(cache, "a", "1234");
+		put(cache, "b", "1234");
+		put(cache, "c", "1234");
+		// b was used least recently, a most recently
+		touch("a", 3000);
+		touch("b", 1000);
+		touch("c", 2000);
+		// a writer that never finished
+		Files.write(folder.getRoot().toPath().resolve(".staging").resolve("left.tmp"), new byte[] { 1 });
+
+		DiskRenderCache reopened = new DiskRenderCache(folder.getRoot(), 8);
+
+		assertEquals(2, reopened.getEntryCount());
+		assertEquals(8, reopened.getSize());
+		assertEquals(1, reopened.getEvictionCount());
+		assertFalse(Files.exists(path("b")));
+		assertEquals(0, folder.getRoot().toPath().resolve(".staging").toFile().list().length);
+
+		// c is evicted next
+		put(reopened, "d", "1234");
+		assertFalse(Files.exists(path("c")));
+		assertTrue(deliver(reopened, "a", new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		DiskRenderCache cache = new DiskRenderCache(folder.getRoot());
+		put(cache, "a", "1234");
+
+		cache.clear();
+
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getSize());
+		assertFalse(Files.exists(path("a")));
+	}
+
+	private static void put(RenderCache cache, String name, String document) throws IOException {
+		try (RenderCache.EntryWriter writer = cache.stage(fingerprint(name))) {
+			writer.write(document.getBytes(StandardCharsets.US_ASCII));
+			writer.commit();
+		}
+	}
+
+	private static boolean deliver(RenderCache cache, String name, ByteArrayOutputStream out) throws IOException {
+		return cache.deliver(fingerprint(name), OutputSink.toStream(out));
+	}
+
+	private void touch(String name, long lastModified) throws IOException {
+		Files.setLastModifiedTime(path(name), FileTime.fromMillis(lastModified));
+	}
+
+	private Path path(String name) {
+		String hex = fingerprint(name).toString();
+		return folder.getRoot().toPath().resolve(hex.substring(0, 2)).resolve(hex);
+	}
+
+	private static RequestFingerprint fingerprint(String name) {
+		try {
+			return new RequestFingerprint(MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8)));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+	@Test
+	public void testCountsOccurrences() {
+		FrequencySketch sketch = new FrequencySketch(64);
+
+		assertEquals(0, sketch.frequency("a"));
+		for (int i = 0; i < 3; i++) {
+			sketch.increment("a");
+		}
+		sketch.increment("b");
+
+		assertEquals(3, sketch.frequency("a"));
+		assertEquals(1, sketch.frequency("b"));
+	}
+
+	@Test
+	public void testSaturatesAtFifteen() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 20; i++) {
+			sketch.increment("a");
+		}
+
+		assertEquals(15, sketch.frequency("a"));
+	}
+
+	@Test
+	public void testOldOccurrencesFadeOut() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 15; i++) {
+			sketch.increment("hot");
+		}
+		// ten times the width of 64 counters triggers the reset
+		for (int i = 0; i < 700; i++) {
+			sketch.increment(Integer.valueOf(i));
+		}
+
+		int frequency = sketch.frequency("hot");
+		assertTrue("Frequency " + frequency + " was not halved.", frequency < 15);
+	}
+
+}
@@ -0,0 +1,161 @@
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+
+public class MemoryRenderCacheTest {
+
+	/**
+	 * A window of 100 bytes in front of a main area of 900 bytes.
+	 */
+	private final MemoryRenderCache cache = new MemoryRenderCache(1000, 100, MemoryRenderCache.Storage.HEAP, null);
+
+	@Test
+	public void testAdmittedWhileThereIsRoom() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			put("k" + i, 50);
+		}
+
+		assertEquals(20, cache.getEntryCount());
+		assertEquals(1000, cache.getSize());
+		assertEquals(0, cache.getRejectionCount());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testRejectedCandidateEvictsNothing() throws Exception {
+		// k1 is requested often before it is rendered
+		request("k1", 5);
+		fillMainArea();
+		request("candidate", 2);
+
+		// pushes the candidate out of the window, it has to displace k0 and k1
+		put("candidate", 100);
+		put("next", 100);
+
+		// the candidate is more frequent than k0 but not than k1, neither is evicted
+		assertEquals(0, cache.getEvictionCount());
+		assertNull(cache.get(fingerprint("candidate")));
+		assertNotNull(cache.get(fingerprint("k0")));
+		assertNotNull(cache.get(fingerprint("k1")));
+		assertEquals(19, cache.getEntryCount());
+	}
+
+	@Test
+	public void testFrequentCandidateDisplacesAllVictims() throws Exception {
+		fillMainArea();
+		request("candidate", 2);
+
+		put("candidate", 100);
+		put("next", 100);
+
+		assertEquals(2, cache.getEvictionCount());
+		assertNull(cache.get(fingerprint("k0")));
+		assertNull(cache.get(fingerprint("k1")));
+		assertNotNull(cache.get(fingerprint("candidate")));
+		assertEquals(1000, cache.getSize());
+	}
+
+	@Test
+	public void testDeliveredDocumentIsReadOnly() throws Exception {
+		put("a", 10);
+		final ByteBuffer[] delivered = new ByteBuffer[1];
+
+		assertTrue(cache.deliver(fingerprint("a"), new OutputSink() {
+
+			@Override
+			public String getArgument() {
+				return STDOUT;
+			}
+
+			@Override
+			public long write(ByteBuffer document) {
+				delivered[0] = document;
+				return document.remaining();
+			}
+
+			public long consume(InputStream in) {
+				throw new UnsupportedOperationException();
+			}
+
+		}));
+		assertTrue(delivered[0].isReadOnly());
+		assertEquals(10, delivered[0].remaining());
+		assertFalse(cache.deliver(fingerprint("b"), OutputSink.toStream(new ByteArrayOutputStream())));
+	}
+
+	@Test
+	public void testStreamSinkWritesTheCachedArray() throws Exception {
+		put("a", 10);
+		final byte[][] written = new byte[2][];
+		final int[] writes = new int[1];
+		OutputStream out = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				written[writes[0]++] = b;
+				assertEquals(10, len);
+			}
+
+		};
+
+		assertTrue(cache.deliver(fingerprint("a"), OutputSink.toStream(out)));
+		assertTrue(cache.deliver(fingerprint("a"), OutputSink.toStream(out)));
+		// one write per hit, straight from the same array
+		assertEquals(2, writes[0]);
+		assertSame(written[0], written[1]);
+	}
+
+	/**
+	 * Fills the main area with eighteen entries of 50 bytes, k0 being the least
+	 * recently used, and the window with two more.
+	 */
+	private void fillMainArea() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			put("k" + i, 50);
+		}
+	}
+
+	private void request(String name, int times) {
+		for (int i = 0; i < times; i++) {
+			cache.get(fingerprint(name));
+		}
+	}
+
+	private void put(String name, int length) throws IOException {
+		try (RenderCache.EntryWriter writer = cache.stage(fingerprint(name))) {
+			writer.write(new byte[length]);
+			writer.commit();
+		}
+	}
+
+	private static RequestFingerprint fingerprint(String name) {
+		try {
+			return new RequestFingerprint(MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8)));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
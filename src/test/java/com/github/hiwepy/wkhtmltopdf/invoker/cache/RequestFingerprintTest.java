@@ -0,0 +1,162 @@
+package com.github.hiwepy.wkhtmltopdf.invoker.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.hiwepy.wkhtmltopdf.invoker.DefaultInvoker;
+import com.github.hiwepy.wkhtmltopdf.invoker.process.ProcessEnvironment;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.DefaultWkhtmlToPdfInvocationRequest;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.InputSource;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.OutputSink;
+import com.github.hiwepy.wkhtmltopdf.invoker.request.WkhtmlToPdfInvocationRequest;
+
+public class RequestFingerprintTest {
+
+	private static final String VERSION = "wkhtmltopdf 0.12.6 (with patched qt)";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DefaultInvoker invoker;
+
+	@Before
+	public void setUp() throws Exception {
+		// compiling only resolves the executable, it is never run
+		File home = folder.newFolder("home");
+		assertTrue(new File(home, "wkhtmltopdf").createNewFile());
+		assertTrue(new File(home, "wkhtmltopdf.exe").createNewFile());
+		invoker = new DefaultInvoker();
+		invoker.setWkhtmltopdfHome(home);
+	}
+
+	@Test
+	public void testSameRequestSameFingerprint() throws Exception {
+		RequestFingerprint first = fingerprint(VERSION, page("<html>a</html>", "first.pdf"));
+		RequestFingerprint second = fingerprint(VERSION, page("<html>a</html>", "second.pdf"));
+
+		// where the document is written to does not matter
+		assertEquals(first, second);
+		assertEquals(first.hashCode(), second.hashCode());
+		assertEquals(first.toString(), second.toString());
+		assertTrue(first.toString().matches("[0-9a-f]{64}"));
+		assertArrayEquals(first.getDigest(), second.getDigest());
+		assertEquals(first, RequestFingerprint.valueOf(first.toString()));
+	}
+
+	@Test
+	public void testEverythingRenderedIsFingerprinted() throws Exception {
+		RequestFingerprint fingerprint = fingerprint(VERSION, page("<html>a</html>", "out.pdf"));
+
+		assertNotEquals(fingerprint, fingerprint(VERSION, page("<html>b</html>", "out.pdf")));
+		assertNotEquals(fingerprint, fingerprint("wkhtmltopdf 0.12.5 (with patched qt)", page("<html>a</html>", "out.pdf")));
+
+		WkhtmlToPdfInvocationRequest encoded = page("<html>a</html>", "out.pdf");
+		encoded.setEncoding("UTF-8");
+		assertNotEquals(fingerprint, fingerprint(VERSION, encoded));
+
+		WkhtmlToPdfInvocationRequest environment = page("<html>a</html>", "out.pdf");
+		environment.addShellEnvironment("TZ", "UTC");
+		assertNotEquals(fingerprint, fingerprint(VERSION, environment));
+	}
+
+	@Test
+	public void testBaseEnvironmentIsFingerprinted() throws Exception {
+		invoker.setEnvironment(ProcessEnvironment.of(Collections.singletonMap("LANG", "en_US.UTF-8")));
+		RequestFingerprint english = fingerprint(VERSION, page("<html>a</html>", "out.pdf"));
+		invoker.setEnvironment(ProcessEnvironment.of(Collections.singletonMap("LANG", "de_DE.UTF-8")));
+		RequestFingerprint german = fingerprint(VERSION, page("<html>a</html>", "out.pdf"));
+
+		assertNotEquals(english, german);
+		assertEquals(german, fingerprint(VERSION, page("<html>a</html>", "out.pdf")));
+
+		// a request that does not inherit the environment does not see it
+		invoker.setEnvironment(ProcessEnvironment.of(Collections.singletonMap("LANG", "en_US.UTF-8")));
+		RequestFingerprint first = fingerprint(VERSION, isolated());
+		invoker.setEnvironment(ProcessEnvironment.of(Collections.singletonMap("LANG", "de_DE.UTF-8")));
+		assertEquals(first, fingerprint(VERSION, isolated()));
+	}
+
+	@Test
+	public void testPageIsCopiedWhileHashed() throws Exception {
+		WkhtmlToPdfInvocationRequest request = page("<html>a</html>", "out.pdf");
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		RequestFingerprint fingerprint = RequestFingerprint.compute(VERSION, invoker.compile(request), request, copy);
+
+		assertEquals("<html>a</html>", new String(copy.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(fingerprint, fingerprint(VERSION, page("<html>a</html>", "out.pdf")));
+	}
+
+	@Test
+	public void testLocalPageContentIsFingerprinted() throws Exception {
+		File file = folder.newFile("page.html");
+		Files.write(file.toPath(), "<html>a</html>".getBytes(StandardCharsets.UTF_8));
+		WkhtmlToPdfInvocationRequest request = url(file.getAbsolutePath());
+
+		assertTrue(RequestFingerprint.isCacheable(request));
+		RequestFingerprint before = fingerprint(VERSION, request);
+		assertEquals(before, fingerprint(VERSION, url(file.toURI().toString())));
+
+		Files.write(file.toPath(), "<html>b</html>".getBytes(StandardCharsets.UTF_8));
+		assertNotEquals(before, fingerprint(VERSION, request));
+	}
+
+	@Test
+	public void testOnlyLocalFilesAreCacheable() throws Exception {
+		File file = folder.newFile("page.html");
+
+		assertEquals(file, RequestFingerprint.toLocalFile(file.getAbsolutePath()));
+		assertEquals(file, RequestFingerprint.toLocalFile(file.toURI().toString()));
+		// wkhtmltopdf fetches anything else that is not an existing file over the network
+		assertNull(RequestFingerprint.toLocalFile("www.example.com"));
+		assertNull(RequestFingerprint.toLocalFile("page.html"));
+		assertNull(RequestFingerprint.toLocalFile("https://www.example.com/page.html"));
+		assertNull(RequestFingerprint.toLocalFile(new File(folder.getRoot(), "missing.html").getAbsolutePath()));
+
+		assertFalse(RequestFingerprint.isCacheable(url("www.example.com")));
+		WkhtmlToPdfInvocationRequest discarded = page("<html>a</html>", "out.pdf");
+		discarded.setOutputSink(null);
+		assertFalse(RequestFingerprint.isCacheable(discarded));
+	}
+
+	private RequestFingerprint fingerprint(String version, WkhtmlToPdfInvocationRequest request) throws Exception {
+		return RequestFingerprint.compute(version, invoker.compile(request), request, null);
+	}
+
+	private WkhtmlToPdfInvocationRequest page(String html, String output) {
+		WkhtmlToPdfInvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		request.setInputSource(InputSource.fromStream(new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8))));
+		request.setOutputSink(OutputSink.toFile(new File(folder.getRoot(), output)));
+		return request;
+	}
+
+	private WkhtmlToPdfInvocationRequest isolated() {
+		WkhtmlToPdfInvocationRequest request = page("<html>a</html>", "out.pdf");
+		request.setShellEnvironmentInherited(false);
+		return request;
+	}
+
+	private WkhtmlToPdfInvocationRequest url(String url) {
+		WkhtmlToPdfInvocationRequest request = new DefaultWkhtmlToPdfInvocationRequest();
+		request.setURL(url);
+		request.setOutputSink(OutputSink.toFile(new File(folder.getRoot(), "out.pdf")));
+		return request;
+	}
+
+}